@@ -0,0 +1,39 @@
+package eu.cloudtm.benchmark;
+
+import eu.cloudtm.sim.WorkloadGenerator;
+
+import java.util.Properties;
+
+/**
+ * Creates the {@link WorkloadGenerator}s used by the benchmarks: 3 planted clusters with 90% of locality.
+ *
+ * @author Pedro Ruivo
+ * @since 1.0
+ */
+public class Workloads {
+
+    private Workloads() {
+    }
+
+    public static WorkloadGenerator create(int txClasses, int domainClasses, int attributesPerClass, double skew,
+                                           long seed) {
+        Properties properties = new Properties();
+        properties.setProperty("workload.txClasses", String.valueOf(txClasses));
+        properties.setProperty("workload.domainClasses", String.valueOf(domainClasses));
+        properties.setProperty("workload.attributesPerClass", String.valueOf(attributesPerClass));
+        properties.setProperty("workload.skew", String.valueOf(skew));
+        properties.setProperty("workload.seed", String.valueOf(seed));
+        return new WorkloadGenerator(properties);
+    }
+
+    /**
+     * @return the transaction classes in the {@code infinispan.transactionClasses} format
+     */
+    public static String txClassList(WorkloadGenerator generator) {
+        StringBuilder builder = new StringBuilder();
+        for (String txClass : generator.getTransactionClasses()) {
+            builder.append(builder.length() == 0 ? "" : ",").append(txClass);
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,60 @@
+package eu.cloudtm.optimizer;
+
+import eu.cloudtm.benchmark.Workloads;
+import eu.cloudtm.sim.WorkloadGenerator;
+import eu.cloudtm.stats.ProcessedSample;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the LDA clustering and of the mappings generation as the number of transaction and domain classes grows.
+ * The access matrix is generated by the {@link WorkloadGenerator} with 3 planted clusters.
+ *
+ * @author Pedro Ruivo
+ * @since 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class LCRDOptimizerBenchmark {
+
+    @Param({"5", "10", "20"})
+    public int txClasses;
+    @Param({"10", "50", "100"})
+    public int domainClasses;
+    @Param({"0.0", "1.0"})
+    public double skew;
+    private LinkedHashMap<String, LinkedHashMap<String, Integer>> dataAccessFrequencies;
+    private ProcessedSample sample;
+
+    @Setup
+    public void setup() {
+        WorkloadGenerator generator = Workloads.create(txClasses, domainClasses, 1, skew,
+                txClasses * 31 + domainClasses);
+        dataAccessFrequencies = generator.accessMatrix(1);
+        LinkedHashMap<String, Double> txInvokeFrequency = new LinkedHashMap<String, Double>();
+        LinkedHashMap<String, Double> txResponseTime = new LinkedHashMap<String, Double>();
+        for (String txClass : generator.getTransactionClasses()) {
+            txInvokeFrequency.put(txClass, generator.arrivalRate(0, txClass));
+            txResponseTime.put(txClass, (double) generator.responseTime(0, txClass));
+        }
+        sample = new ProcessedSample(txInvokeFrequency, txResponseTime, dataAccessFrequencies);
+    }
+
+    @Benchmark
+    public LCRDOptimizer generateClusters() {
+        LCRDOptimizer optimizer = new LCRDOptimizer();
+        optimizer.generateClusters(dataAccessFrequencies);
+        return optimizer;
+    }
+
+    @Benchmark
+    public LCRDMappings doOptimize() {
+        return new LCRDOptimizer().doOptimize(sample);
+    }
+}
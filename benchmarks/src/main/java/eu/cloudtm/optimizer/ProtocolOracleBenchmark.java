@@ -0,0 +1,70 @@
+package eu.cloudtm.optimizer;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decision cost of the {@link MorphOptimizer} oracles.
+ *
+ * @author Pedro Ruivo
+ * @since 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProtocolOracleBenchmark {
+
+    private static final String[] PROTOCOLS = {"2PC", "TO", "PB"};
+    private static final int NUMBER_OF_WORKLOADS = 1024;
+    private final ProtocolOracle thresholdOracle = new ThresholdProtocolOracle();
+    private HysteresisProtocolOracle hysteresisOracle;
+    private DecisionTreeProtocolOracle decisionTreeOracle;
+    private WorkloadFeatures[] workloads;
+    private int next;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(7);
+        workloads = new WorkloadFeatures[NUMBER_OF_WORKLOADS];
+        double[][] rows = new double[NUMBER_OF_WORKLOADS][];
+        String[] labels = new String[NUMBER_OF_WORKLOADS];
+        for (int i = 0; i < NUMBER_OF_WORKLOADS; ++i) {
+            rows[i] = new double[]{
+                    random.nextDouble(),
+                    random.nextDouble() * 40,
+                    random.nextDouble() * 0.5,
+                    random.nextDouble() * 1000,
+                    1 + random.nextInt(16),
+                    random.nextDouble() * 100};
+            workloads[i] = new WorkloadFeatures(rows[i]);
+            labels[i] = thresholdOracle.predict(workloads[i]);
+        }
+        decisionTreeOracle = DecisionTreeProtocolOracle.train(rows, labels, 8, 2);
+        hysteresisOracle = new HysteresisProtocolOracle(thresholdOracle, 0.1);
+    }
+
+    @Benchmark
+    public String threshold() {
+        return thresholdOracle.predict(nextWorkload());
+    }
+
+    @Benchmark
+    public String decisionTree() {
+        return decisionTreeOracle.predict(nextWorkload());
+    }
+
+    @Benchmark
+    public String hysteresis() {
+        return hysteresisOracle.predict(nextWorkload(), PROTOCOLS[next % PROTOCOLS.length]);
+    }
+
+    private WorkloadFeatures nextWorkload() {
+        next = (next + 1) % NUMBER_OF_WORKLOADS;
+        return workloads[next];
+    }
+}
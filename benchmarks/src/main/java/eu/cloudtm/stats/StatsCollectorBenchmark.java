@@ -0,0 +1,117 @@
+package eu.cloudtm.stats;
+
+import eu.cloudtm.benchmark.Workloads;
+import eu.cloudtm.jmx.FenixObjectNameFinder;
+import eu.cloudtm.jmx.InfinispanObjectNameFinder;
+import eu.cloudtm.jmx.JmxManager;
+import eu.cloudtm.sim.WorkloadGenerator;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of the DAP payloads and aggregation of the per node arrival rates and response times.
+ *
+ * @author Pedro Ruivo
+ * @since 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StatsCollectorBenchmark {
+
+    @Param({"3", "9", "90"})
+    public int nodes;
+    @Param({"10", "50"})
+    public int txClasses;
+    @Param({"20", "100"})
+    public int domainClasses;
+    private StatsCollector statsCollector;
+    private StatsCollector sketchCollector;
+    private StatsCollector parallelCollector;
+    private List<String> payloads;
+    private List<double[]> arrivalRates;
+    private List<long[]> responseTimes;
+
+    @Setup
+    public void setup() {
+        WorkloadGenerator generator = Workloads.create(txClasses, domainClasses, 3, 1.0,
+                nodes * 31 + txClasses * 7 + domainClasses);
+        String[] transactionClasses = generator.getTransactionClasses();
+        statsCollector = new StatsCollector(new JmxManager(), new FenixObjectNameFinder(),
+                new InfinispanObjectNameFinder());
+        Properties properties = new Properties();
+        properties.setProperty("infinispan.transactionClasses", Workloads.txClassList(generator));
+        properties.setProperty("stats.parse.parallelism", "1");
+        statsCollector.update(properties);
+        parallelCollector = new StatsCollector(new JmxManager(), new FenixObjectNameFinder(),
+                new InfinispanObjectNameFinder());
+        properties.setProperty("stats.parse.parallelism", String.valueOf(Runtime.getRuntime().availableProcessors()));
+        parallelCollector.update(properties);
+        sketchCollector = new StatsCollector(new JmxManager(), new FenixObjectNameFinder(),
+                new InfinispanObjectNameFinder());
+        properties.setProperty("stats.sketch.enabled", "true");
+        sketchCollector.update(properties);
+
+        payloads = new ArrayList<String>(nodes * 2);
+        arrivalRates = new ArrayList<double[]>(nodes);
+        responseTimes = new ArrayList<long[]>(nodes);
+        for (int node = 0; node < nodes; ++node) {
+            String readData = generator.readAccessData(node);
+            String writeData = generator.writeAccessData(node);
+            double[] arrivalRate = new double[txClasses];
+            long[] responseTime = new long[txClasses];
+            for (int i = 0; i < txClasses; ++i) {
+                arrivalRate[i] = generator.arrivalRate(node, transactionClasses[i]);
+                responseTime[i] = generator.responseTime(node, transactionClasses[i]);
+            }
+            statsCollector.addStats(readData, writeData, arrivalRate, responseTime);
+            sketchCollector.addStats(readData, writeData, arrivalRate, responseTime);
+            payloads.add(readData);
+            payloads.add(writeData);
+            arrivalRates.add(arrivalRate);
+            responseTimes.add(responseTime);
+        }
+    }
+
+    @Benchmark
+    public LinkedHashMap<String, LinkedHashMap<String, Integer>> parseDataAccessFrequencies() {
+        return StatsCollector.parseDataAccessFrequencies(payloads);
+    }
+
+    /**
+     * Same result as {@link #parseDataAccessFrequencies()}, parsed per node in a fork-join pool with one thread per
+     * core. The stats are added again each time so that nothing parsed is reused.
+     */
+    @Benchmark
+    public LinkedHashMap<String, LinkedHashMap<String, Integer>> parallelDataAccessFrequencies() {
+        parallelCollector.clear();
+        for (int node = 0; node < nodes; ++node) {
+            parallelCollector.addStats(payloads.get(node * 2), payloads.get(node * 2 + 1), arrivalRates.get(node),
+                    responseTimes.get(node));
+        }
+        return parallelCollector.getDataAccessFrequencies();
+    }
+
+    @Benchmark
+    public LinkedHashMap<String, LinkedHashMap<String, Integer>> sketchDataAccessFrequencies() {
+        return sketchCollector.getDataAccessFrequencies();
+    }
+
+    @Benchmark
+    public LinkedHashMap<String, Double> txInvokeFrequency() {
+        return statsCollector.getTxInvokeFrequency();
+    }
+
+    @Benchmark
+    public LinkedHashMap<String, Double> txResponseTime() {
+        return statsCollector.getTxResponseTime();
+    }
+}
@@ -0,0 +1,144 @@
+package eu.cloudtm.sim;
+
+import eu.cloudtm.Utils;
+import eu.cloudtm.jmx.DapController;
+import eu.cloudtm.jmx.FenixObjectNameFinder;
+import eu.cloudtm.jmx.InfinispanObjectNameFinder;
+import eu.cloudtm.jmx.JmxManager;
+import eu.cloudtm.jmx.UpdateMappings;
+import eu.cloudtm.metrics.ManagerMetrics;
+import eu.cloudtm.optimizer.LCRDMappings;
+import eu.cloudtm.stats.ProcessedSample;
+import eu.cloudtm.stats.StatsCollector;
+import org.apache.log4j.Logger;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Measures the round latency of the manager against a {@link SimulatedCluster} running in this JVM.
+ * <p/>
+ * Usage: {@code ClusterLoadTest <nodes> [rounds] [base-port]}. The simulation is configured by the
+ * {@code config.properties} file and the {@code sim.*} properties (see {@link SimulationSettings}).
+ *
+ * @author Pedro Ruivo
+ * @since 1.0
+ */
+public class ClusterLoadTest {
+
+    private static final Logger log = Logger.getLogger(ClusterLoadTest.class);
+    private static final int DEFAULT_BASE_PORT = 19000;
+    private static final int NUMBER_OF_GROUPS = 3;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.err.println("Expected: <nodes> [rounds] [base-port]");
+            System.exit(1);
+        }
+        int numberOfNodes = Integer.parseInt(args[0]);
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int basePort = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_BASE_PORT;
+        Properties properties = Utils.loadProperties("config.properties");
+        PayloadSource payloadSource = createPayloadSource(properties);
+
+        SimulatedCluster cluster = new SimulatedCluster();
+        try {
+            cluster.start(numberOfNodes, basePort, properties, payloadSource);
+            run(cluster.managerProperties(properties), rounds);
+        } finally {
+            cluster.close();
+        }
+        System.exit(0);
+    }
+
+    /**
+     * {@code sim.payload} selects the payload: {@code uniform} (default) or {@code workload} for the
+     * {@link WorkloadGenerator}. The latter replaces the transaction classes in the {@code properties}.
+     */
+    static PayloadSource createPayloadSource(Properties properties) {
+        if ("workload".equals(properties.getProperty("sim.payload", "uniform"))) {
+            WorkloadGenerator generator = new WorkloadGenerator(properties);
+            StringBuilder txClassList = new StringBuilder();
+            for (String txClass : generator.getTransactionClasses()) {
+                txClassList.append(txClassList.length() == 0 ? "" : ",").append(txClass);
+            }
+            properties.setProperty("infinispan.transactionClasses", txClassList.toString());
+            log.info("Using " + generator);
+            return new WorkloadPayloadSource(generator);
+        }
+        return new UniformPayloadSource(new SimulationSettings(properties), 0);
+    }
+
+    private static void run(Properties properties, int rounds) {
+        JmxManager jmxManager = new JmxManager();
+        FenixObjectNameFinder fenixObjectNameFinder = new FenixObjectNameFinder();
+        InfinispanObjectNameFinder infinispanObjectNameFinder = new InfinispanObjectNameFinder();
+        StatsCollector statsCollector = new StatsCollector(jmxManager, fenixObjectNameFinder, infinispanObjectNameFinder);
+        UpdateMappings updateMappings = new UpdateMappings(jmxManager, fenixObjectNameFinder, infinispanObjectNameFinder);
+        DapController dapController = new DapController(jmxManager, fenixObjectNameFinder);
+        jmxManager.update(properties);
+        fenixObjectNameFinder.update(properties);
+        infinispanObjectNameFinder.update(properties);
+        statsCollector.update(properties);
+        updateMappings.update(properties);
+        ManagerMetrics metrics = ManagerMetrics.getInstance();
+        metrics.update(properties);
+
+        long start = System.nanoTime();
+        jmxManager.openConnections();
+        report("open connections", start);
+        try {
+            for (int round = 0; round < rounds; ++round) {
+                long roundStart = System.nanoTime();
+
+                start = System.nanoTime();
+                dapController.setDapEnabled(true);
+                dapController.setDapEnabled(false);
+                report("round " + round + ": DAP enable/disable", start);
+
+                start = System.nanoTime();
+                ProcessedSample sample = statsCollector.collectStats();
+                report("round " + round + ": collect stats (" + sample.getDataAccessFrequencies().size() +
+                        " tx classes)", start);
+
+                start = System.nanoTime();
+                updateMappings.updateMappings(createMappings(sample));
+                report("round " + round + ": update mappings", start);
+
+                report("round " + round + ": total", roundStart);
+                metrics.record(ManagerMetrics.ROUND, roundStart);
+            }
+        } finally {
+            jmxManager.closeConnections();
+            metrics.writeFile();
+        }
+        for (String timer : metrics.getTimers()) {
+            log.info("Timer (phase node count totalMillis maxMillis): " + timer);
+        }
+    }
+
+    private static LCRDMappings createMappings(ProcessedSample sample) {
+        Map<String, Integer> txClassMap = new HashMap<String, Integer>();
+        Map<String, Integer> domainClassMap = new HashMap<String, Integer>();
+        Map<Integer, Float> clusterWeightMap = new HashMap<Integer, Float>();
+        int index = 0;
+        for (Map.Entry<String, ? extends Map<String, Integer>> entry : sample.getDataAccessFrequencies().entrySet()) {
+            txClassMap.put(entry.getKey(), index % NUMBER_OF_GROUPS);
+            for (String domainClass : entry.getValue().keySet()) {
+                if (!domainClassMap.containsKey(domainClass)) {
+                    domainClassMap.put(domainClass, domainClassMap.size() % NUMBER_OF_GROUPS);
+                }
+            }
+            index++;
+        }
+        for (int i = 0; i < NUMBER_OF_GROUPS; ++i) {
+            clusterWeightMap.put(i, 1.0f / NUMBER_OF_GROUPS);
+        }
+        return new LCRDMappings(txClassMap, domainClassMap, clusterWeightMap);
+    }
+
+    private static void report(String phase, long start) {
+        log.info(phase + " took " + (System.nanoTime() - start) / 1000000 + " ms");
+    }
+}
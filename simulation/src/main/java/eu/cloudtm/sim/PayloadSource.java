@@ -0,0 +1,25 @@
+package eu.cloudtm.sim;
+
+/**
+ * Supplies the statistics reported by the simulated nodes.
+ *
+ * @author Pedro Ruivo
+ * @since 1.0
+ */
+public interface PayloadSource {
+
+    /**
+     * @return the {@code DapReadAccessData} of the node
+     */
+    String readAccessData(int node);
+
+    /**
+     * @return the {@code DapWriteAccessData} of the node
+     */
+    String writeAccessData(int node);
+
+    double arrivalRate(int node, String txClass);
+
+    long responseTime(int node, String txClass);
+
+}
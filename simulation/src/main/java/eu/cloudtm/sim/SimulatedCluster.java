@@ -0,0 +1,88 @@
+package eu.cloudtm.sim;
+
+import eu.cloudtm.Utils;
+import eu.cloudtm.jmx.JmxManager;
+import org.apache.log4j.Logger;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A set of {@link SimulatedNode}s listening in consecutive ports of the loopback interface.
+ *
+ * @author Pedro Ruivo
+ * @since 1.0
+ */
+public class SimulatedCluster implements Closeable {
+
+    private static final Logger log = Logger.getLogger(SimulatedCluster.class);
+    private static final String HOST = "127.0.0.1";
+    private final List<SimulatedNode> nodes;
+    private int basePort;
+    private Properties properties;
+    private SimulationSettings settings;
+    private PayloadSource payloadSource;
+
+    public SimulatedCluster() {
+        //read by the membership of the nodes while nodes are added
+        nodes = new CopyOnWriteArrayList<SimulatedNode>();
+    }
+
+    /**
+     * Starts {@code numberOfNodes} nodes in ports {@code [basePort, basePort + numberOfNodes)}.
+     */
+    public final void start(int numberOfNodes, int basePort, Properties properties, PayloadSource payloadSource)
+            throws Exception {
+        System.setProperty("java.rmi.server.hostname", HOST);
+        this.basePort = basePort;
+        this.properties = properties;
+        this.settings = new SimulationSettings(properties);
+        this.payloadSource = payloadSource;
+        log.info("Starting " + numberOfNodes + " simulated nodes with " + settings);
+        addNodes(numberOfNodes);
+    }
+
+    /**
+     * Scales the cluster out: starts {@code numberOfNodes} more nodes in the next ports. The membership reported by
+     * every node includes them.
+     */
+    public final void addNodes(int numberOfNodes) throws Exception {
+        for (int i = 0; i < numberOfNodes; ++i) {
+            int index = nodes.size();
+            SimulatedNode node = new SimulatedNode(index, HOST, basePort + index, settings, payloadSource);
+            node.setClusterMembers(nodes);
+            node.start(properties);
+            nodes.add(node);
+        }
+    }
+
+    public final List<SimulatedNode> getNodes() {
+        return Collections.unmodifiableList(nodes);
+    }
+
+    /**
+     * @return the properties to point the manager to this cluster
+     */
+    public final Properties managerProperties(Properties properties) {
+        Properties managerProperties = new Properties();
+        managerProperties.putAll(properties);
+        StringBuilder ips = new StringBuilder();
+        for (SimulatedNode node : nodes) {
+            ips.append(ips.length() == 0 ? "" : ",").append(node.getAddress());
+        }
+        managerProperties.setProperty("jmx.ips", ips.toString());
+        managerProperties.setProperty("jmx.urlFormat", JmxManager.RMI_JMX_URL_FORMAT);
+        return managerProperties;
+    }
+
+    @Override
+    public void close() {
+        for (SimulatedNode node : nodes) {
+            Utils.safeClose(node);
+        }
+        nodes.clear();
+    }
+}
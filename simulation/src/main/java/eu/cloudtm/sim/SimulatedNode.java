@@ -0,0 +1,440 @@
+package eu.cloudtm.sim;
+
+import eu.cloudtm.jmx.JmxManager;
+import org.apache.log4j.Logger;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import javax.management.remote.JMXConnectorServer;
+import javax.management.remote.JMXConnectorServerFactory;
+import javax.management.remote.JMXServiceURL;
+import java.io.Closeable;
+import java.io.IOException;
+import java.rmi.NoSuchObjectException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fake Fenix/Infinispan node: a local {@link MBeanServer} behind a RMI JMX connector with stand-ins for the
+ * components used by the manager. The object names follow the same format as the real ones so the
+ * {@link eu.cloudtm.jmx.ObjectNameFinder}s find them.
+ *
+ * @author Pedro Ruivo
+ * @since 1.0
+ */
+public class SimulatedNode implements Closeable {
+
+    private static final Logger log = Logger.getLogger(SimulatedNode.class);
+    private static final String FENIX_FORMAT = "%s:application=\"%s\",component=%s";
+    private static final String CACHE_FORMAT = "%s:type=Cache,name=\"%s(dist_sync)\",manager=\"%s\",component=%s";
+    private static final String CACHE_MANAGER_FORMAT = "%s:type=CacheManager,name=\"%s\",component=%s";
+    private final int index;
+    private final String host;
+    private final int port;
+    private final SimulationSettings settings;
+    private final PayloadSource payloadSource;
+    private final Random random;
+    private final AtomicLong commits;
+    private final AtomicLong mappingUpdates;
+    private final AtomicLong gets;
+    private final AtomicLong remoteGets;
+    private volatile boolean dapEnabled;
+    private volatile String currentProtocol;
+    private volatile List<SimulatedNode> clusterMembers;
+    private MBeanServer mBeanServer;
+    private Registry registry;
+    private JMXConnectorServer connectorServer;
+
+    public SimulatedNode(int index, String host, int port, SimulationSettings settings, PayloadSource payloadSource) {
+        this.index = index;
+        this.host = host;
+        this.port = port;
+        this.settings = settings;
+        this.payloadSource = payloadSource;
+        this.random = new Random(index);
+        this.commits = new AtomicLong();
+        this.mappingUpdates = new AtomicLong();
+        this.gets = new AtomicLong();
+        this.remoteGets = new AtomicLong();
+        this.currentProtocol = "2PC";
+    }
+
+    public final void start(Properties properties) throws Exception {
+        mBeanServer = MBeanServerFactory.newMBeanServer();
+        String fenixDomain = properties.getProperty("fenix.jmxDomain");
+        String appName = properties.getProperty("fenix.appName");
+        String ispnDomain = properties.getProperty("infinispan.jmxDomain");
+        String cacheName = properties.getProperty("infinispan.cacheName");
+        String cacheManager = properties.getProperty("infinispan.cacheManager");
+
+        register(new StandardMBean(new DapRemoteManager(), DapRemoteManagerMBean.class),
+                String.format(FENIX_FORMAT, fenixDomain, appName, "DapRemoteManager"));
+        register(new StandardMBean(new LCRDLoadBalancePolicy(), LCRDLoadBalancePolicyMBean.class),
+                String.format(FENIX_FORMAT, fenixDomain, appName, "LCRDLoadBalancePolicy"));
+        register(new StandardMBean(new Worker(), WorkerMBean.class),
+                String.format(FENIX_FORMAT, fenixDomain, appName, "Worker"));
+        register(new StandardMBean(new ExtendedStatistics(), ExtendedStatisticsMBean.class),
+                String.format(CACHE_FORMAT, ispnDomain, cacheName, cacheManager, "ExtendedStatistics"));
+        register(new StandardMBean(new Transactions(), TransactionsMBean.class),
+                String.format(CACHE_FORMAT, ispnDomain, cacheName, cacheManager, "Transactions"));
+        register(new StandardMBean(new DataPlacementManager(), DataPlacementManagerMBean.class),
+                String.format(CACHE_FORMAT, ispnDomain, cacheName, cacheManager, "DataPlacementManager"));
+        register(new StandardMBean(new ReconfigurableReplicationManager(), ReconfigurableReplicationManagerMBean.class),
+                String.format(CACHE_FORMAT, ispnDomain, cacheName, cacheManager, "ReconfigurableReplicationManager"));
+        register(new StandardMBean(new CacheManager(), CacheManagerMBean.class),
+                String.format(CACHE_MANAGER_FORMAT, ispnDomain, cacheManager, "CacheManager"));
+
+        registry = LocateRegistry.createRegistry(port);
+        JMXServiceURL url = new JMXServiceURL(String.format(JmxManager.RMI_JMX_URL_FORMAT, host, port));
+        connectorServer = JMXConnectorServerFactory.newJMXConnectorServer(url, null, mBeanServer);
+        connectorServer.start();
+        log.debug("Simulated node " + index + " started at " + url);
+    }
+
+    public final String getAddress() {
+        return host + ":" + port;
+    }
+
+    public final long getMappingUpdates() {
+        return mappingUpdates.get();
+    }
+
+    public final boolean isDapEnabled() {
+        return dapEnabled;
+    }
+
+    public final String getCurrentProtocol() {
+        return currentProtocol;
+    }
+
+    /**
+     * @param clusterMembers the nodes reported by the {@code CacheManager} membership
+     */
+    final void setClusterMembers(List<SimulatedNode> clusterMembers) {
+        this.clusterMembers = clusterMembers;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (connectorServer != null) {
+            connectorServer.stop();
+            connectorServer = null;
+        }
+        if (registry != null) {
+            try {
+                UnicastRemoteObject.unexportObject(registry, true);
+            } catch (NoSuchObjectException e) {
+                //ignored
+            }
+            registry = null;
+        }
+        mBeanServer = null;
+    }
+
+    @Override
+    public String toString() {
+        return "SimulatedNode{" +
+                "index=" + index +
+                ", address=" + getAddress() +
+                ", currentProtocol=" + currentProtocol +
+                ", mappingUpdates=" + mappingUpdates +
+                '}';
+    }
+
+    private void register(Object mBean, String objectName) throws Exception {
+        mBeanServer.registerMBean(mBean, new ObjectName(objectName));
+    }
+
+    private void call(String operation) {
+        synchronized (random) {
+            settings.call(random, operation);
+        }
+    }
+
+    public static interface DapRemoteManagerMBean {
+        void enableDap();
+
+        void disableDap();
+
+        void enableWriteStatisticCollection();
+
+        void disableWriteStatisticCollection();
+
+        void enableReadStatisticCollection();
+
+        void disableReadStatisticCollection();
+
+        String getDapReadAccessData();
+
+        String getDapWriteAccessData();
+    }
+
+    public static interface ExtendedStatisticsMBean {
+        double getAvgTxArrivalRateForTxClass(String txClass);
+
+        long getAvgResponseTimeForTxClass(String txClass);
+
+        double getAvgPutsPerWrTransaction();
+
+        double getPercentageWriteTransactions();
+
+        double getAbortRate();
+
+        double getAvgTxArrivalRate();
+
+        double getAvgResponseTime();
+
+        long getNumberOfGets();
+
+        long getNumberOfRemoteGets();
+
+        double getAvgLocalCommitTime();
+
+        double getAvgPrepareRtt();
+
+        double getAvgCommitRtt();
+    }
+
+    public static interface TransactionsMBean {
+        long getCommits();
+    }
+
+    public static interface DataPlacementManagerMBean {
+        void setLCRDMappings(Map<?, ?> transactionClassMap, Map<?, ?> clusterWeightMap);
+
+        void updateLCRDMappingsDelta(Map<?, ?> transactionClassChanges, Map<?, ?> clusterWeightChanges);
+
+        void dataPlacementRequest();
+    }
+
+    public static interface LCRDLoadBalancePolicyMBean {
+        void updateMappings(Map<?, ?> domainObjectClassMap, Map<?, ?> clusterWeightMap);
+
+        void updateMappingsDelta(Map<?, ?> domainObjectClassChanges, Map<?, ?> clusterWeightChanges);
+    }
+
+    public static interface ReconfigurableReplicationManagerMBean {
+        String getCurrentProtocolId();
+
+        void switchTo(String protocol, boolean forceStop, boolean abortOnStop);
+    }
+
+    public static interface WorkerMBean {
+        void setProtocol(String protocol);
+    }
+
+    public static interface CacheManagerMBean {
+        String getClusterMembers();
+    }
+
+    private class DapRemoteManager implements DapRemoteManagerMBean {
+        @Override
+        public void enableDap() {
+            call("enableDap");
+            dapEnabled = true;
+        }
+
+        @Override
+        public void disableDap() {
+            call("disableDap");
+            dapEnabled = false;
+        }
+
+        @Override
+        public void enableWriteStatisticCollection() {
+            call("enableWriteStatisticCollection");
+        }
+
+        @Override
+        public void disableWriteStatisticCollection() {
+            call("disableWriteStatisticCollection");
+        }
+
+        @Override
+        public void enableReadStatisticCollection() {
+            call("enableReadStatisticCollection");
+        }
+
+        @Override
+        public void disableReadStatisticCollection() {
+            call("disableReadStatisticCollection");
+        }
+
+        @Override
+        public String getDapReadAccessData() {
+            call("DapReadAccessData");
+            return payloadSource.readAccessData(index);
+        }
+
+        @Override
+        public String getDapWriteAccessData() {
+            call("DapWriteAccessData");
+            return payloadSource.writeAccessData(index);
+        }
+    }
+
+    private class ExtendedStatistics implements ExtendedStatisticsMBean {
+        @Override
+        public double getAvgTxArrivalRateForTxClass(String txClass) {
+            call("getAvgTxArrivalRateForTxClass");
+            return payloadSource.arrivalRate(index, txClass);
+        }
+
+        @Override
+        public long getAvgResponseTimeForTxClass(String txClass) {
+            call("getAvgResponseTimeForTxClass");
+            return payloadSource.responseTime(index, txClass);
+        }
+
+        @Override
+        public double getAvgPutsPerWrTransaction() {
+            call("AvgPutsPerWrTransaction");
+            return 2 + index % 10;
+        }
+
+        @Override
+        public double getPercentageWriteTransactions() {
+            call("PercentageWriteTransactions");
+            return 0.2;
+        }
+
+        @Override
+        public double getAbortRate() {
+            call("AbortRate");
+            return 0.01;
+        }
+
+        @Override
+        public double getAvgTxArrivalRate() {
+            call("AvgTxArrivalRate");
+            return 100;
+        }
+
+        @Override
+        public double getAvgResponseTime() {
+            call("AvgResponseTime");
+            return 1000;
+        }
+
+        /**
+         * Each call adds 1000 gets. The fraction of remote gets halves with the first mapping update and keeps
+         * dropping with the following ones.
+         */
+        @Override
+        public long getNumberOfGets() {
+            call("NumberOfGets");
+            remoteGets.addAndGet(500 / (1 + mappingUpdates.get()));
+            return gets.addAndGet(1000);
+        }
+
+        @Override
+        public long getNumberOfRemoteGets() {
+            call("NumberOfRemoteGets");
+            return remoteGets.get();
+        }
+
+        @Override
+        public double getAvgLocalCommitTime() {
+            call("AvgLocalCommitTime");
+            return 200;
+        }
+
+        @Override
+        public double getAvgPrepareRtt() {
+            call("AvgPrepareRtt");
+            return 500 / (1 + mappingUpdates.get());
+        }
+
+        @Override
+        public double getAvgCommitRtt() {
+            call("AvgCommitRtt");
+            return 300;
+        }
+    }
+
+    private class Transactions implements TransactionsMBean {
+        @Override
+        public long getCommits() {
+            call("Commits");
+            return commits.addAndGet(100);
+        }
+    }
+
+    private class DataPlacementManager implements DataPlacementManagerMBean {
+        @Override
+        public void setLCRDMappings(Map<?, ?> transactionClassMap, Map<?, ?> clusterWeightMap) {
+            call("setLCRDMappings");
+            mappingUpdates.incrementAndGet();
+        }
+
+        @Override
+        public void updateLCRDMappingsDelta(Map<?, ?> transactionClassChanges, Map<?, ?> clusterWeightChanges) {
+            call("updateLCRDMappingsDelta");
+            mappingUpdates.incrementAndGet();
+        }
+
+        @Override
+        public void dataPlacementRequest() {
+            call("dataPlacementRequest");
+        }
+    }
+
+    private class LCRDLoadBalancePolicy implements LCRDLoadBalancePolicyMBean {
+        @Override
+        public void updateMappings(Map<?, ?> domainObjectClassMap, Map<?, ?> clusterWeightMap) {
+            call("updateMappings");
+            mappingUpdates.incrementAndGet();
+        }
+
+        @Override
+        public void updateMappingsDelta(Map<?, ?> domainObjectClassChanges, Map<?, ?> clusterWeightChanges) {
+            call("updateMappingsDelta");
+            mappingUpdates.incrementAndGet();
+        }
+    }
+
+    private class ReconfigurableReplicationManager implements ReconfigurableReplicationManagerMBean {
+        @Override
+        public String getCurrentProtocolId() {
+            call("CurrentProtocolId");
+            return currentProtocol;
+        }
+
+        @Override
+        public void switchTo(String protocol, boolean forceStop, boolean abortOnStop) {
+            call("switchTo");
+            currentProtocol = protocol;
+        }
+    }
+
+    private class Worker implements WorkerMBean {
+        @Override
+        public void setProtocol(String protocol) {
+            call("setProtocol");
+        }
+    }
+
+    private class CacheManager implements CacheManagerMBean {
+        @Override
+        public String getClusterMembers() {
+            call("ClusterMembers");
+            List<SimulatedNode> members = clusterMembers;
+            if (members == null) {
+                return "[" + getAddress() + "]";
+            }
+            StringBuilder builder = new StringBuilder("[");
+            for (SimulatedNode member : members) {
+                builder.append(builder.length() == 1 ? "" : ", ").append(member.getAddress());
+            }
+            return builder.append("]").toString();
+        }
+    }
+}
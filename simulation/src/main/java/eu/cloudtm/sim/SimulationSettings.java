@@ -0,0 +1,72 @@
+package eu.cloudtm.sim;
+
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * The behaviour of the simulated nodes: payload sizes, latency and failures of every remote call.
+ *
+ * @author Pedro Ruivo
+ * @since 1.0
+ */
+public class SimulationSettings {
+
+    private final String[] transactionClasses;
+    private final int domainClasses;
+    private final int attributesPerClass;
+    private final long latency;
+    private final long latencyJitter;
+    private final double failureRate;
+
+    public SimulationSettings(Properties properties) {
+        String txClassList = properties.getProperty("infinispan.transactionClasses");
+        this.transactionClasses = txClassList == null || txClassList.isEmpty() ? new String[0] : txClassList.split(",");
+        this.domainClasses = Integer.parseInt(properties.getProperty("sim.domainClasses", "50"));
+        this.attributesPerClass = Integer.parseInt(properties.getProperty("sim.attributesPerClass", "5"));
+        this.latency = Long.parseLong(properties.getProperty("sim.latency", "1"));
+        this.latencyJitter = Long.parseLong(properties.getProperty("sim.latencyJitter", "0"));
+        this.failureRate = Double.parseDouble(properties.getProperty("sim.failureRate", "0"));
+    }
+
+    public final String[] getTransactionClasses() {
+        return transactionClasses;
+    }
+
+    public final int getDomainClasses() {
+        return domainClasses;
+    }
+
+    public final int getAttributesPerClass() {
+        return attributesPerClass;
+    }
+
+    /**
+     * Simulates the latency of a remote call and fails it with probability {@code sim.failureRate}.
+     */
+    public final void call(Random random, String operation) {
+        long delay = latency + (latencyJitter > 0 ? (long) (random.nextDouble() * latencyJitter) : 0);
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted in " + operation);
+            }
+        }
+        if (failureRate > 0 && random.nextDouble() < failureRate) {
+            throw new IllegalStateException("Simulated failure in " + operation);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SimulationSettings{" +
+                "transactionClasses=" + transactionClasses.length +
+                ", domainClasses=" + domainClasses +
+                ", attributesPerClass=" + attributesPerClass +
+                ", latency=" + latency +
+                ", latencyJitter=" + latencyJitter +
+                ", failureRate=" + failureRate +
+                '}';
+    }
+}
@@ -0,0 +1,62 @@
+package eu.cloudtm.sim;
+
+import java.util.Random;
+
+/**
+ * Every transaction class accesses every attribute of every domain class with a random frequency. Only the payload
+ * size is meaningful.
+ *
+ * @author Pedro Ruivo
+ * @since 1.0
+ */
+public class UniformPayloadSource implements PayloadSource {
+
+    private final SimulationSettings settings;
+    private final Random random;
+
+    public UniformPayloadSource(SimulationSettings settings, long seed) {
+        this.settings = settings;
+        this.random = new Random(seed);
+    }
+
+    @Override
+    public String readAccessData(int node) {
+        return payload();
+    }
+
+    @Override
+    public String writeAccessData(int node) {
+        return payload();
+    }
+
+    @Override
+    public synchronized double arrivalRate(int node, String txClass) {
+        return random.nextDouble() * 100;
+    }
+
+    @Override
+    public synchronized long responseTime(int node, String txClass) {
+        return random.nextInt(10000);
+    }
+
+    private synchronized String payload() {
+        StringBuilder builder = new StringBuilder();
+        String[] txClasses = settings.getTransactionClasses();
+        for (int tx = 0; tx < txClasses.length; ++tx) {
+            if (tx != 0) {
+                builder.append('#');
+            }
+            builder.append(txClasses[tx]).append('_').append(random.nextInt(1000)).append(':');
+            for (int domain = 0; domain < settings.getDomainClasses(); ++domain) {
+                for (int attribute = 0; attribute < settings.getAttributesPerClass(); ++attribute) {
+                    if (domain != 0 || attribute != 0) {
+                        builder.append(';');
+                    }
+                    builder.append("sim.domain.Class").append(domain).append(".attribute").append(attribute)
+                            .append('=').append(1 + random.nextInt(100));
+                }
+            }
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,43 @@
+package eu.cloudtm.sim;
+
+/**
+ * Reports the accesses and the transaction statistics of a {@link WorkloadGenerator}.
+ *
+ * @author Pedro Ruivo
+ * @since 1.0
+ */
+public class WorkloadPayloadSource implements PayloadSource {
+
+    private final WorkloadGenerator generator;
+
+    public WorkloadPayloadSource(WorkloadGenerator generator) {
+        this.generator = generator;
+    }
+
+    @Override
+    public String readAccessData(int node) {
+        return generator.readAccessData(node);
+    }
+
+    @Override
+    public String writeAccessData(int node) {
+        return generator.writeAccessData(node);
+    }
+
+    @Override
+    public double arrivalRate(int node, String txClass) {
+        return generator.arrivalRate(node, txClass);
+    }
+
+    @Override
+    public long responseTime(int node, String txClass) {
+        return generator.responseTime(node, txClass);
+    }
+
+    @Override
+    public String toString() {
+        return "WorkloadPayloadSource{" +
+                "generator=" + generator +
+                '}';
+    }
+}
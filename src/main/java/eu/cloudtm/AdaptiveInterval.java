@@ -0,0 +1,49 @@
+package eu.cloudtm;
+
+/**
+ * The interval between two optimizations: it shrinks when the workload is changing and grows when it is stable.
+ *
+ * @author Pedro Ruivo
+ * @since 1.0
+ */
+public class AdaptiveInterval {
+
+    private final long minInterval;
+    private final long maxInterval;
+    private final double factor;
+    private long interval;
+
+    public AdaptiveInterval(long minInterval, long maxInterval, double factor) {
+        if (minInterval <= 0 || maxInterval < minInterval || factor <= 1) {
+            throw new IllegalArgumentException("Invalid interval [" + minInterval + "," + maxInterval + "] with factor " +
+                    factor);
+        }
+        this.minInterval = minInterval;
+        this.maxInterval = maxInterval;
+        this.factor = factor;
+        this.interval = minInterval;
+    }
+
+    public synchronized final long next(boolean changed) {
+        if (changed) {
+            interval = Math.max(minInterval, (long) (interval / factor));
+        } else {
+            interval = Math.min(maxInterval, (long) Math.ceil(interval * factor));
+        }
+        return interval;
+    }
+
+    public synchronized final long current() {
+        return interval;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "AdaptiveInterval{" +
+                "minInterval=" + minInterval +
+                ", maxInterval=" + maxInterval +
+                ", factor=" + factor +
+                ", interval=" + interval +
+                '}';
+    }
+}
@@ -1,16 +1,37 @@
 package eu.cloudtm;
 
 import eu.cloudtm.jmx.*;
+import eu.cloudtm.metrics.ManagerMetrics;
+import eu.cloudtm.optimizer.DecisionTreeProtocolOracle;
 import eu.cloudtm.optimizer.LCRDMappings;
 import eu.cloudtm.optimizer.LCRDOptimizer;
+import eu.cloudtm.optimizer.LocalityMonitor;
+import eu.cloudtm.optimizer.MappingCache;
 import eu.cloudtm.optimizer.MorphOptimizer;
+import eu.cloudtm.optimizer.PhaseScheduler;
+import eu.cloudtm.optimizer.ReconfigurationGuard;
+import eu.cloudtm.optimizer.ShadowEvaluator;
+import eu.cloudtm.sim.ClusterRecovery;
+import eu.cloudtm.sim.WorkloadGenerator;
+import eu.cloudtm.stats.ConvergenceMonitor;
+import eu.cloudtm.stats.DriftDetector;
 import eu.cloudtm.stats.ProcessedSample;
 import eu.cloudtm.stats.StatsCollector;
+import eu.cloudtm.stats.StatsTrace;
+import eu.cloudtm.stats.SubCollector;
 import org.apache.log4j.Logger;
 
 import javax.management.MBeanServerConnection;
 import javax.management.ObjectName;
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static eu.cloudtm.jmx.JmxManager.EMPTY_PARAMS;
 import static eu.cloudtm.jmx.JmxManager.EMPTY_SIGNATURE;
@@ -22,7 +43,12 @@ import static eu.cloudtm.jmx.JmxManager.EMPTY_SIGNATURE;
 public class Main {
 
     private static final Logger log = Logger.getLogger(Main.class);
+    //written by each target
+    private static final String[] TARGET_FILES = new String[]{"mapping.cache.file", "phase.file", "shadow.report",
+            "locality.record", "morph.oracle.record", "mapping.activeFile", "shadow.protocolModel"};
+    private final String target;
     private final JmxManager jmxManager;
+    private final JmxManager subCollectorManager;
     private final StatsCollector statsCollector;
     private final LCRDOptimizer optimizer;
     private final UpdateMappings updateMappings;
@@ -30,22 +56,56 @@ public class Main {
     private final FenixObjectNameFinder fenixObjectNameFinder;
     private final DapController dapController;
     private final MorphOptimizer morphOptimizer;
-    private volatile int collectionTime;
+    private final ReconfigurationGuard reconfigurationGuard;
+    private final DriftDetector driftDetector;
+    private final ConvergenceMonitor convergenceMonitor;
+    private final MappingCache mappingCache;
+    private final PhaseScheduler phaseScheduler;
+    private final ShadowEvaluator shadowEvaluator;
+    private final LocalityMonitor localityMonitor;
+    private final MembershipMonitor membershipMonitor;
+    private volatile float mappingWeightBand;
+    private volatile LCRDMappings lastMappings;
+    private LCRDMappings lastShadowMappings;
+    private volatile boolean shadowAction;
+    private Properties properties;
+    private long configModified;
 
     public Main() {
-        jmxManager = new JmxManager();
+        this(new JmxManager(), new JmxManager(), null);
+    }
+
+    /**
+     * @param target the name of the target managed, or {@code null} for the manager of the process. The managers of
+     *               the targets share its connections and do not update them.
+     */
+    private Main(JmxManager jmxManager, JmxManager subCollectorManager, String target) {
+        this.target = target;
+        this.jmxManager = jmxManager;
+        this.subCollectorManager = subCollectorManager;
         infinispanObjectNameFinder = new InfinispanObjectNameFinder();
         fenixObjectNameFinder = new FenixObjectNameFinder();
         optimizer = new LCRDOptimizer();
-        statsCollector = new StatsCollector(jmxManager, fenixObjectNameFinder, infinispanObjectNameFinder);
+        statsCollector = new StatsCollector(jmxManager, subCollectorManager, fenixObjectNameFinder,
+                infinispanObjectNameFinder);
         updateMappings = new UpdateMappings(jmxManager, fenixObjectNameFinder, infinispanObjectNameFinder);
-        dapController = new DapController(jmxManager, fenixObjectNameFinder);
-        morphOptimizer = new MorphOptimizer(jmxManager, infinispanObjectNameFinder, fenixObjectNameFinder);
+        dapController = new DapController(jmxManager, subCollectorManager, fenixObjectNameFinder);
+        reconfigurationGuard = new ReconfigurationGuard();
+        driftDetector = new DriftDetector();
+        convergenceMonitor = new ConvergenceMonitor();
+        mappingCache = new MappingCache();
+        phaseScheduler = new PhaseScheduler();
+        shadowEvaluator = new ShadowEvaluator();
+        localityMonitor = new LocalityMonitor(jmxManager, infinispanObjectNameFinder);
+        membershipMonitor = new MembershipMonitor(jmxManager, infinispanObjectNameFinder);
+        morphOptimizer = new MorphOptimizer(jmxManager, infinispanObjectNameFinder, fenixObjectNameFinder,
+                reconfigurationGuard, shadowEvaluator);
     }
 
     public static void main(String[] args) throws InterruptedException {
         Main main = new Main();
         main.reloadProperties();
+        ManagerMetrics.getInstance().register();
         //main.randomTest();
         //main.sendDummyData();
         if (args.length == 0) {
@@ -72,11 +132,103 @@ public class Main {
             main.sendPreComputedData3Clusters();
         } else if ("dap-round".equals(args[0])) {
             main.makeRound();
+        } else if ("daemon".equals(args[0])) {
+            main.runDaemon();
+        } else if ("sub-collector".equals(args[0])) {
+            main.runSubCollector();
+        } else if ("shadow".equals(args[0])) {
+            main.shadowAction = true;
+            main.reloadProperties();
+            main.runDaemon();
+        } else if ("train-oracle".equals(args[0])) {
+            if (args.length < 3) {
+                System.err.println("Expected: train-oracle <training-set.csv> <model-file> [max-depth] [min-leaf-size]");
+                System.exit(1);
+            }
+            int maxDepth = args.length > 3 ? Integer.parseInt(args[3]) : 6;
+            int minLeafSize = args.length > 4 ? Integer.parseInt(args[4]) : 2;
+            main.trainOracle(args[1], args[2], maxDepth, minLeafSize);
+        } else if ("generate-trace".equals(args[0])) {
+            if (args.length < 2) {
+                System.err.println("Expected: generate-trace <trace-file> [samples] [nodes]");
+                System.exit(1);
+            }
+            int samples = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+            int nodes = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+            main.generateTrace(args[1], samples, nodes);
+        } else if ("replay".equals(args[0])) {
+            if (args.length < 2) {
+                System.err.println("Expected: replay <trace-file>");
+                System.exit(1);
+            }
+            main.replayTrace(args[1]);
         }
         main.jmxManager.closeConnections();
+        main.subCollectorManager.closeConnections();
         System.exit(0);
     }
 
+    private void trainOracle(String trainingSet, String modelFile, int maxDepth, int minLeafSize) {
+        try {
+            DecisionTreeProtocolOracle oracle = DecisionTreeProtocolOracle.train(trainingSet, maxDepth, minLeafSize);
+            oracle.save(modelFile);
+            log.info("Trained " + oracle + " saved in " + modelFile);
+        } catch (IOException e) {
+            log.error("Error training the protocol oracle from " + trainingSet, e);
+        }
+    }
+
+    private void generateTrace(String traceFile, int samples, int nodes) {
+        WorkloadGenerator generator = new WorkloadGenerator(properties);
+        String[] transactionClasses = generator.getTransactionClasses();
+        StatsTrace trace = new StatsTrace(transactionClasses);
+        for (int i = 0; i < samples; ++i) {
+            generator.setPhase(generator.phaseOf(i));
+            StatsTrace.Sample sample = trace.addSample(String.valueOf(i), generator.getPlantedTransactionClusters());
+            for (int node = 0; node < nodes; ++node) {
+                double[] arrivalRate = new double[transactionClasses.length];
+                long[] responseTime = new long[transactionClasses.length];
+                for (int tx = 0; tx < transactionClasses.length; ++tx) {
+                    arrivalRate[tx] = generator.arrivalRate(node, transactionClasses[tx]);
+                    responseTime[tx] = generator.responseTime(node, transactionClasses[tx]);
+                }
+                sample.addNode(generator.readAccessData(node), generator.writeAccessData(node), arrivalRate,
+                        responseTime);
+            }
+        }
+        try {
+            trace.write(traceFile);
+            log.info("Written " + trace + " generated by " + generator + " to " + traceFile);
+        } catch (IOException e) {
+            log.error("Error writing trace to " + traceFile, e);
+        }
+    }
+
+    private void replayTrace(String traceFile) {
+        StatsTrace trace;
+        try {
+            trace = StatsTrace.read(traceFile);
+        } catch (IOException e) {
+            log.error("Error reading trace from " + traceFile, e);
+            return;
+        }
+        log.info("Replaying " + trace);
+        for (StatsTrace.Sample sample : trace.getSamples()) {
+            ProcessedSample processedSample = sample.process();
+            long start = System.nanoTime();
+            LCRDMappings mappings = optimizer.doOptimize(processedSample);
+            long duration = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            if (mappings == null) {
+                log.info("Sample " + sample.getId() + ": no clusters generated (" + duration + " ms)");
+                continue;
+            }
+            Map<String, Integer> expected = sample.getExpectedTransactionClusters();
+            log.info("Sample " + sample.getId() + ": " + mappings.getClusterWeightMap().size() + " clusters in " +
+                    duration + " ms" + (expected == null ? "" : ", adjusted Rand index=" +
+                    ClusterRecovery.adjustedRandIndex(expected, mappings.getTransactionClassMap())));
+        }
+    }
+
     private void enableTopKey(final boolean enabled) {
         jmxManager.perform(new JmxManager.MBeanConnectionAction() {
             @Override
@@ -258,43 +410,651 @@ public class Main {
         optimizer.generateClusters(map);
     }
 
+    /**
+     * Keeps the manager alive and schedules the LCRD rounds and the Morph evaluations. The connections are opened once
+     * and the interval between executions adapts to the workload: it shrinks after a change and grows while stable.
+     * With {@code daemon.lcrd.pipelined}, the LCRD rounds run back to back instead (see {@link #runPipeline}).
+     */
+    private void runDaemon() throws InterruptedException {
+        List<Main> targets = createTargets();
+        if (!targets.isEmpty()) {
+            runTargets(targets);
+            return;
+        }
+        log.info("Starting daemon...");
+        final boolean lcrdEnabled = Boolean.parseBoolean(properties.getProperty("daemon.lcrd.enabled", "true"));
+        final boolean pipelined = lcrdEnabled &&
+                Boolean.parseBoolean(properties.getProperty("daemon.lcrd.pipelined", "false"));
+        final boolean phasesEnabled = phaseScheduler.isEnabled();
+        final boolean morphEnabled = Boolean.parseBoolean(properties.getProperty("daemon.morph.enabled", "true"));
+        final long watchInterval = Long.parseLong(properties.getProperty("config.watchInterval", "10"));
+        //the pipeline keeps one thread busy and the phase and configuration checks must not wait for a collection
+        //window. The configuration check must not wait for the morph either
+        final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool((pipelined ? 2 : 1) +
+                (phasesEnabled ? 1 : 0) + (watchInterval > 0 ? 1 + (morphEnabled ? 1 : 0) : 0));
+        final ExecutorService optimizationExecutor = pipelined ? Executors.newSingleThreadExecutor() : null;
+        Runtime.getRuntime().addShutdownHook(new Thread("daemon-shutdown") {
+            @Override
+            public void run() {
+                log.info("Stopping daemon...");
+                scheduler.shutdownNow();
+                if (optimizationExecutor != null) {
+                    optimizationExecutor.shutdownNow();
+                }
+                try {
+                    scheduler.awaitTermination(10, TimeUnit.SECONDS);
+                    if (optimizationExecutor != null) {
+                        optimizationExecutor.awaitTermination(10, TimeUnit.SECONDS);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                jmxManager.closeConnections();
+                subCollectorManager.closeConnections();
+            }
+        });
+
+        jmxManager.openConnections();
+        if (pipelined) {
+            scheduler.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        runPipeline(optimizationExecutor);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+        } else if (lcrdEnabled && driftDetector.isEnabled()) {
+            final long probeInterval = Long.parseLong(properties.getProperty("drift.probeInterval", "30"));
+            scheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        probeRound();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } catch (RuntimeException e) {
+                        log.error("Error executing drift probe", e);
+                    }
+                }
+            }, 0, probeInterval, TimeUnit.SECONDS);
+        } else if (lcrdEnabled) {
+            scheduler.execute(new AdaptiveTask("lcrd-round", scheduler, createInterval("daemon.lcrd")) {
+                @Override
+                protected boolean execute() throws InterruptedException {
+                    return doRound();
+                }
+            });
+        }
+        if (morphEnabled) {
+            scheduler.execute(new AdaptiveTask("morph", scheduler, createInterval("daemon.morph")) {
+                @Override
+                protected boolean execute() {
+                    return morphRound();
+                }
+            });
+        }
+        if (phasesEnabled) {
+            final long checkInterval = Long.parseLong(properties.getProperty("phase.checkInterval", "60"));
+            scheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        applyNextPhase();
+                    } catch (RuntimeException e) {
+                        log.error("Error applying the next workload phase", e);
+                    }
+                }
+            }, checkInterval, checkInterval, TimeUnit.SECONDS);
+        }
+        scheduleConfigurationWatch(scheduler, watchInterval, Collections.<Main>emptyList());
+        while (!scheduler.awaitTermination(1, TimeUnit.MINUTES)) {
+            log.trace("Daemon is running");
+        }
+    }
+
+    /**
+     * @return one manager per name in {@code targets}, with the properties of that target
+     */
+    private List<Main> createTargets() {
+        List<Main> targets = new ArrayList<Main>();
+        String targetList = properties.getProperty("targets");
+        if (targetList == null || targetList.trim().isEmpty()) {
+            return targets;
+        }
+        for (String name : targetList.split(",")) {
+            if (name.trim().isEmpty()) {
+                continue;
+            }
+            Main main = new Main(jmxManager, null, name.trim());
+            main.shadowAction = shadowAction;
+            main.reloadProperties();
+            targets.add(main);
+        }
+        return targets;
+    }
+
+    /**
+     * @return the properties of the target: the {@code target.<name>.<key>} properties override {@code <key>}. The
+     *         files written by each target ({@link #TARGET_FILES}) get the target name as a suffix, unless overridden
+     */
+    static Properties targetProperties(Properties properties, String target) {
+        Properties result = new Properties();
+        String prefix = "target." + target + ".";
+        for (String key : properties.stringPropertyNames()) {
+            result.setProperty(key, properties.getProperty(key));
+        }
+        for (String key : TARGET_FILES) {
+            String file = properties.getProperty(key);
+            if (file != null && !file.isEmpty()) {
+                result.setProperty(key, targetFile(file, target));
+            }
+        }
+        for (String key : properties.stringPropertyNames()) {
+            if (key.startsWith(prefix)) {
+                result.setProperty(key.substring(prefix.length()), properties.getProperty(key));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the file with the target before the extension, e.g. {@code mappings.cache} becomes
+     *         {@code mappings-shop.cache}
+     */
+    private static String targetFile(String file, String target) {
+        int extension = file.lastIndexOf('.');
+        if (extension <= file.lastIndexOf(File.separatorChar) + 1) {
+            return file + "-" + target;
+        }
+        return file.substring(0, extension) + "-" + target + file.substring(extension);
+    }
+
+    /**
+     * Daemon of several targets over the same connections. The LCRD rounds of all targets run together: the DAP is
+     * toggled and the stats collected in one pass over the nodes, and each target is optimized with its own
+     * components. The collection window is the one of the first target. Morph runs per target.
+     */
+    private void runTargets(final List<Main> targets) throws InterruptedException {
+        log.info("Starting daemon for the targets " + targets + "...");
+        final long watchInterval = Long.parseLong(properties.getProperty("config.watchInterval", "10"));
+        final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1 + targets.size() +
+                (watchInterval > 0 ? 1 : 0));
+        Runtime.getRuntime().addShutdownHook(new Thread("daemon-shutdown") {
+            @Override
+            public void run() {
+                log.info("Stopping daemon...");
+                scheduler.shutdownNow();
+                try {
+                    scheduler.awaitTermination(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                jmxManager.closeConnections();
+            }
+        });
+
+        jmxManager.openConnections();
+        if (Boolean.parseBoolean(properties.getProperty("daemon.lcrd.enabled", "true"))) {
+            scheduler.execute(new AdaptiveTask("lcrd-round", scheduler, createInterval("daemon.lcrd")) {
+                @Override
+                protected boolean execute() throws InterruptedException {
+                    return doTargetsRound(targets);
+                }
+            });
+        }
+        for (final Main main : targets) {
+            if (Boolean.parseBoolean(main.properties.getProperty("daemon.morph.enabled", "true"))) {
+                scheduler.execute(new AdaptiveTask("morph-" + main.target, scheduler,
+                        main.createInterval("daemon.morph")) {
+                    @Override
+                    protected boolean execute() {
+                        return main.morphRound();
+                    }
+                });
+            }
+        }
+        scheduleConfigurationWatch(scheduler, watchInterval, targets);
+        while (!scheduler.awaitTermination(1, TimeUnit.MINUTES)) {
+            log.trace("Daemon is running");
+        }
+    }
+
+    /**
+     * Every {@code config.watchInterval} seconds, reloads the properties of this manager and of its targets if
+     * {@code config.properties} changed, and refreshes the membership (see {@link MembershipMonitor}). The nodes are
+     * updated incrementally. The daemon settings ({@code daemon.*}, {@code targets}) are only read at start.
+     */
+    private void scheduleConfigurationWatch(ScheduledExecutorService scheduler, long watchInterval,
+                                            final List<Main> targets) {
+        if (watchInterval <= 0) {
+            return;
+        }
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    long modified = new File("config.properties").lastModified();
+                    if (modified != configModified) {
+                        log.info("config.properties has changed. Reloading it...");
+                        reloadProperties();
+                        for (Main main : targets) {
+                            main.reloadProperties();
+                        }
+                    }
+                    membershipMonitor.refresh();
+                } catch (RuntimeException e) {
+                    log.error("Error reloading the configuration", e);
+                }
+            }
+        }, watchInterval, watchInterval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @return {@code true} if the mappings of any target changed
+     */
+    private boolean doTargetsRound(List<Main> targets) throws InterruptedException {
+        ManagerMetrics metrics = ManagerMetrics.getInstance();
+        long start = metrics.start();
+        try {
+            List<DapController> dapControllers = new ArrayList<DapController>(targets.size());
+            List<StatsCollector> statsCollectors = new ArrayList<StatsCollector>(targets.size());
+            for (Main main : targets) {
+                dapControllers.add(main.dapController);
+                statsCollectors.add(main.statsCollector);
+            }
+            DapController.setDapEnabled(jmxManager, dapControllers, true);
+            targets.get(0).convergenceMonitor.awaitCollection(targets.get(0).statsCollector);
+            DapController.setDapEnabled(jmxManager, dapControllers, false);
+
+            List<ProcessedSample> samples = StatsCollector.collectStats(jmxManager, statsCollectors);
+            boolean changed = false;
+            for (int i = 0; i < targets.size(); ++i) {
+                Main main = targets.get(i);
+                if (!main.statsCollector.hasQuorum()) {
+                    log.warn("Too few nodes responded. Skipping the optimization of " + main.target);
+                    continue;
+                }
+                try {
+                    log.info("Optimizing " + main.target + "...");
+                    changed |= main.optimize(samples.get(i));
+                } catch (RuntimeException e) {
+                    log.error("Error optimizing " + main.target, e);
+                }
+            }
+            return changed;
+        } finally {
+            metrics.record(ManagerMetrics.ROUND, start);
+            metrics.writeFile();
+        }
+    }
+
+    /**
+     * Serves the {@link SubCollector} MBean until the process is stopped. The nodes of the group are the
+     * {@code jmx.ips} of this process.
+     */
+    private void runSubCollector() throws InterruptedException {
+        log.info("Starting sub-collector...");
+        final CountDownLatch stopped = new CountDownLatch(1);
+        Runtime.getRuntime().addShutdownHook(new Thread("sub-collector-shutdown") {
+            @Override
+            public void run() {
+                log.info("Stopping sub-collector...");
+                jmxManager.closeConnections();
+                subCollectorManager.closeConnections();
+                stopped.countDown();
+            }
+        });
+        jmxManager.openConnections();
+        new SubCollector(statsCollector, dapController).register();
+        stopped.await();
+    }
+
+    /**
+     * Applies the protocol and the mappings of the next workload phase if its transition is expected soon.
+     */
+    private void applyNextPhase() {
+        if (shadowEvaluator.isEnabled()) {
+            return;
+        }
+        PhaseScheduler.Plan plan = phaseScheduler.nextTransition();
+        if (plan == null) {
+            return;
+        }
+        log.info("Applying the configuration of the next workload phase ahead of time: " + plan);
+        if (plan.getProtocol() != null) {
+            morphOptimizer.applyProtocol(plan.getProtocol());
+        }
+        if (plan.getMappings() != null) {
+            pushMappings(plan.getMappings());
+        }
+    }
+
+    private AdaptiveInterval createInterval(String prefix) {
+        long minInterval = Long.parseLong(properties.getProperty(prefix + ".minInterval", "60"));
+        long maxInterval = Long.parseLong(properties.getProperty(prefix + ".maxInterval", "1800"));
+        double factor = Double.parseDouble(properties.getProperty(prefix + ".factor", "2"));
+        return new AdaptiveInterval(minInterval, maxInterval, factor);
+    }
+
+    /**
+     * Only collects the transaction mix and triggers a full round if it has drifted from the last optimized workload.
+     * The access distribution is only known in a full round, so one is forced every {@code drift.fullRoundEvery}
+     * probes. It only optimizes if the accesses have drifted.
+     */
+    private boolean probeRound() throws InterruptedException {
+        ProcessedSample probe = statsCollector.collectTxStats();
+        if (!statsCollector.hasQuorum()) {
+            log.warn("Too few nodes responded to the probe. Skipping it.");
+            return false;
+        }
+        if (driftDetector.hasTxMixDrifted(probe)) {
+            log.info("Transaction mix has drifted. Performing a new round.");
+        } else if (driftDetector.isFullRoundDue()) {
+            log.info("Transaction mix is stable. Performing a new round to check the access distribution.");
+        } else {
+            log.debug("Transaction mix is stable. Skipping round.");
+            return false;
+        }
+        driftDetector.fullRound();
+        return doRound();
+    }
+
     private void makeRound() throws InterruptedException {
         log.info("Perform a new round");
         try {
             jmxManager.openConnections();
+            doRound();
+        } finally {
+            jmxManager.closeConnections();
+        }
+    }
+
+    /**
+     * @return {@code true} if the new mappings are different from the last ones pushed
+     */
+    private boolean doRound() throws InterruptedException {
+        ManagerMetrics metrics = ManagerMetrics.getInstance();
+        long start = metrics.start();
+        try {
+            return doRoundPhases();
+        } finally {
+            metrics.record(ManagerMetrics.ROUND, start);
+            metrics.writeFile();
+        }
+    }
+
+    private boolean doRoundPhases() throws InterruptedException {
+        log.debug("Enabling DAP...");
+        dapController.setDapEnabled(true);
+
+        convergenceMonitor.awaitCollection(statsCollector);
+
+        log.debug("Disabling DAP...");
+        dapController.setDapEnabled(false);
+
+        log.debug("Collecting statistics...");
+        ProcessedSample sample = statsCollector.collectStats();
+        log.debug("Statistics are " + sample);
+        if (!statsCollector.hasQuorum()) {
+            log.warn("Too few nodes responded. Skipping the optimization of this round.");
+            return false;
+        }
+
+        return optimize(sample);
+    }
 
-            log.debug("Enabling DAP...");
-            dapController.setDapEnabled(true);
+    /**
+     * Pipelined LCRD rounds: the DAP is re-enabled right after the statistics are harvested, so the next round is
+     * collected while this one is optimized and pushed in the {@code optimizationExecutor}. Each round takes one
+     * collection window. If the optimization is slower than the collection, the stale sample is dropped and only the
+     * most recent one is optimized.
+     * <p/>
+     * The samples handed to the optimization are never touched again by the collection thread.
+     */
+    private void runPipeline(ExecutorService optimizationExecutor) throws InterruptedException {
+        log.info("Starting pipelined rounds...");
+        final AtomicReference<ProcessedSample> pending = new AtomicReference<ProcessedSample>();
+        final Runnable optimization = new Runnable() {
+            @Override
+            public void run() {
+                ProcessedSample sample = pending.getAndSet(null);
+                if (sample == null) {
+                    //already optimized by a previous task
+                    return;
+                }
+                try {
+                    optimize(sample);
+                } catch (RuntimeException e) {
+                    log.error("Error optimizing", e);
+                } finally {
+                    ManagerMetrics.getInstance().writeFile();
+                }
+            }
+        };
+        ManagerMetrics metrics = ManagerMetrics.getInstance();
+        log.debug("Enabling DAP...");
+        dapController.setDapEnabled(true);
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                long start = metrics.start();
+                try {
+                    convergenceMonitor.awaitCollection(statsCollector);
 
-            Thread.sleep(collectionTime * 1000);
+                    log.debug("Harvesting statistics...");
+                    dapController.setDapEnabled(false);
+                    ProcessedSample sample = statsCollector.collectStats();
+                    dapController.setDapEnabled(true);
+                    log.debug("Statistics are " + sample);
 
+                    if (!statsCollector.hasQuorum()) {
+                        log.warn("Too few nodes responded. Skipping the optimization of this sample.");
+                    } else {
+                        if (pending.getAndSet(sample) != null) {
+                            log.warn("Optimization is slower than the collection. Dropping the previous sample.");
+                        }
+                        optimizationExecutor.execute(optimization);
+                    }
+                } catch (RuntimeException e) {
+                    log.error("Error executing pipelined round", e);
+                } finally {
+                    metrics.record(ManagerMetrics.ROUND, start);
+                }
+            }
+        } finally {
             log.debug("Disabling DAP...");
             dapController.setDapEnabled(false);
+        }
+    }
 
-            log.debug("Collecting statistics...");
-            ProcessedSample sample = statsCollector.collectStats();
-            log.debug("Statistics are " + sample);
+    /**
+     * Runs the protocol oracle, unless a configuration applied ahead of the next workload phase is held: the oracle
+     * would decide on the features of the previous phase and switch the protocol back.
+     *
+     * @return {@code true} if the oracle asked for a different protocol
+     */
+    private boolean morphRound() {
+        if (phaseScheduler.isHolding()) {
+            log.info("Holding the configuration applied ahead of the next workload phase. Skipping protocol " +
+                    "optimization.");
+            return false;
+        }
+        return morphOptimizer.optimize();
+    }
 
+    /**
+     * Optimizes the sample, if the workload has drifted, and pushes the new mappings.
+     *
+     * @return {@code true} if the new mappings are different from the last ones pushed
+     */
+    private boolean optimize(ProcessedSample sample) {
+        localityMonitor.measure(sample);
+        int phase = phaseScheduler.observe(sample);
+        if (phaseScheduler.isHolding()) {
+            log.info("Holding the configuration applied ahead of the next workload phase. Skipping optimization.");
+            return false;
+        }
+        //the reference only moves when the optimized mappings are applied, so a slow drift adds up
+        if (driftDetector.isEnabled() && !driftDetector.hasDrifted(sample)) {
+            log.info("Access pattern is stable. Skipping optimization.");
+            return false;
+        }
+
+        //the shadow mode evaluates the optimizer, not the cache
+        LCRDMappings mappings = shadowEvaluator.isEnabled() ? null : mappingCache.lookup(sample);
+        if (mappings == null) {
             log.debug("Optimizing...");
-            LCRDMappings mappings = optimizer.doOptimize(sample);
-            log.debug("Mappings are " + mappings);
+            optimizer.setAccessCosts(localityMonitor.getAccessCosts());
+            optimizer.setAttributeClasses(statsCollector.getAttributeClasses());
+            mappings = optimizer.doOptimize(sample);
+        }
+        log.debug("Mappings are " + mappings);
 
-            updateMappings.updateMappings(mappings);
-        } finally {
-            jmxManager.closeConnections();
+        if (shadowEvaluator.isEnabled()) {
+            shadowEvaluator.mappingRound(sample, mappings, lastMappings);
+            boolean changed = mappings != null && !mappings.isEquivalent(lastShadowMappings, mappingWeightBand);
+            lastShadowMappings = mappings;
+            if (mappings != null) {
+                driftDetector.setReference(sample);
+            }
+            return changed;
+        }
+
+        return pushAndRemember(sample, phase, mappings);
+    }
+
+    /**
+     * Pushes the mappings and, if they are in effect afterwards, remembers them for the sample. The phase thread also
+     * pushes mappings, so the push and the check are atomic.
+     *
+     * @return {@code true} if the mappings are different from the last ones pushed
+     */
+    private synchronized boolean pushAndRemember(ProcessedSample sample, int phase, LCRDMappings mappings) {
+        boolean changed = pushMappings(mappings);
+        if (mappings != null && mappings.isEquivalent(lastMappings, mappingWeightBand)) {
+            //only remember the mappings that are in effect
+            mappingCache.put(sample, lastMappings);
+            phaseScheduler.remember(phase, lastMappings, morphOptimizer.getActiveProtocol());
+            driftDetector.setReference(sample);
+        }
+        return changed;
+    }
+
+    /**
+     * @return {@code true} if the mappings are different from the last ones pushed
+     */
+    private synchronized boolean pushMappings(LCRDMappings mappings) {
+        if (mappings == null) {
+            return false;
+        }
+        if (mappings.isEquivalent(lastMappings, mappingWeightBand)) {
+            log.info("New mappings are equivalent to the current ones. Skipping update.");
+            return false;
+        }
+        if (!reconfigurationGuard.canReconfigure(ReconfigurationGuard.MAPPING)) {
+            return true;
+        }
+        if (!updateMappings.updateMappings(mappings).isAcknowledged()) {
+            log.warn("New mappings were not acknowledged. They will be pushed again in the next round.");
+            return true;
+        }
+        reconfigurationGuard.reconfigured(ReconfigurationGuard.MAPPING);
+        localityMonitor.mappingChanged(mappings);
+        lastMappings = mappings;
+        saveActiveMappings(mappings);
+        return true;
+    }
+
+    /**
+     * Saves the mappings in effect to {@code mapping.activeFile}, if set, for a shadow manager to compare with.
+     */
+    private void saveActiveMappings(LCRDMappings mappings) {
+        String file = properties.getProperty("mapping.activeFile");
+        if (file == null || file.isEmpty()) {
+            return;
+        }
+        try {
+            mappings.save(file);
+        } catch (IOException e) {
+            log.error("Error saving the active mappings to " + file, e);
         }
     }
 
     private void reloadProperties() {
         log.info("Reloading properties...");
+        configModified = new File("config.properties").lastModified();
         Properties properties = Utils.loadProperties("config.properties");
+        if (target != null) {
+            properties = targetProperties(properties, target);
+        }
         log.info("Properties are " + properties);
-        jmxManager.update(properties);
+        if (shadowAction) {
+            properties.setProperty("shadow.enabled", "true");
+        }
+        this.properties = properties;
+        if (target == null) {
+            membershipMonitor.update(properties);
+            jmxManager.update(membershipMonitor.membersProperties(properties));
+            subCollectorManager.update(StatsCollector.subCollectorProperties(properties));
+        }
         statsCollector.update(properties);
+        dapController.update(properties);
+        updateMappings.update(properties);
         infinispanObjectNameFinder.update(properties);
         fenixObjectNameFinder.update(properties);
         morphOptimizer.update(properties);
-        this.collectionTime = Integer.parseInt(properties.getProperty("collectionTime"));
+        reconfigurationGuard.update(properties);
+        driftDetector.update(properties);
+        convergenceMonitor.update(properties);
+        mappingCache.update(properties);
+        phaseScheduler.update(properties);
+        shadowEvaluator.update(properties);
+        localityMonitor.update(properties);
+        ManagerMetrics.getInstance().update(properties);
+        this.mappingWeightBand = Float.parseFloat(properties.getProperty("mapping.weightBand", "0.05"));
+    }
+
+    @Override
+    public String toString() {
+        return target == null ? "Main" : target;
+    }
+
+    private static abstract class AdaptiveTask implements Runnable {
+
+        private final String name;
+        private final ScheduledExecutorService scheduler;
+        private final AdaptiveInterval interval;
+
+        private AdaptiveTask(String name, ScheduledExecutorService scheduler, AdaptiveInterval interval) {
+            this.name = name;
+            this.scheduler = scheduler;
+            this.interval = interval;
+        }
+
+        @Override
+        public final void run() {
+            boolean changed = false;
+            try {
+                changed = execute();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException e) {
+                log.error("Error executing " + name, e);
+            }
+            long next = interval.next(changed);
+            log.info("Next " + name + " in " + next + " seconds (changed? " + changed + ")");
+            if (!scheduler.isShutdown()) {
+                scheduler.schedule(this, next, TimeUnit.SECONDS);
+            }
+        }
+
+        /**
+         * @return {@code true} if the workload has changed since the last execution
+         */
+        protected abstract boolean execute() throws InterruptedException;
     }
 
 }
@@ -1,19 +1,30 @@
 package eu.cloudtm.jmx;
 
+import eu.cloudtm.stats.SubCollector;
 import org.apache.log4j.Logger;
 
 import javax.management.MBeanServerConnection;
 import javax.management.ObjectName;
+import java.util.List;
+import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import static eu.cloudtm.jmx.JmxManager.EMPTY_PARAMS;
 import static eu.cloudtm.jmx.JmxManager.EMPTY_SIGNATURE;
 
 /**
+ * Enables and disables the DAP collection. The sub-collectors (see {@link SubCollector}) relay it to their nodes.
+ * <p/>
+ * In snapshot mode ({@code stats.snapshot.enabled}), all the nodes are enabled and disabled at the same instant (see
+ * {@link JmxManager#performAligned(JmxManager.AlignedAction)}), so the frozen DAP counters of every node cover the same
+ * interval and can be read one node after another.
+ *
  * @author Pedro Ruivo
  * @since 1.0
  */
-public class DapController implements JmxManager.MBeanConnectionAction {
+public class DapController implements JmxManager.AlignedAction {
 
     private static final Logger log = Logger.getLogger(DapController.class);
     private static final String[] ENABLE_DAP_METHODS = new String[]{
@@ -25,26 +36,89 @@ public class DapController implements JmxManager.MBeanConnectionAction {
             "disableWriteStatisticCollection",
             "disableReadStatisticCollection"};
     private final JmxManager jmxManager;
+    private final JmxManager subCollectors;
     private final FenixObjectNameFinder fenixObjectNameFinder;
+    private final ConcurrentMap<String, Set<ObjectName>> preparedNames;
     private volatile boolean enabled;
+    private volatile boolean snapshot;
 
     public DapController(JmxManager jmxManager, FenixObjectNameFinder fenixObjectNameFinder) {
+        this(jmxManager, null, fenixObjectNameFinder);
+    }
+
+    public DapController(JmxManager jmxManager, JmxManager subCollectors, FenixObjectNameFinder fenixObjectNameFinder) {
         this.jmxManager = jmxManager;
+        this.subCollectors = subCollectors;
         this.fenixObjectNameFinder = fenixObjectNameFinder;
+        this.preparedNames = new ConcurrentHashMap<String, Set<ObjectName>>();
+    }
+
+    public final void update(Properties properties) {
+        snapshot = Boolean.parseBoolean(properties.getProperty("stats.snapshot.enabled", "false"));
+        log.info("DAP controller: snapshot? " + snapshot);
     }
 
     public final void setDapEnabled(boolean enabled) {
         log.info("DAP controller: enable? " + enabled);
         this.enabled = enabled;
-        jmxManager.perform(this);
+        perform(jmxManager, this, snapshot);
+        if (subCollectors != null) {
+            perform(subCollectors, this, snapshot);
+        }
+    }
+
+    /**
+     * Enables or disables the DAP of several targets (see {@code targets}) in a single pass over the nodes. The
+     * sub-collectors are not relayed.
+     */
+    public static void setDapEnabled(JmxManager jmxManager, final List<DapController> controllers, boolean enabled) {
+        log.info("DAP controller of " + controllers.size() + " targets: enable? " + enabled);
+        boolean snapshot = false;
+        for (DapController controller : controllers) {
+            controller.enabled = enabled;
+            snapshot |= controller.snapshot;
+        }
+        perform(jmxManager, new JmxManager.AlignedAction() {
+            @Override
+            public void prepare(MBeanServerConnection connection, String hostAddress, int port) {
+                for (DapController controller : controllers) {
+                    controller.prepare(connection, hostAddress, port);
+                }
+            }
+
+            @Override
+            public void perform(MBeanServerConnection connection, String hostAddress, int port) {
+                for (DapController controller : controllers) {
+                    controller.perform(connection, hostAddress, port);
+                }
+            }
+
+            @Override
+            public String toString() {
+                return "DapController" + controllers;
+            }
+        }, snapshot);
+    }
+
+    /**
+     * Looks up the DAP component before the snapshot epoch.
+     */
+    @Override
+    public void prepare(MBeanServerConnection connection, String hostAddress, int port) {
+        preparedNames.put(hostAddress + ":" + port, fenixObjectNameFinder.findFenixComponent(connection,
+                "DapRemoteManager"));
     }
 
     @Override
     public void perform(MBeanServerConnection connection, String hostAddress, int port) {
         log.debug("DAP controller on " + hostAddress + " (" + port + ")");
-        Set<ObjectName> objectNameSet = fenixObjectNameFinder.findFenixComponent(connection, "DapRemoteManager");
+        Set<ObjectName> objectNameSet = preparedNames.remove(hostAddress + ":" + port);
+        if (objectNameSet == null) {
+            objectNameSet = fenixObjectNameFinder.findFenixComponent(connection, "DapRemoteManager");
+        }
         log.debug("DAP controller on " + hostAddress + " (" + port + "). Found: " + objectNameSet);
         if (objectNameSet.isEmpty()) {
+            relay(connection, hostAddress, port);
             return;
         }
         try {
@@ -57,10 +131,31 @@ public class DapController implements JmxManager.MBeanConnectionAction {
         }
     }
 
+    private static void perform(JmxManager manager, JmxManager.AlignedAction action, boolean snapshot) {
+        if (snapshot) {
+            manager.performAligned(action);
+        } else {
+            manager.perform(action);
+        }
+    }
+
+    private void relay(MBeanServerConnection connection, String hostAddress, int port) {
+        try {
+            ObjectName subCollector = new ObjectName(SubCollector.OBJECT_NAME);
+            if (connection.isRegistered(subCollector)) {
+                connection.invoke(subCollector, enabled ? "enableDap" : "disableDap", EMPTY_PARAMS, EMPTY_SIGNATURE);
+                log.debug("DAP controller relayed to the sub-collector " + hostAddress + " (" + port + ")");
+            }
+        } catch (Exception e) {
+            log.error("Error in DAP controller", e);
+        }
+    }
+
     @Override
     public String toString() {
         return "DapController{" +
                 "enabled=" + enabled +
+                ", snapshot=" + snapshot +
                 '}';
     }
 }
@@ -1,21 +1,55 @@
 package eu.cloudtm.jmx;
 
 import eu.cloudtm.Utils;
+import eu.cloudtm.metrics.ManagerMetrics;
 import org.apache.log4j.Logger;
 
 import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
 import javax.management.remote.JMXConnector;
 import javax.management.remote.JMXConnectorFactory;
 import javax.management.remote.JMXServiceURL;
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.net.InetAddress;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
+ * The connections to the nodes.
+ * <p/>
+ * Every remote call made through the connections has a deadline: {@code jmx.callTimeout} milliseconds, or
+ * {@code jmx.callTimeout.<operation or attribute>} for a specific one. A call past its deadline fails with an
+ * {@link IOException} and the following calls to the same node fail immediately until the end of the
+ * {@link #perform(MBeanConnectionAction)}, so a hung node costs one deadline per round. After
+ * {@code jmx.breaker.failures} consecutive failed rounds, the node is excluded for {@code jmx.breaker.openTime}
+ * seconds, after which a single round is tried again.
+ * <p/>
+ * The membership is updated incrementally: the nodes kept keep their connection, the removed ones are closed and the
+ * added ones are resolved and, if the connections are open, connected in parallel.
+ * <p/>
+ * {@link #performAligned(AlignedAction)} performs an action in all the nodes at the same instant (a snapshot epoch)
+ * instead of one node after another.
+ *
  * @author Pedro Ruivo
  * @since 1.0
  */
@@ -25,31 +59,112 @@ public class JmxManager {
     public static final Object[] EMPTY_PARAMS = new Object[0];
     private static final JmxMachine[] EMPTY_MACHINES = new JmxMachine[0];
     private static final Logger log = Logger.getLogger(JmxManager.class);
-    //private static final String JMX_URL_FORMAT = "service:jmx:rmi:///jndi/rmi://%s:%s/jmxrmi";
+    public static final String RMI_JMX_URL_FORMAT = "service:jmx:rmi:///jndi/rmi://%s:%s/jmxrmi";
     private static final String JMX_URL_FORMAT = "service:jmx:remoting-jmx://%s:%s";
+    private static final String CALL_TIMEOUT = "jmx.callTimeout";
+    //a timed out call may never return, so the calls are not bounded to a fixed number of threads
+    private static final ExecutorService CALL_EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "jmx-call");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
     protected JmxMachine[] machines;
+    private String jmxUrlFormat = JMX_URL_FORMAT;
+    private volatile long callTimeout = 10000;
+    private volatile long connectTimeout = 10000;
+    private volatile Map<String, Long> operationTimeouts = new HashMap<String, Long>();
+    private volatile int breakerFailures = 3;
+    private volatile long breakerOpenTime = 60000;
+    private volatile double quorum = 0.5;
+    private boolean connectionsOpen;
 
     public synchronized final void update(Properties properties) {
-        String allIps = properties.getProperty("jmx.ips");
-        if (allIps == null || allIps.isEmpty()) {
+        String urlFormat = properties.getProperty("jmx.urlFormat", JMX_URL_FORMAT);
+        if (!urlFormat.equals(jmxUrlFormat) && machines != null) {
+            //the urls of all the machines change
+            closeConnections();
             machines = EMPTY_MACHINES;
-            log.info("Updated Ips: " + Arrays.toString(machines));
-            return;
         }
-        List<JmxMachine> jmxUrlsList = new ArrayList<JmxMachine>();
-        for (String ipAndPort : allIps.split(",")) {
-            JmxMachine machine = create(ipAndPort);
+        jmxUrlFormat = urlFormat;
+        callTimeout = Long.parseLong(properties.getProperty(CALL_TIMEOUT, "10000"));
+        connectTimeout = Long.parseLong(properties.getProperty("jmx.connectTimeout", "10000"));
+        Map<String, Long> timeouts = new HashMap<String, Long>();
+        for (String key : properties.stringPropertyNames()) {
+            if (key.startsWith(CALL_TIMEOUT + ".")) {
+                timeouts.put(key.substring(CALL_TIMEOUT.length() + 1), Long.parseLong(properties.getProperty(key)));
+            }
+        }
+        operationTimeouts = timeouts;
+        breakerFailures = Integer.parseInt(properties.getProperty("jmx.breaker.failures", "3"));
+        breakerOpenTime = Long.parseLong(properties.getProperty("jmx.breaker.openTime", "60")) * 1000;
+        quorum = Double.parseDouble(properties.getProperty("jmx.quorum", "0.5"));
+        log.info("Deadlines: call=" + callTimeout + "ms, connect=" + connectTimeout + "ms, operations=" + timeouts +
+                ". Breaker: failures=" + breakerFailures + ", openTime=" + breakerOpenTime + "ms. Quorum=" + quorum);
+        String allIps = properties.getProperty("jmx.ips");
+        updateMembers(allIps == null || allIps.isEmpty() ? new ArrayList<String>(0) : Arrays.asList(allIps.split(",")));
+    }
+
+    /**
+     * @param members the {@code host:port} of the nodes
+     * @return {@code true} if the membership changed
+     */
+    public synchronized final boolean updateMembers(Collection<String> members) {
+        Map<String, JmxMachine> current = new HashMap<String, JmxMachine>();
+        if (machines != null) {
+            for (JmxMachine machine : machines) {
+                current.put(machine.address, machine);
+            }
+        }
+        List<String> addresses = new ArrayList<String>(members.size());
+        Map<String, JmxMachine> kept = new HashMap<String, JmxMachine>();
+        Map<String, Future<JmxMachine>> resolving = new HashMap<String, Future<JmxMachine>>();
+        for (String member : members) {
+            final String address = member.trim();
+            if (address.isEmpty() || addresses.contains(address)) {
+                continue;
+            }
+            addresses.add(address);
+            JmxMachine machine = current.remove(address);
             if (machine != null) {
-                jmxUrlsList.add(machine);
+                kept.put(address, machine);
+            } else {
+                resolving.put(address, CALL_EXECUTOR.submit(new Callable<JmxMachine>() {
+                    @Override
+                    public JmxMachine call() {
+                        return create(address);
+                    }
+                }));
             }
         }
-        if (jmxUrlsList.size() > 0) {
-            machines = new JmxMachine[jmxUrlsList.size()];
-            jmxUrlsList.toArray(machines);
-        } else {
-            machines = EMPTY_MACHINES;
+        List<JmxMachine> jmxUrlsList = new ArrayList<JmxMachine>(addresses.size());
+        List<JmxMachine> added = new ArrayList<JmxMachine>(resolving.size());
+        for (String address : addresses) {
+            JmxMachine machine = kept.get(address);
+            if (machine == null) {
+                machine = join(resolving.get(address), address);
+                if (machine == null) {
+                    continue;
+                }
+                added.add(machine);
+            }
+            jmxUrlsList.add(machine);
+        }
+        for (JmxMachine removed : current.values()) {
+            Utils.safeClose(removed);
+        }
+        machines = jmxUrlsList.isEmpty() ? EMPTY_MACHINES : jmxUrlsList.toArray(new JmxMachine[jmxUrlsList.size()]);
+        if (connectionsOpen) {
+            connect(added);
+        }
+        boolean changed = !added.isEmpty() || !current.isEmpty();
+        if (changed) {
+            log.info("Updated Ips: " + Arrays.toString(machines) + ". Added " + added + ", removed " +
+                    current.values());
         }
-        log.info("Updated Ips: " + Arrays.toString(machines));
+        return changed;
     }
 
     public synchronized final void openConnections() {
@@ -65,25 +180,153 @@ public class JmxManager {
         for (JmxMachine machine : machines) {
             machine.createConnector();
         }
+        connectionsOpen = true;
     }
 
-    public synchronized final void perform(MBeanConnectionAction action) {
+    /**
+     * @return {@code true} if at least {@code jmx.quorum} of the nodes were reached without a failed call
+     */
+    public synchronized final boolean perform(MBeanConnectionAction action) {
         log.debug("Perform " + action + " on " + Arrays.toString(machines));
         if (machines == null) {
-            return;
+            return true;
         }
+        ManagerMetrics metrics = ManagerMetrics.getInstance();
+        int responsive = 0;
         for (JmxMachine machine : machines) {
+            metrics.setCurrentNode(machine.ip + ":" + machine.port);
+            machine.startRound();
+            try {
+                MBeanServerConnection connection = machine.getConnection();
+                if (connection != null) {
+                    action.perform(connection, machine.ip, machine.port);
+                    if (machine.endRound()) {
+                        responsive++;
+                    }
+                } else {
+                    log.debug("Unable to perform " + action + " in " + machine);
+                }
+            } finally {
+                metrics.setCurrentNode(null);
+            }
+        }
+        boolean reached = responsive >= Math.ceil(quorum * machines.length);
+        if (!reached) {
+            log.warn("Only " + responsive + " of " + machines.length + " nodes responded to " + action);
+        }
+        return reached;
+    }
+
+    /**
+     * Performs the action in all the nodes in parallel. Each node is prepared in its own thread and, when all of them
+     * are, they are released at the same instant. The delay between that instant and the start of each node is
+     * recorded as the {@link ManagerMetrics#SNAPSHOT_SKEW}. The action must be thread safe.
+     *
+     * @return {@code true} if at least {@code jmx.quorum} of the nodes were reached without a failed call
+     */
+    public synchronized final boolean performAligned(final AlignedAction action) {
+        log.debug("Perform aligned " + action + " on " + Arrays.toString(machines));
+        if (machines == null || machines.length == 0) {
+            return true;
+        }
+        final CountDownLatch prepared = new CountDownLatch(machines.length);
+        final CountDownLatch released = new CountDownLatch(1);
+        final long[] epoch = new long[1];
+        List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>(machines.length);
+        for (final JmxMachine machine : machines) {
+            futures.add(CALL_EXECUTOR.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws InterruptedException {
+                    ManagerMetrics metrics = ManagerMetrics.getInstance();
+                    metrics.setCurrentNode(machine.ip + ":" + machine.port);
+                    machine.startRound();
+                    MBeanServerConnection connection = null;
+                    try {
+                        connection = machine.getConnection();
+                        if (connection != null) {
+                            action.prepare(connection, machine.ip, machine.port);
+                        } else {
+                            log.debug("Unable to perform " + action + " in " + machine);
+                        }
+                    } finally {
+                        prepared.countDown();
+                    }
+                    try {
+                        released.await();
+                        if (connection == null) {
+                            return false;
+                        }
+                        metrics.record(ManagerMetrics.SNAPSHOT_SKEW, epoch[0]);
+                        action.perform(connection, machine.ip, machine.port);
+                        return machine.endRound();
+                    } finally {
+                        metrics.setCurrentNode(null);
+                    }
+                }
+            }));
+        }
+        int responsive = 0;
+        try {
+            //the preparation calls are bounded by the deadlines
+            prepared.await();
+            epoch[0] = ManagerMetrics.getInstance().start();
+            released.countDown();
+            for (int i = 0; i < futures.size(); ++i) {
+                try {
+                    if (futures.get(i).get()) {
+                        responsive++;
+                    }
+                } catch (ExecutionException e) {
+                    log.error("Error performing " + action + " in " + machines[i], e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            for (Future<Boolean> future : futures) {
+                future.cancel(true);
+            }
+            return false;
+        }
+        boolean reached = responsive >= Math.ceil(quorum * machines.length);
+        if (!reached) {
+            log.warn("Only " + responsive + " of " + machines.length + " nodes responded to " + action);
+        }
+        return reached;
+    }
+
+    /**
+     * @return the number of nodes, reachable or not
+     */
+    public synchronized final int getNumberOfMachines() {
+        return machines == null ? 0 : machines.length;
+    }
+
+    /**
+     * Starts a round in every node: a node whose call fails is skipped until the next round, and a node that succeeds
+     * must end it with {@link NodeConnection#acknowledged()} to reset its breaker count.
+     *
+     * @return the nodes with an open connection, in the configured order. The connections can be used concurrently.
+     */
+    public synchronized final List<NodeConnection> getConnections() {
+        if (machines == null) {
+            return new ArrayList<NodeConnection>(0);
+        }
+        List<NodeConnection> connections = new ArrayList<NodeConnection>(machines.length);
+        for (JmxMachine machine : machines) {
+            machine.startRound();
             MBeanServerConnection connection = machine.getConnection();
             if (connection != null) {
-                action.perform(connection, machine.ip, machine.port);
+                connections.add(new NodeConnection(machine, connection));
             } else {
-                log.debug("Unable to perform " + action + " in " + machine);
+                log.debug("No connection to " + machine);
             }
         }
+        return connections;
     }
 
     public synchronized final void closeConnections() {
         log.debug("Try close connections to " + Arrays.toString(machines));
+        connectionsOpen = false;
         if (machines == null) {
             return;
         }
@@ -92,13 +335,43 @@ public class JmxManager {
         }
     }
 
+    /**
+     * Connects the machines in parallel, each one bounded by {@code jmx.connectTimeout}.
+     */
+    private void connect(List<JmxMachine> toConnect) {
+        List<Future<?>> futures = new ArrayList<Future<?>>(toConnect.size());
+        for (final JmxMachine machine : toConnect) {
+            futures.add(CALL_EXECUTOR.submit(new Runnable() {
+                @Override
+                public void run() {
+                    machine.createConnector();
+                }
+            }));
+        }
+        for (int i = 0; i < futures.size(); ++i) {
+            join(futures.get(i), toConnect.get(i));
+        }
+    }
+
+    private static <T> T join(Future<T> future, Object description) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            log.error("Error adding " + description, e.getCause());
+        }
+        return null;
+    }
+
     private JmxMachine create(String ipAndPort) {
         try {
             String[] split = ipAndPort.split(":", 2);
             if (split.length != 2) {
                 return null;
             }
-            return new JmxMachine(InetAddress.getByName(split[0]).getHostAddress(), Integer.parseInt(split[1]));
+            return new JmxMachine(ipAndPort, InetAddress.getByName(split[0]).getHostAddress(),
+                    Integer.parseInt(split[1]));
         } catch (Exception e) {
             return null;
         }
@@ -108,42 +381,215 @@ public class JmxManager {
         void perform(MBeanServerConnection connection, String hostAddress, int port);
     }
 
-    private class JmxMachine implements Closeable {
+    /**
+     * An action of {@link #performAligned(AlignedAction)}. The lookups are done in {@link #prepare}, before the epoch,
+     * so that {@link #perform} only does the calls that must be aligned.
+     */
+    public static interface AlignedAction extends MBeanConnectionAction {
+        void prepare(MBeanServerConnection connection, String hostAddress, int port);
+    }
+
+    public static class NodeConnection {
+        private final String hostAddress;
+        private final int port;
+        private final MBeanServerConnection connection;
+        private final JmxMachine machine;
+
+        private NodeConnection(JmxMachine machine, MBeanServerConnection connection) {
+            this.hostAddress = machine.ip;
+            this.port = machine.port;
+            this.connection = connection;
+            this.machine = machine;
+        }
+
+        /**
+         * Ends the round of the node after a successful call.
+         *
+         * @return {@code true} if no call failed in this round
+         */
+        public final boolean acknowledged() {
+            return machine.endRound();
+        }
+
+        public final String getHostAddress() {
+            return hostAddress;
+        }
+
+        public final int getPort() {
+            return port;
+        }
+
+        public final MBeanServerConnection getConnection() {
+            return connection;
+        }
+
+        @Override
+        public String toString() {
+            return hostAddress + ":" + port;
+        }
+    }
+
+    private class JmxMachine implements Closeable, InvocationHandler {
+        private final String address;
         private final String ip;
         private final int port;
         private final String jmxUrl;
         private volatile JMXConnector connector;
+        private volatile MBeanServerConnection connection;
+        private volatile MBeanServerConnection deadlineConnection;
+        private volatile boolean roundFailed;
+        private int failedRounds;
+        private long excludedUntil;
 
-        private JmxMachine(String ip, int port) {
+        private JmxMachine(String address, String ip, int port) {
+            this.address = address;
             this.ip = ip;
             this.port = port;
-            this.jmxUrl = String.format(JMX_URL_FORMAT, ip, port);
+            this.jmxUrl = String.format(jmxUrlFormat, ip, port);
         }
 
+        /**
+         * @return the connection with deadlines, or {@code null} if the node is unreachable or excluded
+         */
         public final MBeanServerConnection getConnection() {
+            if (isExcluded()) {
+                log.debug(this + " is excluded. Skipping it");
+                return null;
+            }
             try {
                 if (tryConnect()) {
-                    return connector.getMBeanServerConnection();
+                    MBeanServerConnection current = connector.getMBeanServerConnection();
+                    if (current != connection || deadlineConnection == null) {
+                        connection = current;
+                        deadlineConnection = (MBeanServerConnection) Proxy.newProxyInstance(
+                                MBeanServerConnection.class.getClassLoader(),
+                                new Class<?>[]{MBeanServerConnection.class}, this);
+                    }
+                    return deadlineConnection;
                 }
             } catch (IOException e) {
                 log.error("Error creating connection for " + this, e);
+                failed();
                 internalClose();
             }
             return null;
         }
 
         public final void createConnector() {
-            if (connector != null) {
+            if (connector != null || isExcluded()) {
                 return;
             }
+            ManagerMetrics metrics = ManagerMetrics.getInstance();
+            long start = metrics.start();
             try {
-                connector = JMXConnectorFactory.connect(new JMXServiceURL(jmxUrl));
+                connector = call(new Callable<JMXConnector>() {
+                    @Override
+                    public JMXConnector call() throws Exception {
+                        return JMXConnectorFactory.connect(new JMXServiceURL(jmxUrl));
+                    }
+                }, "connect", connectTimeout);
             } catch (Exception e) {
                 log.error("Error creating connector for " + this, e);
+                failed();
                 internalClose();
+            } finally {
+                metrics.record(ManagerMetrics.CONNECT, ip + ":" + port, start);
             }
         }
 
+        @Override
+        public Object invoke(Object proxy, final Method method, final Object[] args) throws Throwable {
+            if (method.getDeclaringClass() == Object.class) {
+                return method.invoke(this, args);
+            }
+            final String operation = operation(method, args);
+            if (roundFailed) {
+                throw new IOException("Skipping " + operation + " in " + this + ": a previous call failed");
+            }
+            Long timeout = operationTimeouts.get(operation);
+            final MBeanServerConnection target = connection;
+            try {
+                return call(new Callable<Object>() {
+                    @Override
+                    public Object call() throws Exception {
+                        return method.invoke(target, args);
+                    }
+                }, operation, timeout == null ? callTimeout : timeout);
+            } catch (InvocationTargetException e) {
+                if (e.getCause() instanceof IOException && !isCancelled(e.getCause())) {
+                    failed();
+                }
+                throw e.getCause();
+            } catch (IOException e) {
+                if (!isCancelled(e)) {
+                    failed();
+                }
+                throw e;
+            }
+        }
+
+        /**
+         * @return {@code true} if the call was interrupted by the caller (e.g. a node that lost a race), which is not
+         *         a failure of the node
+         */
+        private boolean isCancelled(Throwable throwable) {
+            return throwable instanceof InterruptedIOException || Thread.currentThread().isInterrupted();
+        }
+
+        private <T> T call(Callable<T> callable, String operation, long timeout) throws Exception {
+            Future<T> future = CALL_EXECUTOR.submit(callable);
+            try {
+                return future.get(timeout, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                future.cancel(true);
+                ManagerMetrics.getInstance().increment(ManagerMetrics.JMX_TIMEOUTS, ip + ":" + port, 1);
+                throw new IOException(operation + " in " + this + " timed out after " + timeout + " ms");
+            } catch (InterruptedException e) {
+                future.cancel(true);
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(operation + " in " + this + " was interrupted");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof Exception) {
+                    throw (Exception) cause;
+                }
+                throw new IOException(operation + " in " + this + " failed", cause);
+            }
+        }
+
+        private void startRound() {
+            roundFailed = false;
+        }
+
+        /**
+         * @return {@code true} if no call failed since {@link #startRound()}
+         */
+        private synchronized boolean endRound() {
+            if (roundFailed) {
+                return false;
+            }
+            failedRounds = 0;
+            return true;
+        }
+
+        private synchronized void failed() {
+            if (roundFailed) {
+                return;
+            }
+            roundFailed = true;
+            if (++failedRounds >= breakerFailures) {
+                excludedUntil = System.currentTimeMillis() + breakerOpenTime;
+                failedRounds = breakerFailures - 1;
+                ManagerMetrics.getInstance().increment(ManagerMetrics.NODE_EXCLUSIONS, ip + ":" + port, 1);
+                log.warn(this + " failed " + breakerFailures + " rounds in a row. Excluded for " + breakerOpenTime +
+                        " ms");
+            }
+        }
+
+        private synchronized boolean isExcluded() {
+            return System.currentTimeMillis() < excludedUntil;
+        }
+
         @Override
         public void close() throws IOException {
             internalClose();
@@ -159,18 +605,45 @@ public class JmxManager {
 
         private boolean tryConnect() throws IOException {
             createConnector();
-            if (connector == null) {
+            final JMXConnector current = connector;
+            if (current == null) {
                 return false;
             }
-            connector.connect();
+            try {
+                call(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        current.connect();
+                        return null;
+                    }
+                }, "connect", connectTimeout);
+            } catch (IOException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException("Error connecting to " + this, e);
+            }
             return true;
         }
 
         private void internalClose() {
             JMXConnector connector1 = connector;
             connector = null;
+            connection = null;
+            deadlineConnection = null;
             Utils.safeClose(connector1);
         }
     }
 
+    /**
+     * @return the operation or attribute name of the call, used to find its deadline
+     */
+    private static String operation(Method method, Object[] args) {
+        String name = method.getName();
+        if (("invoke".equals(name) || "getAttribute".equals(name)) && args != null && args.length > 1 &&
+                args[0] instanceof ObjectName && args[1] instanceof String) {
+            return (String) args[1];
+        }
+        return name;
+    }
+
 }
@@ -0,0 +1,133 @@
+package eu.cloudtm.jmx;
+
+import org.apache.log4j.Logger;
+
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Keeps the nodes of the {@link JmxManager} in sync with the Infinispan cluster: the membership attribute
+ * ({@code jmx.membership.attribute}) of the {@code CacheManager} component is read from the first node that answers
+ * and the members become the new {@code jmx.ips}.
+ * <p/>
+ * The members are expected as {@code [host:port, ...]}. If {@code jmx.membership.port} is set, it replaces the port of
+ * every member, for the attributes that list the cluster addresses instead of the JMX ones. Once read, the membership
+ * replaces {@code jmx.ips} when the properties are reloaded (see {@link #membersProperties(Properties)}), which then only
+ * seeds the first read.
+ *
+ * @author Pedro Ruivo
+ * @since 1.0
+ */
+public class MembershipMonitor implements JmxManager.MBeanConnectionAction {
+
+    private static final Logger log = Logger.getLogger(MembershipMonitor.class);
+    private final JmxManager jmxManager;
+    private final InfinispanObjectNameFinder infinispanObjectNameFinder;
+    private volatile boolean enabled;
+    private volatile String attribute;
+    private volatile String port;
+    private List<String> members;
+    private volatile List<String> lastMembers;
+
+    public MembershipMonitor(JmxManager jmxManager, InfinispanObjectNameFinder infinispanObjectNameFinder) {
+        this.jmxManager = jmxManager;
+        this.infinispanObjectNameFinder = infinispanObjectNameFinder;
+    }
+
+    public final void update(Properties properties) {
+        this.enabled = Boolean.parseBoolean(properties.getProperty("jmx.membership.enabled", "false"));
+        this.attribute = properties.getProperty("jmx.membership.attribute", "ClusterMembers");
+        String membershipPort = properties.getProperty("jmx.membership.port");
+        this.port = membershipPort == null || membershipPort.isEmpty() ? null : membershipPort;
+        log.info("Membership monitor is " + this);
+    }
+
+    public final boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return the properties with {@code jmx.ips} set to the last membership read, if enabled
+     */
+    public final Properties membersProperties(Properties properties) {
+        List<String> current = lastMembers;
+        if (!enabled || current == null) {
+            return properties;
+        }
+        StringBuilder ips = new StringBuilder();
+        for (String member : current) {
+            ips.append(ips.length() == 0 ? "" : ",").append(member);
+        }
+        Properties result = new Properties();
+        result.putAll(properties);
+        result.setProperty("jmx.ips", ips.toString());
+        return result;
+    }
+
+    /**
+     * @return {@code true} if the membership changed
+     */
+    public synchronized final boolean refresh() {
+        if (!enabled) {
+            return false;
+        }
+        members = null;
+        jmxManager.perform(this);
+        if (members == null || members.isEmpty()) {
+            log.warn("Unable to read the cluster membership");
+            return false;
+        }
+        lastMembers = members;
+        return jmxManager.updateMembers(members);
+    }
+
+    @Override
+    public void perform(MBeanServerConnection connection, String hostAddress, int port) {
+        if (members != null) {
+            return;
+        }
+        Set<ObjectName> objectNameSet = infinispanObjectNameFinder.findCacheManagerComponent(connection,
+                "CacheManager");
+        if (objectNameSet.isEmpty()) {
+            return;
+        }
+        try {
+            members = parse(String.valueOf(connection.getAttribute(objectNameSet.iterator().next(), attribute)));
+            log.debug("Cluster members read from " + hostAddress + " (" + port + "): " + members);
+        } catch (Exception e) {
+            log.error("Error reading the cluster membership from " + hostAddress + " (" + port + ")", e);
+        }
+    }
+
+    private List<String> parse(String value) {
+        List<String> result = new ArrayList<String>();
+        for (String member : value.replace("[", "").replace("]", "").split(",")) {
+            member = member.trim();
+            if (member.startsWith("/")) {
+                member = member.substring(1);
+            }
+            if (member.isEmpty()) {
+                continue;
+            }
+            if (port != null) {
+                int separator = member.lastIndexOf(':');
+                member = (separator < 0 ? member : member.substring(0, separator)) + ":" + port;
+            }
+            result.add(member);
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "MembershipMonitor{" +
+                "enabled=" + enabled +
+                ", attribute='" + attribute + '\'' +
+                ", port='" + port + '\'' +
+                '}';
+    }
+}
@@ -1,5 +1,6 @@
 package eu.cloudtm.jmx;
 
+import eu.cloudtm.metrics.ManagerMetrics;
 import org.apache.log4j.Logger;
 
 import javax.management.MBeanServerConnection;
@@ -20,6 +21,8 @@ public abstract class ObjectNameFinder {
             return Collections.emptySet();
         }
 
+        ManagerMetrics metrics = ManagerMetrics.getInstance();
+        long start = metrics.start();
         try {
             Set<ObjectName> objectNameSet = connection.queryNames(query, null);
             if (!objectNameSet.isEmpty()) {
@@ -28,6 +31,8 @@ public abstract class ObjectNameFinder {
         } catch (IOException e) {
             e.printStackTrace();
             //ignored
+        } finally {
+            metrics.record(ManagerMetrics.QUERY, start);
         }
         return Collections.emptySet();
     }
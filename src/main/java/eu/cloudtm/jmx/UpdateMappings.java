@@ -1,19 +1,39 @@
 package eu.cloudtm.jmx;
 
+import eu.cloudtm.metrics.ManagerMetrics;
 import eu.cloudtm.optimizer.LCRDMappings;
+import eu.cloudtm.optimizer.LCRDMappingsDelta;
 import org.apache.log4j.Logger;
 
+import javax.management.MBeanOperationInfo;
 import javax.management.MBeanServerConnection;
 import javax.management.ObjectName;
-import java.util.Map;
-import java.util.Set;
+import java.io.InterruptedIOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
+ * Pushes the new mappings to the cluster. The mappings only need to be accepted by one node, that propagates them to
+ * the others.
+ * <p/>
+ * In the {@code sequential} mode, the nodes are tried in order until one accepts them. In the {@code race} mode, the
+ * mappings are sent to {@code mapping.push.fanout} nodes concurrently and the first acknowledgement wins (the others
+ * are cancelled). If no node acknowledges within {@code mapping.push.attemptTimeout}, the push is retried in the next
+ * nodes with exponential backoff until {@code mapping.push.deadline} expires.
+ * <p/>
+ * The last acknowledged mappings are kept and, if the nodes expose the delta operations
+ * ({@code updateLCRDMappingsDelta} and {@code updateMappingsDelta}), only the changed entries are sent. A removed entry
+ * is sent with a {@code null} value. The full mappings are sent every {@code mapping.push.fullEvery} pushes, to
+ * recover from nodes that lost their state.
+ *
  * @author Pedro Ruivo
  * @since 1.0
  */
 public class UpdateMappings implements JmxManager.MBeanConnectionAction {
 
+    public static final String SEQUENTIAL = "sequential";
+    public static final String RACE = "race";
     private static final String[] SIGNATURE = new String[]{
             Map.class.getName(),
             Map.class.getName()
@@ -22,69 +42,425 @@ public class UpdateMappings implements JmxManager.MBeanConnectionAction {
     private final JmxManager jmxManager;
     private final FenixObjectNameFinder fenixObjectNameFinder;
     private final InfinispanObjectNameFinder infinispanObjectNameFinder;
+    private final Operation[] operations;
     private LCRDMappings mappings;
     private boolean ispnMapsUpdated = false;
     private boolean lardMapsUpdated = false;
+    private final ConcurrentMap<String, Boolean> deltaSupport;
+    private PushReport report;
+    private LCRDMappings acknowledged;
+    private LCRDMappingsDelta delta;
+    private int deltaPushes;
+    private volatile boolean deltaEnabled;
+    private volatile int fullEvery;
+    private volatile String mode = SEQUENTIAL;
+    private volatile int fanout;
+    private volatile long attemptTimeout;
+    private volatile long deadline;
+    private volatile long initialBackoff;
+    private final ExecutorService executor;
+    private final AtomicInteger nextNode;
 
     public UpdateMappings(JmxManager jmxManager, FenixObjectNameFinder fenixObjectNameFinder,
                           InfinispanObjectNameFinder infinispanObjectNameFinder) {
         this.jmxManager = jmxManager;
         this.fenixObjectNameFinder = fenixObjectNameFinder;
         this.infinispanObjectNameFinder = infinispanObjectNameFinder;
+        this.operations = new Operation[]{new IspnOperation(), new LcrdOperation()};
+        this.nextNode = new AtomicInteger();
+        this.deltaSupport = new ConcurrentHashMap<String, Boolean>();
+        this.executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger threadId = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "update-mappings-" + threadId.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public final void update(Properties properties) {
+        this.mode = properties.getProperty("mapping.push.mode", SEQUENTIAL);
+        this.fanout = Math.max(1, Integer.parseInt(properties.getProperty("mapping.push.fanout", "2")));
+        this.attemptTimeout = Long.parseLong(properties.getProperty("mapping.push.attemptTimeout", "5000"));
+        this.deadline = Long.parseLong(properties.getProperty("mapping.push.deadline", "30000"));
+        this.initialBackoff = Long.parseLong(properties.getProperty("mapping.push.backoff", "500"));
+        this.deltaEnabled = Boolean.parseBoolean(properties.getProperty("mapping.push.delta", "true"));
+        this.fullEvery = Integer.parseInt(properties.getProperty("mapping.push.fullEvery", "10"));
+        deltaSupport.clear();
+        log.info("Update mappings is " + this);
     }
 
-    public synchronized final void updateMappings(LCRDMappings mappings) {
+    /**
+     * @return the nodes that acknowledged the mappings
+     */
+    public synchronized final PushReport updateMappings(LCRDMappings mappings) {
         log.debug("Updating mappings to " + mappings);
+        this.report = new PushReport();
         if (mappings == null) {
-            return;
+            return report;
+        }
+        LCRDMappings previous = acknowledged;
+        this.mappings = mappings.relabel(previous);
+        this.delta = previous == null || !deltaEnabled || deltaPushes >= fullEvery ? null :
+                LCRDMappingsDelta.diff(previous, this.mappings);
+        log.debug("Mappings delta is " + delta);
+        if (RACE.equals(mode)) {
+            try {
+                race();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        } else {
+            this.ispnMapsUpdated = false;
+            this.lardMapsUpdated = false;
+            jmxManager.perform(this);
         }
-        this.ispnMapsUpdated = false;
-        this.lardMapsUpdated = false;
-        this.mappings = mappings;
-        jmxManager.perform(this);
+        if (report.isAcknowledged()) {
+            acknowledged = this.mappings;
+            deltaPushes = delta == null ? 0 : deltaPushes + 1;
+        } else {
+            //the state in the nodes is unknown
+            acknowledged = null;
+        }
+        log.info("Mappings pushed: " + report);
+        return report;
     }
 
     @Override
     public void perform(MBeanServerConnection connection, String hostAddress, int port) {
         if (!ispnMapsUpdated) {
             log.debug("Updating ISPN mappings to " + mappings + " in " + hostAddress + "(" + port + ")");
-            Set<ObjectName> ispnObjectNameSet = infinispanObjectNameFinder.findCacheComponent(connection, "DataPlacementManager");
-            log.debug("ISPN found: " + ispnObjectNameSet);
-            if (ispnObjectNameSet.isEmpty()) {
-                return;
-            }
-            final ObjectName dataPlacementObjectName = ispnObjectNameSet.iterator().next();
-            final Object[] params = new Object[]{mappings.getTransactionClassMap(), mappings.getClusterWeightMap()};
-            ispnMapsUpdated = update(connection, dataPlacementObjectName, "setLCRDMappings", params);
+            ispnMapsUpdated = operations[0].execute(connection, hostAddress + ":" + port, report);
         }
 
         if (!lardMapsUpdated) {
             log.debug("Updating LARD mappings to " + mappings + " in " + hostAddress + "(" + port + ")");
-            Set<ObjectName> lcrdObjectNameSet = fenixObjectNameFinder.findFenixComponent(connection, "LCRDLoadBalancePolicy");
-            log.debug("LCRD found: " + lcrdObjectNameSet);
-            if (lcrdObjectNameSet.isEmpty()) {
-                return;
-            }
-            final ObjectName LCRDObjectName = lcrdObjectNameSet.iterator().next();
-            final Object[] params = new Object[]{mappings.getDomainObjectClassMap(), mappings.getClusterWeightMap()};
-            lardMapsUpdated = update(connection, LCRDObjectName, "updateMappings", params);
+            lardMapsUpdated = operations[1].execute(connection, hostAddress + ":" + port, report);
         }
     }
 
     @Override
     public String toString() {
         return "UpdateMappings{" +
-                "mappings=" + mappings +
+                "mode=" + mode +
+                ", fanout=" + fanout +
+                ", attemptTimeout=" + attemptTimeout +
+                ", deadline=" + deadline +
+                ", initialBackoff=" + initialBackoff +
+                ", deltaEnabled=" + deltaEnabled +
+                ", fullEvery=" + fullEvery +
                 '}';
     }
 
+    private void race() throws InterruptedException {
+        final List<JmxManager.NodeConnection> nodes = jmxManager.getConnections();
+        if (nodes.isEmpty()) {
+            log.warn("No connections available to push the mappings");
+            return;
+        }
+        final long end = System.currentTimeMillis() + deadline;
+        //both updates race independently
+        List<Future<?>> updates = new ArrayList<Future<?>>(operations.length);
+        for (final Operation operation : operations) {
+            updates.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    race(operation, nodes, end);
+                    return null;
+                }
+            }));
+        }
+        try {
+            for (Future<?> update : updates) {
+                try {
+                    update.get();
+                } catch (ExecutionException e) {
+                    log.error("Error pushing mappings", e.getCause());
+                }
+            }
+        } finally {
+            for (Future<?> update : updates) {
+                update.cancel(true);
+            }
+        }
+    }
+
+    private void race(final Operation operation, List<JmxManager.NodeConnection> nodes, long end)
+            throws InterruptedException {
+        long backoff = initialBackoff;
+        for (int attempt = 1; ; ++attempt) {
+            int attemptSize = Math.min(fanout, nodes.size());
+            CompletionService<Boolean> completionService = new ExecutorCompletionService<Boolean>(executor);
+            List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>(attemptSize);
+            for (final JmxManager.NodeConnection node : nextNodes(nodes, attemptSize)) {
+                futures.add(completionService.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        ManagerMetrics.getInstance().setCurrentNode(node.toString());
+                        try {
+                            boolean acknowledged = operation.execute(node.getConnection(), node.toString(), report);
+                            if (acknowledged) {
+                                node.acknowledged();
+                            }
+                            return acknowledged;
+                        } finally {
+                            ManagerMetrics.getInstance().setCurrentNode(null);
+                        }
+                    }
+                }));
+            }
+            long attemptEnd = Math.min(end, System.currentTimeMillis() + attemptTimeout);
+            try {
+                for (int pending = futures.size(); pending > 0; --pending) {
+                    long wait = attemptEnd - System.currentTimeMillis();
+                    Future<Boolean> future = wait <= 0 ? null :
+                            completionService.poll(wait, TimeUnit.MILLISECONDS);
+                    if (future == null) {
+                        log.warn(operation.method + " timed out in attempt " + attempt);
+                        break;
+                    }
+                    if (isSuccess(future)) {
+                        return;
+                    }
+                }
+            } finally {
+                //the slower nodes are not needed anymore
+                for (Future<Boolean> future : futures) {
+                    future.cancel(true);
+                }
+            }
+            if (System.currentTimeMillis() + backoff >= end) {
+                log.error(operation.method + " was not acknowledged after " + attempt + " attempts");
+                return;
+            }
+            log.warn(operation.method + " was not acknowledged in attempt " + attempt + ". Retrying in " + backoff +
+                    " ms");
+            Thread.sleep(backoff);
+            backoff *= 2;
+        }
+    }
+
+    private List<JmxManager.NodeConnection> nextNodes(List<JmxManager.NodeConnection> nodes, int size) {
+        //round robin between attempts and pushes, so a slow node is not always the first one
+        List<JmxManager.NodeConnection> result = new ArrayList<JmxManager.NodeConnection>(size);
+        for (int i = 0; i < size; ++i) {
+            result.add(nodes.get((nextNode.getAndIncrement() & Integer.MAX_VALUE) % nodes.size()));
+        }
+        return result;
+    }
+
+    private static boolean isSuccess(Future<Boolean> future) throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            return false;
+        }
+    }
+
     private boolean update(MBeanServerConnection connection, ObjectName objectName, String method, Object[] params) {
+        ManagerMetrics metrics = ManagerMetrics.getInstance();
+        long start = metrics.start();
         try {
             connection.invoke(objectName, method, params, SIGNATURE);
+            metrics.increment(ManagerMetrics.PUSH_ACKS, 1);
             return true;
+        } catch (InterruptedIOException e) {
+            //the node lost the race
+            log.debug(method + " was cancelled: " + e.getMessage());
         } catch (Exception e) {
             log.error("Error in Update Mappings", e);
+            metrics.increment(ManagerMetrics.PUSH_FAILURES, 1);
+        } finally {
+            metrics.record(ManagerMetrics.PUSH, start);
         }
         return false;
     }
+
+    /**
+     * The nodes that acknowledged (or failed) each of the mapping updates.
+     */
+    public static class PushReport {
+        private final Map<String, String> acknowledgements = new LinkedHashMap<String, String>();
+        private final Map<String, Set<String>> failures = new LinkedHashMap<String, Set<String>>();
+
+        /**
+         * @return {@code true} if both the Infinispan and the LCRD mappings were acknowledged
+         */
+        public synchronized final boolean isAcknowledged() {
+            return acknowledgements.size() == 2;
+        }
+
+        /**
+         * @return the node that acknowledged each update method
+         */
+        public synchronized final Map<String, String> getAcknowledgements() {
+            return new LinkedHashMap<String, String>(acknowledgements);
+        }
+
+        /**
+         * @return the nodes that failed each update method
+         */
+        public synchronized final Map<String, Set<String>> getFailures() {
+            return new LinkedHashMap<String, Set<String>>(failures);
+        }
+
+        private synchronized void acknowledge(String method, String node) {
+            //a cancelled node may still acknowledge. The first one is reported
+            if (!acknowledgements.containsKey(method)) {
+                acknowledgements.put(method, node);
+            }
+        }
+
+        private synchronized void fail(String method, String node) {
+            Set<String> nodes = failures.get(method);
+            if (nodes == null) {
+                nodes = new TreeSet<String>();
+                failures.put(method, nodes);
+            }
+            nodes.add(node);
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "PushReport{" +
+                    "acknowledgements=" + acknowledgements +
+                    ", failures=" + failures +
+                    '}';
+        }
+    }
+
+    private boolean supportsDelta(MBeanServerConnection connection, String node, ObjectName objectName,
+                                  String deltaMethod) {
+        String key = node + "|" + objectName + "|" + deltaMethod;
+        Boolean supported = deltaSupport.get(key);
+        if (supported == null) {
+            try {
+                supported = Boolean.FALSE;
+                for (MBeanOperationInfo operation : connection.getMBeanInfo(objectName).getOperations()) {
+                    if (deltaMethod.equals(operation.getName())) {
+                        supported = Boolean.TRUE;
+                        break;
+                    }
+                }
+                deltaSupport.put(key, supported);
+                log.debug(deltaMethod + " supported in " + node + "? " + supported);
+            } catch (Exception e) {
+                log.warn("Unable to check if " + node + " supports " + deltaMethod, e);
+                return false;
+            }
+        }
+        return supported;
+    }
+
+    private static int entries(Object[] params) {
+        int entries = 0;
+        for (Object param : params) {
+            entries += ((Map<?, ?>) param).size();
+        }
+        return entries;
+    }
+
+    private abstract class Operation {
+        private final String method;
+        private final String deltaMethod;
+
+        private Operation(String method, String deltaMethod) {
+            this.method = method;
+            this.deltaMethod = deltaMethod;
+        }
+
+        /**
+         * @return {@code true} if the node acknowledged the update
+         */
+        private boolean execute(MBeanServerConnection connection, String node, PushReport report) {
+            ObjectName objectName = find(connection);
+            if (objectName == null) {
+                fail(report, node);
+                return false;
+            }
+            LCRDMappingsDelta delta = UpdateMappings.this.delta;
+            String invoked = method;
+            Object[] params;
+            if (delta != null && supportsDelta(connection, node, objectName, deltaMethod)) {
+                params = deltaParams(delta);
+                if (entries(params) == 0) {
+                    log.debug("Nothing changed for " + method + ". Skipping it.");
+                    report.acknowledge(method, node);
+                    return true;
+                }
+                invoked = deltaMethod;
+            } else {
+                params = params();
+            }
+            ManagerMetrics.getInstance().increment(ManagerMetrics.PUSH_ENTRIES, entries(params));
+            if (update(connection, objectName, invoked, params)) {
+                report.acknowledge(method, node);
+                return true;
+            }
+            fail(report, node);
+            return false;
+        }
+
+        private void fail(PushReport report, String node) {
+            //a node cancelled after losing the race did not fail
+            if (!Thread.currentThread().isInterrupted()) {
+                report.fail(method, node);
+            }
+        }
+
+        protected abstract ObjectName find(MBeanServerConnection connection);
+
+        protected abstract Object[] params();
+
+        protected abstract Object[] deltaParams(LCRDMappingsDelta delta);
+    }
+
+    private class IspnOperation extends Operation {
+        private IspnOperation() {
+            super("setLCRDMappings", "updateLCRDMappingsDelta");
+        }
+
+        @Override
+        protected ObjectName find(MBeanServerConnection connection) {
+            Set<ObjectName> ispnObjectNameSet = infinispanObjectNameFinder.findCacheComponent(connection, "DataPlacementManager");
+            log.debug("ISPN found: " + ispnObjectNameSet);
+            return ispnObjectNameSet.isEmpty() ? null : ispnObjectNameSet.iterator().next();
+        }
+
+        @Override
+        protected Object[] params() {
+            return new Object[]{mappings.getTransactionClassMap(), mappings.getClusterWeightMap()};
+        }
+
+        @Override
+        protected Object[] deltaParams(LCRDMappingsDelta delta) {
+            return new Object[]{delta.getTransactionClassChanges(), delta.getClusterWeightChanges()};
+        }
+    }
+
+    private class LcrdOperation extends Operation {
+        private LcrdOperation() {
+            super("updateMappings", "updateMappingsDelta");
+        }
+
+        @Override
+        protected ObjectName find(MBeanServerConnection connection) {
+            Set<ObjectName> lcrdObjectNameSet = fenixObjectNameFinder.findFenixComponent(connection, "LCRDLoadBalancePolicy");
+            log.debug("LCRD found: " + lcrdObjectNameSet);
+            return lcrdObjectNameSet.isEmpty() ? null : lcrdObjectNameSet.iterator().next();
+        }
+
+        @Override
+        protected Object[] params() {
+            return new Object[]{mappings.getDomainObjectClassMap(), mappings.getClusterWeightMap()};
+        }
+
+        @Override
+        protected Object[] deltaParams(LCRDMappingsDelta delta) {
+            return new Object[]{delta.getDomainObjectClassChanges(), delta.getClusterWeightChanges()};
+        }
+    }
 }
@@ -0,0 +1,280 @@
+package eu.cloudtm.metrics;
+
+import eu.cloudtm.Utils;
+import org.apache.log4j.Logger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per phase and per node timers and counters of the manager control loop.
+ * <p/>
+ * There is a single instance per process. The node is taken from the calling thread (see
+ * {@link #setCurrentNode(String)}) so the components do not need to know in which node they are running. The metrics
+ * are exposed as a platform MBean and, if {@code metrics.file} is set, they are written in the Prometheus text format
+ * after each round. The file is replaced atomically.
+ *
+ * @author Pedro Ruivo
+ * @since 1.0
+ */
+public class ManagerMetrics implements ManagerMetricsMBean {
+
+    public static final String CONNECT = "connect";
+    public static final String QUERY = "query";
+    public static final String INVOKE = "invoke";
+    public static final String DAP_FETCH = "dap_fetch";
+    public static final String PARSE = "parse";
+    public static final String LDA = "lda";
+    public static final String PUSH = "push";
+    public static final String ROUND = "round";
+    public static final String PAYLOAD_BYTES = "payload_bytes";
+    public static final String LDA_ITERATIONS = "lda_iterations";
+    public static final String PUSH_ACKS = "push_acks";
+    public static final String PUSH_FAILURES = "push_failures";
+    public static final String PUSH_ENTRIES = "push_entries";
+    public static final String MAPPING_CACHE_HITS = "mapping_cache_hits";
+    public static final String MAPPING_CACHE_MISSES = "mapping_cache_misses";
+    public static final String LOCALITY_FLAGGED = "locality_flagged";
+    public static final String JMX_TIMEOUTS = "jmx_timeouts";
+    public static final String NODE_EXCLUSIONS = "node_exclusions";
+    public static final String SNAPSHOT_SKEW = "snapshot_skew";
+    public static final String PROTOCOL_ROLLBACK_FAILURES = "protocol_rollback_failures";
+    private static final String GLOBAL = "manager";
+    private static final String OBJECT_NAME = "eu.cloudtm:type=ManagerMetrics";
+    private static final Logger log = Logger.getLogger(ManagerMetrics.class);
+    private static final ManagerMetrics INSTANCE = new ManagerMetrics();
+    private final ConcurrentMap<Key, Timer> timers;
+    private final ConcurrentMap<Key, AtomicLong> counters;
+    private final ThreadLocal<String> currentNode;
+    private volatile String file;
+
+    private ManagerMetrics() {
+        timers = new ConcurrentHashMap<Key, Timer>();
+        counters = new ConcurrentHashMap<Key, AtomicLong>();
+        currentNode = new ThreadLocal<String>();
+    }
+
+    public static ManagerMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    public final void update(Properties properties) {
+        this.file = properties.getProperty("metrics.file");
+    }
+
+    public final void register() {
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName objectName = new ObjectName(OBJECT_NAME);
+            if (!mBeanServer.isRegistered(objectName)) {
+                mBeanServer.registerMBean(this, objectName);
+            }
+        } catch (Exception e) {
+            log.error("Error registering " + OBJECT_NAME, e);
+        }
+    }
+
+    public final void setCurrentNode(String node) {
+        if (node == null) {
+            currentNode.remove();
+        } else {
+            currentNode.set(node);
+        }
+    }
+
+    /**
+     * @return the start timestamp to use in {@link #record(String, long)}
+     */
+    public final long start() {
+        return System.nanoTime();
+    }
+
+    public final void record(String phase, long start) {
+        record(phase, node(), start);
+    }
+
+    public final void record(String phase, String node, long start) {
+        long duration = System.nanoTime() - start;
+        Key key = new Key(phase, node);
+        Timer timer = timers.get(key);
+        if (timer == null) {
+            Timer existing = timers.putIfAbsent(key, timer = new Timer());
+            if (existing != null) {
+                timer = existing;
+            }
+        }
+        timer.add(duration);
+    }
+
+    public final void increment(String counter, long delta) {
+        increment(counter, node(), delta);
+    }
+
+    public final void increment(String counter, String node, long delta) {
+        Key key = new Key(counter, node);
+        AtomicLong value = counters.get(key);
+        if (value == null) {
+            AtomicLong existing = counters.putIfAbsent(key, value = new AtomicLong());
+            if (existing != null) {
+                value = existing;
+            }
+        }
+        value.addAndGet(delta);
+    }
+
+    /**
+     * Writes the Prometheus text file, if configured. The file is written to a temporary file and then moved.
+     */
+    public final void writeFile() {
+        String filePath = file;
+        if (filePath == null || filePath.isEmpty()) {
+            return;
+        }
+        File target = new File(filePath).getAbsoluteFile();
+        File temporary = new File(target.getParentFile(), "." + target.getName() + ".tmp");
+        Writer writer = null;
+        try {
+            writer = new OutputStreamWriter(new FileOutputStream(temporary), "UTF-8");
+            writer.write(getPrometheusText());
+            writer.close();
+            writer = null;
+            Files.move(temporary.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.error("Error writing metrics to " + target, e);
+        } finally {
+            Utils.safeClose(writer);
+        }
+    }
+
+    @Override
+    public String[] getTimers() {
+        List<String> result = new ArrayList<String>(timers.size());
+        for (Map.Entry<Key, Timer> entry : sorted(timers).entrySet()) {
+            Timer timer = entry.getValue();
+            result.add(entry.getKey().name + " " + entry.getKey().node + " " + timer.count.get() + " " +
+                    TimeUnit.NANOSECONDS.toMillis(timer.total.get()) + " " +
+                    TimeUnit.NANOSECONDS.toMillis(timer.max.get()));
+        }
+        return result.toArray(new String[result.size()]);
+    }
+
+    @Override
+    public String[] getCounters() {
+        List<String> result = new ArrayList<String>(counters.size());
+        for (Map.Entry<Key, AtomicLong> entry : sorted(counters).entrySet()) {
+            result.add(entry.getKey().name + " " + entry.getKey().node + " " + entry.getValue().get());
+        }
+        return result.toArray(new String[result.size()]);
+    }
+
+    @Override
+    public String getPrometheusText() {
+        StringBuilder builder = new StringBuilder(1024);
+        Map<Key, Timer> sortedTimers = sorted(timers);
+        builder.append("# TYPE lcrd_manager_phase_seconds summary\n");
+        for (Map.Entry<Key, Timer> entry : sortedTimers.entrySet()) {
+            String labels = entry.getKey().labels("phase");
+            builder.append("lcrd_manager_phase_seconds_count").append(labels).append(' ')
+                    .append(entry.getValue().count.get()).append('\n');
+            builder.append("lcrd_manager_phase_seconds_sum").append(labels).append(' ')
+                    .append(entry.getValue().total.get() / 1e9).append('\n');
+        }
+        builder.append("# TYPE lcrd_manager_phase_max_seconds gauge\n");
+        for (Map.Entry<Key, Timer> entry : sortedTimers.entrySet()) {
+            builder.append("lcrd_manager_phase_max_seconds").append(entry.getKey().labels("phase")).append(' ')
+                    .append(entry.getValue().max.get() / 1e9).append('\n');
+        }
+        String lastCounter = null;
+        for (Map.Entry<Key, AtomicLong> entry : sorted(counters).entrySet()) {
+            String metric = "lcrd_manager_" + entry.getKey().name + "_total";
+            if (!metric.equals(lastCounter)) {
+                builder.append("# TYPE ").append(metric).append(" counter\n");
+                lastCounter = metric;
+            }
+            builder.append(metric).append("{node=\"").append(entry.getKey().node).append("\"} ")
+                    .append(entry.getValue().get()).append('\n');
+        }
+        return builder.toString();
+    }
+
+    @Override
+    public void reset() {
+        timers.clear();
+        counters.clear();
+    }
+
+    private String node() {
+        String node = currentNode.get();
+        return node == null ? GLOBAL : node;
+    }
+
+    private static <V> Map<Key, V> sorted(Map<Key, V> map) {
+        return new TreeMap<Key, V>(map);
+    }
+
+    private static class Key implements Comparable<Key> {
+        private final String name;
+        private final String node;
+
+        private Key(String name, String node) {
+            this.name = name;
+            this.node = node;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return name.equals(key.name) && node.equals(key.node);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * name.hashCode() + node.hashCode();
+        }
+
+        @Override
+        public int compareTo(Key o) {
+            int result = name.compareTo(o.name);
+            return result == 0 ? node.compareTo(o.node) : result;
+        }
+
+        private String labels(String nameLabel) {
+            return "{" + nameLabel + "=\"" + name + "\",node=\"" + node + "\"}";
+        }
+    }
+
+    private static class Timer {
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong total = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        private void add(long duration) {
+            count.incrementAndGet();
+            total.addAndGet(duration);
+            long currentMax;
+            while (duration > (currentMax = max.get()) && !max.compareAndSet(currentMax, duration)) {
+                //retry
+            }
+        }
+    }
+}
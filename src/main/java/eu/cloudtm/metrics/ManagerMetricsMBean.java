@@ -0,0 +1,28 @@
+package eu.cloudtm.metrics;
+
+/**
+ * JMX view of the {@link ManagerMetrics}.
+ *
+ * @author Pedro Ruivo
+ * @since 1.0
+ */
+public interface ManagerMetricsMBean {
+
+    /**
+     * @return one entry per phase and node: {@code phase node count totalMillis maxMillis}
+     */
+    String[] getTimers();
+
+    /**
+     * @return one entry per counter and node: {@code counter node value}
+     */
+    String[] getCounters();
+
+    /**
+     * @return the metrics in the Prometheus text exposition format
+     */
+    String getPrometheusText();
+
+    void reset();
+
+}
@@ -0,0 +1,292 @@
+package eu.cloudtm.optimizer;
+
+import eu.cloudtm.Utils;
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A decision tree trained offline from recorded runs.
+ * <p/>
+ * The model file has one node per line, in pre-order. An inner node is {@code split <feature> <threshold>} and it is
+ * followed by the sub-tree for {@code feature <= threshold} and then by the sub-tree for {@code feature > threshold}.
+ * A leaf is {@code leaf <protocol>}. Empty lines and lines starting with {@code #} are ignored.
+ * <p/>
+ * The training set is a CSV file with a header line. It must have one column for each of the
+ * {@link WorkloadFeatures#FEATURE_NAMES} and a {@code protocol} column with the protocol that achieved the best
+ * throughput for that workload. Other columns are ignored.
+ *
+ * @author Pedro Ruivo
+ * @since 1.0
+ */
+public class DecisionTreeProtocolOracle implements ProtocolOracle {
+
+    private static final Logger log = Logger.getLogger(DecisionTreeProtocolOracle.class);
+    private static final String SPLIT = "split";
+    private static final String LEAF = "leaf";
+    private static final String LABEL_COLUMN = "protocol";
+    private final Node root;
+
+    private DecisionTreeProtocolOracle(Node root) {
+        this.root = root;
+    }
+
+    public static DecisionTreeProtocolOracle load(String filePath) throws IOException {
+        InputStream inputStream = Utils.tryOpenFile(filePath);
+        if (inputStream == null) {
+            inputStream = Utils.openResource(filePath);
+        }
+        if (inputStream == null) {
+            throw new FileNotFoundException(filePath);
+        }
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, "UTF-8"));
+            List<String> lines = new ArrayList<String>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("#")) {
+                    lines.add(line);
+                }
+            }
+            Iterator<String> iterator = lines.iterator();
+            Node root = parse(iterator, filePath);
+            if (iterator.hasNext()) {
+                throw new IOException("Unexpected trailing nodes in " + filePath);
+            }
+            return new DecisionTreeProtocolOracle(root);
+        } finally {
+            Utils.safeClose(inputStream);
+        }
+    }
+
+    public static DecisionTreeProtocolOracle train(String csvFilePath, int maxDepth, int minLeafSize) throws IOException {
+        List<double[]> rows = new ArrayList<double[]>();
+        List<String> labels = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(csvFilePath), "UTF-8"));
+        try {
+            String header = reader.readLine();
+            if (header == null) {
+                throw new IOException("Empty training set " + csvFilePath);
+            }
+            String[] columns = header.split(",");
+            int[] featureColumn = new int[WorkloadFeatures.NUMBER_OF_FEATURES];
+            Arrays.fill(featureColumn, -1);
+            int labelColumn = -1;
+            for (int i = 0; i < columns.length; ++i) {
+                String column = columns[i].trim();
+                if (LABEL_COLUMN.equals(column)) {
+                    labelColumn = i;
+                } else if (WorkloadFeatures.indexOf(column) >= 0) {
+                    featureColumn[WorkloadFeatures.indexOf(column)] = i;
+                }
+            }
+            if (labelColumn < 0) {
+                throw new IOException("Column '" + LABEL_COLUMN + "' not found in " + csvFilePath);
+            }
+            for (int i = 0; i < featureColumn.length; ++i) {
+                if (featureColumn[i] < 0) {
+                    throw new IOException("Column '" + WorkloadFeatures.FEATURE_NAMES[i] + "' not found in " + csvFilePath);
+                }
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                String[] values = line.split(",");
+                double[] row = new double[WorkloadFeatures.NUMBER_OF_FEATURES];
+                for (int i = 0; i < row.length; ++i) {
+                    row[i] = Double.parseDouble(values[featureColumn[i]].trim());
+                }
+                rows.add(row);
+                labels.add(values[labelColumn].trim());
+            }
+        } finally {
+            Utils.safeClose(reader);
+        }
+        if (rows.isEmpty()) {
+            throw new IOException("Empty training set " + csvFilePath);
+        }
+        log.info("Training decision tree with " + rows.size() + " samples");
+        return train(rows.toArray(new double[rows.size()][]), labels.toArray(new String[labels.size()]), maxDepth,
+                minLeafSize);
+    }
+
+    public static DecisionTreeProtocolOracle train(double[][] rows, String[] labels, int maxDepth, int minLeafSize) {
+        Integer[] indexes = new Integer[rows.length];
+        for (int i = 0; i < indexes.length; ++i) {
+            indexes[i] = i;
+        }
+        return new DecisionTreeProtocolOracle(grow(rows, labels, indexes, 0, maxDepth, Math.max(1, minLeafSize)));
+    }
+
+    public final void save(String filePath) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(filePath), "UTF-8");
+        try {
+            writer.write("# features: " + Arrays.toString(WorkloadFeatures.FEATURE_NAMES) + "\n");
+            write(root, writer);
+        } finally {
+            Utils.safeClose(writer);
+        }
+    }
+
+    @Override
+    public String predict(WorkloadFeatures features) {
+        Node node = root;
+        while (node.label == null) {
+            node = features.get(node.feature) <= node.threshold ? node.left : node.right;
+        }
+        return node.label;
+    }
+
+    @Override
+    public String toString() {
+        StringWriter writer = new StringWriter();
+        try {
+            write(root, writer);
+        } catch (IOException e) {
+            //StringWriter does not throw
+        }
+        return "DecisionTreeProtocolOracle{" + writer.toString().replace('\n', ';') + '}';
+    }
+
+    private static Node parse(Iterator<String> lines, String filePath) throws IOException {
+        if (!lines.hasNext()) {
+            throw new IOException("Incomplete tree in " + filePath);
+        }
+        String[] tokens = lines.next().split("\\s+");
+        if (LEAF.equals(tokens[0]) && tokens.length == 2) {
+            return new Node(tokens[1]);
+        } else if (SPLIT.equals(tokens[0]) && tokens.length == 3) {
+            int feature = WorkloadFeatures.indexOf(tokens[1]);
+            if (feature < 0) {
+                throw new IOException("Unknown feature '" + tokens[1] + "' in " + filePath);
+            }
+            double threshold = Double.parseDouble(tokens[2]);
+            Node left = parse(lines, filePath);
+            Node right = parse(lines, filePath);
+            return new Node(feature, threshold, left, right);
+        }
+        throw new IOException("Malformed node '" + Arrays.toString(tokens) + "' in " + filePath);
+    }
+
+    private static void write(Node node, Writer writer) throws IOException {
+        if (node.label != null) {
+            writer.write(LEAF + " " + node.label + "\n");
+            return;
+        }
+        writer.write(SPLIT + " " + WorkloadFeatures.FEATURE_NAMES[node.feature] + " " + node.threshold + "\n");
+        write(node.left, writer);
+        write(node.right, writer);
+    }
+
+    private static Node grow(final double[][] rows, String[] labels, Integer[] indexes, int depth, int maxDepth,
+                             int minLeafSize) {
+        String majority = majority(labels, indexes);
+        if (depth >= maxDepth || indexes.length < 2 * minLeafSize || gini(labels, indexes, 0, indexes.length) == 0) {
+            return new Node(majority);
+        }
+        int bestFeature = -1;
+        int bestSplit = -1;
+        double bestThreshold = 0;
+        double bestImpurity = gini(labels, indexes, 0, indexes.length);
+        for (int feature = 0; feature < WorkloadFeatures.NUMBER_OF_FEATURES; ++feature) {
+            final int sortFeature = feature;
+            Arrays.sort(indexes, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer o1, Integer o2) {
+                    return Double.compare(rows[o1][sortFeature], rows[o2][sortFeature]);
+                }
+            });
+            for (int split = minLeafSize; split <= indexes.length - minLeafSize; ++split) {
+                double before = rows[indexes[split - 1]][feature];
+                double after = rows[indexes[split]][feature];
+                if (before == after) {
+                    continue;
+                }
+                double impurity = (split * gini(labels, indexes, 0, split) +
+                        (indexes.length - split) * gini(labels, indexes, split, indexes.length)) / indexes.length;
+                if (impurity < bestImpurity) {
+                    bestImpurity = impurity;
+                    bestFeature = feature;
+                    bestSplit = split;
+                    bestThreshold = (before + after) / 2;
+                }
+            }
+        }
+        if (bestFeature < 0) {
+            return new Node(majority);
+        }
+        final int sortFeature = bestFeature;
+        Arrays.sort(indexes, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                return Double.compare(rows[o1][sortFeature], rows[o2][sortFeature]);
+            }
+        });
+        Node left = grow(rows, labels, Arrays.copyOfRange(indexes, 0, bestSplit), depth + 1, maxDepth, minLeafSize);
+        Node right = grow(rows, labels, Arrays.copyOfRange(indexes, bestSplit, indexes.length), depth + 1, maxDepth,
+                minLeafSize);
+        if (left.label != null && left.label.equals(right.label)) {
+            return left;
+        }
+        return new Node(bestFeature, bestThreshold, left, right);
+    }
+
+    private static double gini(String[] labels, Integer[] indexes, int from, int to) {
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (int i = from; i < to; ++i) {
+            Integer count = counts.get(labels[indexes[i]]);
+            counts.put(labels[indexes[i]], count == null ? 1 : count + 1);
+        }
+        double impurity = 1;
+        double total = to - from;
+        for (int count : counts.values()) {
+            impurity -= (count / total) * (count / total);
+        }
+        return impurity;
+    }
+
+    private static String majority(String[] labels, Integer[] indexes) {
+        Map<String, Integer> counts = new TreeMap<String, Integer>();
+        for (Integer index : indexes) {
+            Integer count = counts.get(labels[index]);
+            counts.put(labels[index], count == null ? 1 : count + 1);
+        }
+        String majority = null;
+        int max = -1;
+        for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+            if (entry.getValue() > max) {
+                max = entry.getValue();
+                majority = entry.getKey();
+            }
+        }
+        return majority;
+    }
+
+    private static class Node {
+        private final String label;
+        private final int feature;
+        private final double threshold;
+        private final Node left;
+        private final Node right;
+
+        private Node(String label) {
+            this.label = label;
+            this.feature = -1;
+            this.threshold = 0;
+            this.left = null;
+            this.right = null;
+        }
+
+        private Node(int feature, double threshold, Node left, Node right) {
+            this.label = null;
+            this.feature = feature;
+            this.threshold = threshold;
+            this.left = left;
+            this.right = right;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package eu.cloudtm.optimizer;
+
+/**
+ * Wraps an oracle and keeps the current protocol while the workload is close to one of the oracle thresholds.
+ * <p/>
+ * A new protocol is only accepted if the decision does not change when any feature is moved by {@code band}
+ * (relative) in either direction. Otherwise the workload is inside the hysteresis band and the current protocol wins.
+ *
+ * @author Pedro Ruivo
+ * @since 1.0
+ */
+public class HysteresisProtocolOracle implements ProtocolOracle {
+
+    private final ProtocolOracle delegate;
+    private final double band;
+
+    public HysteresisProtocolOracle(ProtocolOracle delegate, double band) {
+        this.delegate = delegate;
+        this.band = band;
+    }
+
+    @Override
+    public String predict(WorkloadFeatures features) {
+        return delegate.predict(features);
+    }
+
+    public String predict(WorkloadFeatures features, String currentProtocol) {
+        String newProtocol = delegate.predict(features);
+        if (currentProtocol == null || newProtocol == null || newProtocol.equals(currentProtocol) || band <= 0) {
+            return newProtocol;
+        }
+        double[] values = features.toArray();
+        for (int feature = 0; feature < values.length; ++feature) {
+            double original = values[feature];
+            for (int direction = -1; direction <= 1; direction += 2) {
+                values[feature] = original * (1 + direction * band);
+                if (currentProtocol.equals(delegate.predict(new WorkloadFeatures(values)))) {
+                    return currentProtocol;
+                }
+            }
+            values[feature] = original;
+        }
+        return newProtocol;
+    }
+
+    @Override
+    public String toString() {
+        return "HysteresisProtocolOracle{" +
+                "delegate=" + delegate +
+                ", band=" + band +
+                '}';
+    }
+}
@@ -1,6 +1,27 @@
 package eu.cloudtm.optimizer;
 
+import eu.cloudtm.Utils;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * @author Pedro Ruivo
@@ -8,6 +29,7 @@ import java.util.Map;
  */
 public class LCRDMappings {
 
+    private static final String SEPARATOR = "\t";
     private final Map<String, Integer> transactionClassMap;
     private final Map<String, Integer> domainObjectClassMap;
     private final Map<Integer, Float> clusterWeightMap;
@@ -30,6 +52,153 @@ public class LCRDMappings {
         return clusterWeightMap;
     }
 
+    /**
+     * Checks if both mappings place the transaction and domain classes in the same groups, ignoring the cluster
+     * identifiers assigned by LDA, and if the cluster weights differ less than {@code weightBand}.
+     */
+    public boolean isEquivalent(LCRDMappings other, float weightBand) {
+        if (other == null || !transactionClassMap.keySet().equals(other.transactionClassMap.keySet()) ||
+                !domainObjectClassMap.keySet().equals(other.domainObjectClassMap.keySet())) {
+            return false;
+        }
+        Map<Integer, Integer> clusterIds = new HashMap<Integer, Integer>();
+        if (!matchClusters(transactionClassMap, other.transactionClassMap, clusterIds) ||
+                !matchClusters(domainObjectClassMap, other.domainObjectClassMap, clusterIds)) {
+            return false;
+        }
+        for (Map.Entry<Integer, Float> entry : clusterWeightMap.entrySet()) {
+            Integer otherId = clusterIds.get(entry.getKey());
+            Float otherWeight = otherId == null ? null : other.clusterWeightMap.get(otherId);
+            if (otherWeight == null || Math.abs(otherWeight - entry.getValue()) > weightBand) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Renames the cluster identifiers to the ones of {@code previous}, matching the clusters that share more
+     * transaction and domain classes. The identifiers assigned by LDA are arbitrary, so this keeps the unchanged
+     * clusters with the same identifier and makes the difference between both mappings as small as possible.
+     *
+     * @return the relabeled mappings (or these mappings if {@code previous} is {@code null})
+     */
+    public LCRDMappings relabel(LCRDMappings previous) {
+        if (previous == null) {
+            return this;
+        }
+        final Map<Long, Integer> overlap = new HashMap<Long, Integer>();
+        countOverlap(transactionClassMap, previous.transactionClassMap, overlap);
+        countOverlap(domainObjectClassMap, previous.domainObjectClassMap, overlap);
+        List<Long> pairs = new ArrayList<Long>(overlap.keySet());
+        Collections.sort(pairs, new Comparator<Long>() {
+            @Override
+            public int compare(Long o1, Long o2) {
+                return overlap.get(o2) - overlap.get(o1);
+            }
+        });
+        //greedy matching, the pairs with more shared classes first
+        Map<Integer, Integer> clusterIds = new HashMap<Integer, Integer>();
+        Set<Integer> usedIds = new HashSet<Integer>();
+        for (Long pair : pairs) {
+            int id = (int) (pair >> 32);
+            int previousId = (int) (long) pair;
+            if (!clusterIds.containsKey(id) && !usedIds.contains(previousId)) {
+                clusterIds.put(id, previousId);
+                usedIds.add(previousId);
+            }
+        }
+        int freeId = 0;
+        for (Integer id : clusterIds()) {
+            if (!clusterIds.containsKey(id)) {
+                while (usedIds.contains(freeId)) {
+                    freeId++;
+                }
+                clusterIds.put(id, freeId);
+                usedIds.add(freeId);
+            }
+        }
+        Map<Integer, Float> relabeledWeights = new LinkedHashMap<Integer, Float>();
+        for (Map.Entry<Integer, Float> entry : clusterWeightMap.entrySet()) {
+            relabeledWeights.put(clusterIds.get(entry.getKey()), entry.getValue());
+        }
+        return new LCRDMappings(relabel(transactionClassMap, clusterIds), relabel(domainObjectClassMap, clusterIds),
+                relabeledWeights);
+    }
+
+    /**
+     * Writes the mappings as tab separated {@code txmap <tx class> <cluster>}, {@code domainmap <domain class>
+     * <cluster>} and {@code weight <cluster> <weight>} lines.
+     */
+    public void write(Writer writer) throws IOException {
+        for (Map.Entry<String, Integer> entry : transactionClassMap.entrySet()) {
+            writer.write("txmap" + SEPARATOR + entry.getKey() + SEPARATOR + entry.getValue() + "\n");
+        }
+        for (Map.Entry<String, Integer> entry : domainObjectClassMap.entrySet()) {
+            writer.write("domainmap" + SEPARATOR + entry.getKey() + SEPARATOR + entry.getValue() + "\n");
+        }
+        for (Map.Entry<Integer, Float> entry : clusterWeightMap.entrySet()) {
+            writer.write("weight" + SEPARATOR + entry.getKey() + SEPARATOR + entry.getValue() + "\n");
+        }
+    }
+
+    /**
+     * Saves the mappings (see {@link #write(Writer)}). The file is replaced atomically, so a reader never sees it half
+     * written.
+     */
+    public void save(String file) throws IOException {
+        File target = new File(file).getAbsoluteFile();
+        File temporary = new File(target.getParentFile(), "." + target.getName() + ".tmp");
+        Writer writer = null;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temporary), "UTF-8"));
+            write(writer);
+            writer.close();
+            writer = null;
+            Files.move(temporary.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Utils.safeClose(writer);
+        }
+    }
+
+    /**
+     * @return the mappings saved with {@link #save(String)}, or {@code null} if the file does not exist
+     */
+    public static LCRDMappings load(String file) throws IOException {
+        InputStream inputStream = Utils.tryOpenFile(file);
+        if (inputStream == null) {
+            return null;
+        }
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, "UTF-8"));
+            Map<String, Integer> txMap = new LinkedHashMap<String, Integer>();
+            Map<String, Integer> domainMap = new LinkedHashMap<String, Integer>();
+            Map<Integer, Float> weights = new LinkedHashMap<Integer, Float>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                String[] fields = line.split(SEPARATOR);
+                if (fields.length != 3) {
+                    throw new IOException("Malformed line '" + line + "' in " + file);
+                } else if ("txmap".equals(fields[0])) {
+                    txMap.put(fields[1], Integer.valueOf(fields[2]));
+                } else if ("domainmap".equals(fields[0])) {
+                    domainMap.put(fields[1], Integer.valueOf(fields[2]));
+                } else if ("weight".equals(fields[0])) {
+                    weights.put(Integer.valueOf(fields[1]), Float.valueOf(fields[2]));
+                } else {
+                    throw new IOException("Unknown line '" + line + "' in " + file);
+                }
+            }
+            return new LCRDMappings(txMap, domainMap, weights);
+        } finally {
+            Utils.safeClose(inputStream);
+        }
+    }
+
     @Override
     public String toString() {
         return "LCRDMappings{" +
@@ -38,4 +207,50 @@ public class LCRDMappings {
                 ", clusterWeightMap=" + clusterWeightMap +
                 '}';
     }
+
+    private Set<Integer> clusterIds() {
+        Set<Integer> ids = new HashSet<Integer>(clusterWeightMap.keySet());
+        ids.addAll(transactionClassMap.values());
+        ids.addAll(domainObjectClassMap.values());
+        ids.remove(null);
+        return ids;
+    }
+
+    private static void countOverlap(Map<String, Integer> map, Map<String, Integer> previousMap,
+                                     Map<Long, Integer> overlap) {
+        for (Map.Entry<String, Integer> entry : map.entrySet()) {
+            Integer previousId = previousMap.get(entry.getKey());
+            if (previousId == null || entry.getValue() == null) {
+                continue;
+            }
+            Long pair = ((long) entry.getValue() << 32) | (previousId & 0xffffffffL);
+            Integer count = overlap.get(pair);
+            overlap.put(pair, count == null ? 1 : count + 1);
+        }
+    }
+
+    private static Map<String, Integer> relabel(Map<String, Integer> map, Map<Integer, Integer> clusterIds) {
+        Map<String, Integer> result = new LinkedHashMap<String, Integer>();
+        for (Map.Entry<String, Integer> entry : map.entrySet()) {
+            result.put(entry.getKey(), entry.getValue() == null ? null : clusterIds.get(entry.getValue()));
+        }
+        return result;
+    }
+
+    private static boolean matchClusters(Map<String, Integer> map, Map<String, Integer> otherMap,
+                                         Map<Integer, Integer> clusterIds) {
+        for (Map.Entry<String, Integer> entry : map.entrySet()) {
+            Integer otherId = otherMap.get(entry.getKey());
+            Integer mappedId = clusterIds.get(entry.getValue());
+            if (mappedId == null) {
+                if (otherId == null || clusterIds.containsValue(otherId)) {
+                    return false;
+                }
+                clusterIds.put(entry.getValue(), otherId);
+            } else if (!mappedId.equals(otherId)) {
+                return false;
+            }
+        }
+        return true;
+    }
 }
@@ -0,0 +1,80 @@
+package eu.cloudtm.optimizer;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The entries that changed between two {@link LCRDMappings}. A removed entry is mapped to {@code null}.
+ *
+ * @author Pedro Ruivo
+ * @since 1.0
+ */
+public class LCRDMappingsDelta {
+
+    private final HashMap<String, Integer> transactionClassChanges;
+    private final HashMap<String, Integer> domainObjectClassChanges;
+    private final HashMap<Integer, Float> clusterWeightChanges;
+
+    private LCRDMappingsDelta(HashMap<String, Integer> transactionClassChanges,
+                              HashMap<String, Integer> domainObjectClassChanges,
+                              HashMap<Integer, Float> clusterWeightChanges) {
+        this.transactionClassChanges = transactionClassChanges;
+        this.domainObjectClassChanges = domainObjectClassChanges;
+        this.clusterWeightChanges = clusterWeightChanges;
+    }
+
+    /**
+     * The cluster identifiers are compared as they are. Use {@link LCRDMappings#relabel(LCRDMappings)} first to get
+     * the smallest difference.
+     */
+    public static LCRDMappingsDelta diff(LCRDMappings previous, LCRDMappings current) {
+        return new LCRDMappingsDelta(diff(previous.getTransactionClassMap(), current.getTransactionClassMap()),
+                diff(previous.getDomainObjectClassMap(), current.getDomainObjectClassMap()),
+                diff(previous.getClusterWeightMap(), current.getClusterWeightMap()));
+    }
+
+    public HashMap<String, Integer> getTransactionClassChanges() {
+        return transactionClassChanges;
+    }
+
+    public HashMap<String, Integer> getDomainObjectClassChanges() {
+        return domainObjectClassChanges;
+    }
+
+    public HashMap<Integer, Float> getClusterWeightChanges() {
+        return clusterWeightChanges;
+    }
+
+    public int size() {
+        return transactionClassChanges.size() + domainObjectClassChanges.size() + clusterWeightChanges.size();
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    @Override
+    public String toString() {
+        return "LCRDMappingsDelta{" +
+                "transactionClassChanges=" + transactionClassChanges +
+                ", domainObjectClassChanges=" + domainObjectClassChanges +
+                ", clusterWeightChanges=" + clusterWeightChanges +
+                '}';
+    }
+
+    private static <K, V> HashMap<K, V> diff(Map<K, V> previous, Map<K, V> current) {
+        HashMap<K, V> changes = new HashMap<K, V>();
+        for (Map.Entry<K, V> entry : current.entrySet()) {
+            V previousValue = previous.get(entry.getKey());
+            if (previousValue == null ? entry.getValue() != null : !previousValue.equals(entry.getValue())) {
+                changes.put(entry.getKey(), entry.getValue());
+            }
+        }
+        for (K key : previous.keySet()) {
+            if (!current.containsKey(key)) {
+                changes.put(key, null);
+            }
+        }
+        return changes;
+    }
+}
@@ -1,11 +1,16 @@
 package eu.cloudtm.optimizer;
 
+import eu.cloudtm.metrics.ManagerMetrics;
 import eu.cloudtm.stats.ProcessedSample;
 import org.apache.log4j.Logger;
 import pt.ist.clustering.LDA.LDA;
 import pt.ist.clustering.LDA.LDA_ExtendedResult;
 
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * @author Pedro Ruivo
@@ -23,12 +28,32 @@ public class LCRDOptimizer {
     private LinkedHashMap<Integer, Float> clusterWeight;//normalized load (sum of all loads = 1) expected to be generated in every cluster
     private LinkedHashMap<String, Integer> primaryDataClusters;// domClass - primary cluster ID
     private LinkedHashMap<String, Integer> secondaryDataClusters;// domClass - secondary cluster ID
+    private volatile Map<String, Double> accessCosts = Collections.emptyMap();// domClass - cost of each access
+    private volatile Set<String> attributeClasses;// domClasses placed per attribute (all if empty), null if none
+
+    /**
+     * Sets the measured cost of an access to each domain class. The access frequencies are scaled by it before the
+     * clustering. Missing classes have cost 1.
+     */
+    public void setAccessCosts(Map<String, Double> accessCosts) {
+        this.accessCosts = accessCosts;
+    }
+
+    /**
+     * Sets the classes whose accesses are counted per attribute ({@code domClass.attribute} keys, all classes if empty,
+     * none if {@code null}). Each attribute is placed on its own. The class itself is also mapped, to the cluster of its
+     * most accessed attributes, for the nodes that only place whole classes.
+     */
+    public void setAttributeClasses(Set<String> attributeClasses) {
+        this.attributeClasses = attributeClasses;
+    }
 
     public LCRDMappings doOptimize(ProcessedSample processedSample) {
         log.debug("Optimize based on " + processedSample);
         //LinkedHashMap<String, Double> txInvokeFrequency = processedSample.getTxInvokeFrequency();
         //LinkedHashMap<String, Double> txResponseTime = processedSample.getTxResponseTime();
-        LinkedHashMap<String, LinkedHashMap<String, Integer>> dataAccessFrequencies = processedSample.getDataAccessFrequencies();
+        LinkedHashMap<String, LinkedHashMap<String, Integer>> dataAccessFrequencies =
+                applyAccessCosts(processedSample.getDataAccessFrequencies());
         //LinkedHashMap<String, Float> txWeight = calculateTxWeight(txInvokeFrequency, txResponseTime);
         LinkedHashMap<String, Float> txWeight = calculateTxWeight2(dataAccessFrequencies);
         int clusterID;
@@ -51,7 +76,9 @@ public class LCRDOptimizer {
             else clusterWeight.put(clusterID, txWeight.get(s));
         }
 
-        LCRDMappings mappings = new LCRDMappings(txClusterMap, primaryDataClusters, clusterWeight);
+        Set<String> classes = attributeClasses;
+        LCRDMappings mappings = new LCRDMappings(txClusterMap, classes == null ? primaryDataClusters :
+                addClassPlacement(primaryDataClusters, dataAccessFrequencies, classes), clusterWeight);
         log.debug("Generated mappings is " + mappings);
         return mappings;
     }
@@ -96,13 +123,17 @@ public class LCRDOptimizer {
         txClusterMap = new LinkedHashMap<String, Integer>();
         LDA_ExtendedResult ldaResult;
 
+        ManagerMetrics metrics = ManagerMetrics.getInstance();
+        long start = metrics.start();
         while (true) {
+            metrics.increment(ManagerMetrics.LDA_ITERATIONS, 1);
             ldaResult = LDA.generateOptimalLDAResult(ldaInput);
             if (ldaResult.nTopics < 6) {
                 break;
             }
             log.debug("Re-running LDA-optimize because we had too many clusters " + ldaResult.nTopics);
         }
+        metrics.record(ManagerMetrics.LDA, start);
 
         //txIDClusterMap = LDA.generateOptimalLDA(ldaInput);
         txIDClusterMap = ldaResult.getTransactionClusters();
@@ -145,6 +176,76 @@ public class LCRDOptimizer {
         return normalizedWeight;
     }
 
+    /**
+     * @return the attribute placement plus, for each class placed per attribute, the cluster where most of its
+     *         accesses go
+     */
+    private static LinkedHashMap<String, Integer> addClassPlacement(
+            LinkedHashMap<String, Integer> attributePlacement,
+            LinkedHashMap<String, LinkedHashMap<String, Integer>> dataAccessFrequencies, Set<String> classes) {
+        Map<String, Map<Integer, Long>> classAccesses = new LinkedHashMap<String, Map<Integer, Long>>();
+        for (LinkedHashMap<String, Integer> domainStats : dataAccessFrequencies.values()) {
+            for (Map.Entry<String, Integer> entry : domainStats.entrySet()) {
+                int separator = entry.getKey().lastIndexOf('.');
+                Integer cluster = attributePlacement.get(entry.getKey());
+                if (separator < 0 || cluster == null) {
+                    continue;
+                }
+                String domainClass = entry.getKey().substring(0, separator);
+                if (!classes.isEmpty() && !classes.contains(domainClass)) {
+                    continue;
+                }
+                Map<Integer, Long> clusterAccesses = classAccesses.get(domainClass);
+                if (clusterAccesses == null) {
+                    clusterAccesses = new HashMap<Integer, Long>();
+                    classAccesses.put(domainClass, clusterAccesses);
+                }
+                Long accesses = clusterAccesses.get(cluster);
+                clusterAccesses.put(cluster, (accesses == null ? 0 : accesses) + entry.getValue());
+            }
+        }
+        LinkedHashMap<String, Integer> result = new LinkedHashMap<String, Integer>(attributePlacement);
+        for (Map.Entry<String, Map<Integer, Long>> entry : classAccesses.entrySet()) {
+            if (result.containsKey(entry.getKey())) {
+                continue;
+            }
+            Integer best = null;
+            long bestAccesses = -1;
+            for (Map.Entry<Integer, Long> clusterEntry : entry.getValue().entrySet()) {
+                if (clusterEntry.getValue() > bestAccesses ||
+                        (clusterEntry.getValue() == bestAccesses && clusterEntry.getKey() < best)) {
+                    best = clusterEntry.getKey();
+                    bestAccesses = clusterEntry.getValue();
+                }
+            }
+            result.put(entry.getKey(), best);
+        }
+        log.debug("Class placement of the attributes: " + classAccesses);
+        return result;
+    }
+
+    private LinkedHashMap<String, LinkedHashMap<String, Integer>> applyAccessCosts(
+            LinkedHashMap<String, LinkedHashMap<String, Integer>> dataAccessFrequencies) {
+        Map<String, Double> costs = accessCosts;
+        if (costs.isEmpty()) {
+            return dataAccessFrequencies;
+        }
+        LinkedHashMap<String, LinkedHashMap<String, Integer>> result =
+                new LinkedHashMap<String, LinkedHashMap<String, Integer>>();
+        for (Map.Entry<String, LinkedHashMap<String, Integer>> txEntry : dataAccessFrequencies.entrySet()) {
+            LinkedHashMap<String, Integer> domainStats = new LinkedHashMap<String, Integer>();
+            for (Map.Entry<String, Integer> domainEntry : txEntry.getValue().entrySet()) {
+                Double cost = costs.get(domainEntry.getKey());
+                int frequency = domainEntry.getValue();
+                domainStats.put(domainEntry.getKey(), cost == null || frequency <= 0 ? frequency :
+                        Math.max(1, (int) Math.round(frequency * cost)));
+            }
+            result.put(txEntry.getKey(), domainStats);
+        }
+        log.debug("Access costs applied: " + costs);
+        return result;
+    }
+
     private LinkedHashMap<String, Float> calculateTxWeight2(LinkedHashMap<String, LinkedHashMap<String, Integer>> dataAccessFrequencies) {
         LinkedHashMap<String, Float> normalizedWeight = new LinkedHashMap<String, Float>();
         LinkedHashMap<String, Integer> temp = new LinkedHashMap<String, Integer>();
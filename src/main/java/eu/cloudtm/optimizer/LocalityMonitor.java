@@ -0,0 +1,353 @@
+package eu.cloudtm.optimizer;
+
+import eu.cloudtm.Utils;
+import eu.cloudtm.jmx.InfinispanObjectNameFinder;
+import eu.cloudtm.jmx.JmxManager;
+import eu.cloudtm.metrics.ManagerMetrics;
+import eu.cloudtm.stats.ProcessedSample;
+import org.apache.log4j.Logger;
+
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.*;
+
+/**
+ * Measures the data locality actually delivered by the mappings, closing the loop after each mapping change.
+ * <p/>
+ * In every round, the number of gets and remote gets ({@code locality.getsAttribute} and {@code
+ * locality.remoteGetsAttribute} of the Infinispan {@code ExtendedStatistics}) and the commit latency attributes ({@code
+ * locality.latencyAttributes}) are read from each node. The locality of a window is the fraction of local gets between
+ * two rounds. The remote gets of a node are attributed to the transaction and domain classes in proportion to the
+ * accesses that node reported in the round's DAP data.
+ * <p/>
+ * The window before a mapping change is compared with the window after it. The gain, next to the predicted locality of
+ * the mapping, is appended to the {@code locality.record} CSV file together with the per class and latency breakdown.
+ * A change that gains less than {@code locality.minGain} is flagged.
+ * <p/>
+ * With {@code locality.feedback}, the measured remote ratio of each domain class (smoothed by {@code
+ * locality.smoothing}) becomes an access cost of {@code 1 + locality.remoteCost * ratio} used by the
+ * {@link LCRDOptimizer}, so the classes that remain remote weigh more in the next clustering.
+ *
+ * @author Pedro Ruivo
+ * @since 1.0
+ */
+public class LocalityMonitor implements JmxManager.MBeanConnectionAction {
+
+    private static final Logger log = Logger.getLogger(LocalityMonitor.class);
+    private final JmxManager jmxManager;
+    private final InfinispanObjectNameFinder infinispanObjectNameFinder;
+    private final Map<String, NodeCounters> collecting;
+    private final Map<String, Double> domainRemoteRatio;
+    private volatile boolean enabled;
+    private String getsAttribute;
+    private String remoteGetsAttribute;
+    private String[] latencyAttributes;
+    private double minGain;
+    private boolean feedback;
+    private double remoteCost;
+    private double smoothing;
+    private String recordFile;
+    private Map<String, NodeCounters> previous;
+    private ProcessedSample lastSample;
+    private Window lastWindow;
+    private Change pending;
+
+    public LocalityMonitor(JmxManager jmxManager, InfinispanObjectNameFinder infinispanObjectNameFinder) {
+        this.jmxManager = jmxManager;
+        this.infinispanObjectNameFinder = infinispanObjectNameFinder;
+        this.collecting = new HashMap<String, NodeCounters>();
+        this.domainRemoteRatio = new HashMap<String, Double>();
+    }
+
+    public synchronized final void update(Properties properties) {
+        this.enabled = Boolean.parseBoolean(properties.getProperty("locality.enabled", "false"));
+        this.getsAttribute = properties.getProperty("locality.getsAttribute", "NumberOfGets");
+        this.remoteGetsAttribute = properties.getProperty("locality.remoteGetsAttribute", "NumberOfRemoteGets");
+        String latencies = properties.getProperty("locality.latencyAttributes",
+                "AvgLocalCommitTime,AvgPrepareRtt,AvgCommitRtt");
+        this.latencyAttributes = latencies.isEmpty() ? new String[0] : latencies.split(",");
+        this.minGain = Double.parseDouble(properties.getProperty("locality.minGain", "0.01"));
+        this.feedback = Boolean.parseBoolean(properties.getProperty("locality.feedback", "false"));
+        this.remoteCost = Double.parseDouble(properties.getProperty("locality.remoteCost", "1"));
+        this.smoothing = Double.parseDouble(properties.getProperty("locality.smoothing", "0.5"));
+        this.recordFile = properties.getProperty("locality.record");
+        log.info("Locality monitor is " + this);
+    }
+
+    public final boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public void perform(MBeanServerConnection connection, String hostAddress, int port) {
+        Set<ObjectName> ispnObjectNameSet = infinispanObjectNameFinder.findCacheComponent(connection, "ExtendedStatistics");
+        if (ispnObjectNameSet.isEmpty()) {
+            return;
+        }
+        ObjectName objectName = ispnObjectNameSet.iterator().next();
+        NodeCounters counters = new NodeCounters();
+        try {
+            counters.gets = ((Number) connection.getAttribute(objectName, getsAttribute)).longValue();
+            counters.remoteGets = ((Number) connection.getAttribute(objectName, remoteGetsAttribute)).longValue();
+        } catch (Exception e) {
+            log.debug("Unable to collect the number of gets from " + hostAddress + "(" + port + ")", e);
+            return;
+        }
+        for (String attribute : latencyAttributes) {
+            try {
+                counters.latencies.put(attribute, ((Number) connection.getAttribute(objectName, attribute)).doubleValue());
+            } catch (Exception e) {
+                log.debug("Unable to collect " + attribute + " from " + hostAddress + "(" + port + ")", e);
+            }
+        }
+        collecting.put(hostAddress + ":" + port, counters);
+    }
+
+    /**
+     * Closes the current window and evaluates the last mapping change, if any. The sample must have the data accesses
+     * of each node.
+     */
+    public synchronized final void measure(ProcessedSample sample) {
+        if (!enabled) {
+            return;
+        }
+        collecting.clear();
+        jmxManager.perform(this);
+        Map<String, NodeCounters> current = new HashMap<String, NodeCounters>(collecting);
+        if (previous != null) {
+            Window window = Window.between(previous, current, sample);
+            if (window == null) {
+                log.debug("No gets in the last window");
+            } else {
+                log.debug("Measured " + window);
+                if (pending != null) {
+                    evaluate(pending, window);
+                    pending = null;
+                }
+                updateCosts(window);
+            }
+            lastWindow = window;
+        }
+        previous = current;
+        lastSample = sample;
+    }
+
+    /**
+     * Records that new mappings were applied. They are evaluated at the end of the next window.
+     */
+    public synchronized final void mappingChanged(LCRDMappings mappings) {
+        if (!enabled || mappings == null) {
+            return;
+        }
+        double predicted = lastSample == null ? Double.NaN : MappingCache.score(mappings, lastSample);
+        pending = new Change(predicted, lastWindow);
+    }
+
+    /**
+     * @return the access cost of each domain class, or an empty map if the feedback is disabled
+     */
+    public synchronized final Map<String, Double> getAccessCosts() {
+        Map<String, Double> costs = new HashMap<String, Double>();
+        if (!enabled || !feedback) {
+            return costs;
+        }
+        for (Map.Entry<String, Double> entry : domainRemoteRatio.entrySet()) {
+            costs.put(entry.getKey(), 1 + remoteCost * entry.getValue());
+        }
+        return costs;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "LocalityMonitor{" +
+                "enabled=" + enabled +
+                ", getsAttribute='" + getsAttribute + '\'' +
+                ", remoteGetsAttribute='" + remoteGetsAttribute + '\'' +
+                ", latencyAttributes=" + Arrays.toString(latencyAttributes) +
+                ", minGain=" + minGain +
+                ", feedback=" + feedback +
+                ", remoteCost=" + remoteCost +
+                ", smoothing=" + smoothing +
+                ", recordFile='" + recordFile + '\'' +
+                '}';
+    }
+
+    private void evaluate(Change change, Window after) {
+        double before = change.before == null ? Double.NaN : change.before.locality;
+        double gain = after.locality - before;
+        boolean flagged = !Double.isNaN(gain) && gain < minGain;
+        if (flagged) {
+            log.warn("Mapping change did not deliver: locality went from " + before + " to " + after.locality +
+                    " (predicted " + change.predicted + ")");
+            ManagerMetrics.getInstance().increment(ManagerMetrics.LOCALITY_FLAGGED, 1);
+        } else {
+            log.info("Mapping change locality went from " + before + " to " + after.locality + " (predicted " +
+                    change.predicted + ")");
+        }
+        String file = recordFile;
+        if (file == null || file.isEmpty()) {
+            return;
+        }
+        boolean writeHeader = !new File(file).exists();
+        long timestamp = System.currentTimeMillis();
+        Writer writer = null;
+        try {
+            writer = new FileWriter(file, true);
+            if (writeHeader) {
+                writer.write("timestamp,scope,name,predicted,before,after,gain,flagged\n");
+            }
+            writer.write(timestamp + ",mapping,," + change.predicted + "," + before + "," + after.locality + "," + gain +
+                    "," + flagged + "\n");
+            recordRatios(writer, timestamp, "tx", change.before == null ? null : change.before.txRemoteRatio,
+                    after.txRemoteRatio);
+            recordRatios(writer, timestamp, "domain", change.before == null ? null : change.before.domainRemoteRatio,
+                    after.domainRemoteRatio);
+            for (Map.Entry<String, Double> entry : after.latencies.entrySet()) {
+                Double previousLatency = change.before == null ? null : change.before.latencies.get(entry.getKey());
+                double beforeLatency = previousLatency == null ? Double.NaN : previousLatency;
+                writer.write(timestamp + ",latency," + entry.getKey() + ",," + beforeLatency + "," +
+                        entry.getValue() + "," + (entry.getValue() - beforeLatency) + ",\n");
+            }
+        } catch (IOException e) {
+            log.error("Error recording locality in " + file, e);
+        } finally {
+            Utils.safeClose(writer);
+        }
+    }
+
+    private static void recordRatios(Writer writer, long timestamp, String scope, Map<String, Double> before,
+                                     Map<String, Double> after) throws IOException {
+        for (Map.Entry<String, Double> entry : after.entrySet()) {
+            Double previousRatio = before == null ? null : before.get(entry.getKey());
+            double beforeLocality = previousRatio == null ? Double.NaN : 1 - previousRatio;
+            double afterLocality = 1 - entry.getValue();
+            writer.write(timestamp + "," + scope + "," + entry.getKey() + ",," + beforeLocality + "," + afterLocality +
+                    "," + (afterLocality - beforeLocality) + ",\n");
+        }
+    }
+
+    private void updateCosts(Window window) {
+        for (Map.Entry<String, Double> entry : window.domainRemoteRatio.entrySet()) {
+            Double old = domainRemoteRatio.get(entry.getKey());
+            domainRemoteRatio.put(entry.getKey(), old == null ? entry.getValue() :
+                    smoothing * entry.getValue() + (1 - smoothing) * old);
+        }
+    }
+
+    private static class NodeCounters {
+        private final Map<String, Double> latencies = new HashMap<String, Double>();
+        private long gets;
+        private long remoteGets;
+    }
+
+    private static class Change {
+        private final double predicted;
+        private final Window before;
+
+        private Change(double predicted, Window before) {
+            this.predicted = predicted;
+            this.before = before;
+        }
+    }
+
+    private static class Window {
+        private final Map<String, Double> txRemoteRatio = new TreeMap<String, Double>();
+        private final Map<String, Double> domainRemoteRatio = new TreeMap<String, Double>();
+        private final Map<String, Double> latencies = new TreeMap<String, Double>();
+        private double locality;
+
+        /**
+         * @return the window between both snapshots, or {@code null} if there were no gets
+         */
+        private static Window between(Map<String, NodeCounters> start, Map<String, NodeCounters> end,
+                                      ProcessedSample sample) {
+            long gets = 0;
+            long remoteGets = 0;
+            Map<String, Double> nodeRemoteRatio = new HashMap<String, Double>();
+            Map<String, Double> latencySum = new HashMap<String, Double>();
+            Map<String, Integer> latencyCount = new HashMap<String, Integer>();
+            for (Map.Entry<String, NodeCounters> entry : end.entrySet()) {
+                NodeCounters last = entry.getValue();
+                NodeCounters first = start.get(entry.getKey());
+                long nodeGets = last.gets;
+                long nodeRemoteGets = last.remoteGets;
+                if (first != null && first.gets <= last.gets && first.remoteGets <= last.remoteGets) {
+                    nodeGets -= first.gets;
+                    nodeRemoteGets -= first.remoteGets;
+                }
+                //otherwise the node is new or its stats were reset
+                gets += nodeGets;
+                remoteGets += nodeRemoteGets;
+                if (nodeGets > 0) {
+                    nodeRemoteRatio.put(entry.getKey(), nodeRemoteGets * 1.0 / nodeGets);
+                }
+                for (Map.Entry<String, Double> latency : last.latencies.entrySet()) {
+                    Double sum = latencySum.get(latency.getKey());
+                    latencySum.put(latency.getKey(), sum == null ? latency.getValue() : sum + latency.getValue());
+                    Integer count = latencyCount.get(latency.getKey());
+                    latencyCount.put(latency.getKey(), count == null ? 1 : count + 1);
+                }
+            }
+            if (gets <= 0) {
+                return null;
+            }
+            Window window = new Window();
+            window.locality = 1 - remoteGets * 1.0 / gets;
+            for (Map.Entry<String, Double> entry : latencySum.entrySet()) {
+                window.latencies.put(entry.getKey(), entry.getValue() / latencyCount.get(entry.getKey()));
+            }
+            window.attribute(nodeRemoteRatio, sample.getNodeDataAccessFrequencies());
+            return window;
+        }
+
+        private void attribute(Map<String, Double> nodeRemoteRatio,
+                               Map<String, LinkedHashMap<String, LinkedHashMap<String, Integer>>> nodeAccesses) {
+            Map<String, double[]> tx = new HashMap<String, double[]>();
+            Map<String, double[]> domain = new HashMap<String, double[]>();
+            for (Map.Entry<String, LinkedHashMap<String, LinkedHashMap<String, Integer>>> node : nodeAccesses.entrySet()) {
+                Double ratio = nodeRemoteRatio.get(node.getKey());
+                if (ratio == null) {
+                    continue;
+                }
+                for (Map.Entry<String, LinkedHashMap<String, Integer>> txEntry : node.getValue().entrySet()) {
+                    for (Map.Entry<String, Integer> domainEntry : txEntry.getValue().entrySet()) {
+                        add(tx, txEntry.getKey(), domainEntry.getValue(), ratio);
+                        add(domain, domainEntry.getKey(), domainEntry.getValue(), ratio);
+                    }
+                }
+            }
+            ratios(tx, txRemoteRatio);
+            ratios(domain, domainRemoteRatio);
+        }
+
+        private static void add(Map<String, double[]> sums, String key, int accesses, double ratio) {
+            double[] sum = sums.get(key);
+            if (sum == null) {
+                sum = new double[2];
+                sums.put(key, sum);
+            }
+            sum[0] += accesses * ratio;
+            sum[1] += accesses;
+        }
+
+        private static void ratios(Map<String, double[]> sums, Map<String, Double> result) {
+            for (Map.Entry<String, double[]> entry : sums.entrySet()) {
+                if (entry.getValue()[1] > 0) {
+                    result.put(entry.getKey(), entry.getValue()[0] / entry.getValue()[1]);
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "Window{" +
+                    "locality=" + locality +
+                    ", latencies=" + latencies +
+                    '}';
+        }
+    }
+}
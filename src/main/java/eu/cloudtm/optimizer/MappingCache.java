@@ -0,0 +1,311 @@
+package eu.cloudtm.optimizer;
+
+import eu.cloudtm.Utils;
+import eu.cloudtm.metrics.ManagerMetrics;
+import eu.cloudtm.stats.Distributions;
+import eu.cloudtm.stats.ProcessedSample;
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * Remembers the mappings applied for previous workloads, so a known workload does not need a new LDA run.
+ * <p/>
+ * A workload is identified by a fingerprint: the transaction mix and the (tx class, domain class) access distribution,
+ * quantized to {@code mapping.cache.quantization}. A sample matches a cached fingerprint when the Jensen-Shannon
+ * divergence of both distributions is below {@code mapping.cache.tolerance}. The cached mappings are only reused if
+ * their locality score (see {@link #score(LCRDMappings, ProcessedSample)}) for the new sample did not drop more than
+ * {@code mapping.cache.scoreTolerance} from the score they had when they were cached.
+ * <p/>
+ * The cache keeps the {@code mapping.cache.capacity} most recently used entries and, if {@code mapping.cache.file} is
+ * set, it is saved to that file after each change and loaded on startup.
+ *
+ * @author Pedro Ruivo
+ * @since 1.0
+ */
+public class MappingCache {
+
+    private static final Logger log = Logger.getLogger(MappingCache.class);
+    private static final String SEPARATOR = "\t";
+    private final Map<String, Entry> entries;
+    private boolean enabled;
+    private int capacity;
+    private double quantization;
+    private double tolerance;
+    private double scoreTolerance;
+    private String file;
+
+    public MappingCache() {
+        entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    public synchronized final void update(Properties properties) {
+        this.enabled = Boolean.parseBoolean(properties.getProperty("mapping.cache.enabled", "false"));
+        this.capacity = Integer.parseInt(properties.getProperty("mapping.cache.capacity", "32"));
+        this.quantization = Double.parseDouble(properties.getProperty("mapping.cache.quantization", "0.01"));
+        this.tolerance = Double.parseDouble(properties.getProperty("mapping.cache.tolerance", "0.05"));
+        this.scoreTolerance = Double.parseDouble(properties.getProperty("mapping.cache.scoreTolerance", "0.05"));
+        String newFile = properties.getProperty("mapping.cache.file");
+        if (enabled && newFile != null && !newFile.isEmpty() && !newFile.equals(file)) {
+            file = newFile;
+            load();
+        } else if (newFile == null || newFile.isEmpty()) {
+            file = null;
+        }
+        log.info("Mapping cache is " + this);
+    }
+
+    public synchronized final boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return the cached mappings for a workload similar to the sample, or {@code null}
+     */
+    public synchronized final LCRDMappings lookup(ProcessedSample sample) {
+        if (!enabled || entries.isEmpty()) {
+            return null;
+        }
+        Fingerprint fingerprint = fingerprint(sample);
+        Entry best = null;
+        double bestDistance = Double.MAX_VALUE;
+        for (Entry entry : entries.values()) {
+            double distance = entry.fingerprint.distance(fingerprint);
+            if (distance <= tolerance && distance < bestDistance) {
+                best = entry;
+                bestDistance = distance;
+            }
+        }
+        ManagerMetrics metrics = ManagerMetrics.getInstance();
+        if (best == null) {
+            log.debug("No cached mappings for " + fingerprint.id);
+            metrics.increment(ManagerMetrics.MAPPING_CACHE_MISSES, 1);
+            return null;
+        }
+        double score = score(best.mappings, sample);
+        if (score < best.score - scoreTolerance) {
+            log.info("Cached mappings " + best.fingerprint.id + " scored " + score + " (was " + best.score +
+                    "). Not reusing them.");
+            metrics.increment(ManagerMetrics.MAPPING_CACHE_MISSES, 1);
+            return null;
+        }
+        //refresh the LRU order
+        entries.get(best.fingerprint.id);
+        log.info("Reusing cached mappings " + best.fingerprint.id + " (distance=" + bestDistance + ", score=" + score +
+                ")");
+        metrics.increment(ManagerMetrics.MAPPING_CACHE_HITS, 1);
+        return best.mappings;
+    }
+
+    /**
+     * Caches the mappings applied for the sample workload.
+     */
+    public synchronized final void put(ProcessedSample sample, LCRDMappings mappings) {
+        if (!enabled || mappings == null) {
+            return;
+        }
+        Fingerprint fingerprint = fingerprint(sample);
+        entries.put(fingerprint.id, new Entry(fingerprint, mappings, score(mappings, sample)));
+        log.debug("Cached mappings for " + fingerprint.id);
+        save();
+    }
+
+    /**
+     * The locality of the mappings for the sample workload: the fraction of the data accesses made by transactions
+     * in the same cluster as the accessed domain class.
+     */
+    public static double score(LCRDMappings mappings, ProcessedSample sample) {
+        long total = 0;
+        long local = 0;
+        for (Map.Entry<String, LinkedHashMap<String, Integer>> txEntry :
+                sample.getDataAccessFrequencies().entrySet()) {
+            Integer txCluster = mappings.getTransactionClassMap().get(txEntry.getKey());
+            for (Map.Entry<String, Integer> domainEntry : txEntry.getValue().entrySet()) {
+                total += domainEntry.getValue();
+                if (txCluster != null && txCluster.equals(mappings.getDomainObjectClassMap().get(domainEntry.getKey()))) {
+                    local += domainEntry.getValue();
+                }
+            }
+        }
+        return total == 0 ? 0 : local * 1.0 / total;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "MappingCache{" +
+                "enabled=" + enabled +
+                ", capacity=" + capacity +
+                ", quantization=" + quantization +
+                ", tolerance=" + tolerance +
+                ", scoreTolerance=" + scoreTolerance +
+                ", file='" + file + '\'' +
+                ", size=" + entries.size() +
+                '}';
+    }
+
+    private Fingerprint fingerprint(ProcessedSample sample) {
+        return new Fingerprint(quantize(Distributions.normalize(sample.getTxInvokeFrequency())),
+                quantize(Distributions.accessDistribution(sample.getDataAccessFrequencies())));
+    }
+
+    private LinkedHashMap<String, Double> quantize(Map<String, Double> distribution) {
+        TreeMap<String, Double> quantized = new TreeMap<String, Double>();
+        for (Map.Entry<String, Double> entry : distribution.entrySet()) {
+            quantized.put(entry.getKey(), Math.rint(entry.getValue() / quantization) * quantization);
+        }
+        return Distributions.normalize(quantized);
+    }
+
+    private void save() {
+        if (file == null) {
+            return;
+        }
+        File target = new File(file).getAbsoluteFile();
+        File temporary = new File(target.getParentFile(), "." + target.getName() + ".tmp");
+        Writer writer = null;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temporary), "UTF-8"));
+            //eldest first, so the LRU order is kept when loading
+            for (Entry entry : entries.values()) {
+                entry.write(writer);
+            }
+            writer.close();
+            writer = null;
+            Files.move(temporary.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.error("Error saving mapping cache to " + target, e);
+        } finally {
+            Utils.safeClose(writer);
+        }
+    }
+
+    private void load() {
+        entries.clear();
+        InputStream inputStream = Utils.tryOpenFile(file);
+        if (inputStream == null) {
+            log.info("Mapping cache file " + file + " not found. Starting empty.");
+            return;
+        }
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, "UTF-8"));
+            Entry entry;
+            while ((entry = Entry.read(reader)) != null) {
+                entries.put(entry.fingerprint.id, entry);
+            }
+            log.info("Loaded " + entries.size() + " cached mappings from " + file);
+        } catch (Exception e) {
+            log.error("Error loading mapping cache from " + file + ". Starting empty.", e);
+            entries.clear();
+        } finally {
+            Utils.safeClose(inputStream);
+        }
+    }
+
+    private static class Fingerprint {
+        private final LinkedHashMap<String, Double> txMix;
+        private final LinkedHashMap<String, Double> accesses;
+        private final String id;
+
+        private Fingerprint(LinkedHashMap<String, Double> txMix, LinkedHashMap<String, Double> accesses) {
+            this.txMix = txMix;
+            this.accesses = accesses;
+            this.id = Long.toHexString(hash(txMix, hash(accesses, 0xcbf29ce484222325L)));
+        }
+
+        private double distance(Fingerprint other) {
+            return Math.max(Distributions.jensenShannon(txMix, other.txMix),
+                    Distributions.jensenShannon(accesses, other.accesses));
+        }
+
+        private static long hash(Map<String, Double> distribution, long hash) {
+            //FNV-1a
+            for (Map.Entry<String, Double> entry : distribution.entrySet()) {
+                String value = entry.getKey() + "=" + entry.getValue() + ";";
+                for (int i = 0; i < value.length(); ++i) {
+                    hash ^= value.charAt(i);
+                    hash *= 0x100000001b3L;
+                }
+            }
+            return hash;
+        }
+    }
+
+    /**
+     * Serialized as a block of tab separated lines: {@code entry <score>}, then {@code tx}, {@code access},
+     * {@code txmap}, {@code domainmap} and {@code weight} lines, and {@code end}.
+     */
+    private static class Entry {
+        private final Fingerprint fingerprint;
+        private final LCRDMappings mappings;
+        private final double score;
+
+        private Entry(Fingerprint fingerprint, LCRDMappings mappings, double score) {
+            this.fingerprint = fingerprint;
+            this.mappings = mappings;
+            this.score = score;
+        }
+
+        private void write(Writer writer) throws IOException {
+            writer.write("entry" + SEPARATOR + score + "\n");
+            for (Map.Entry<String, Double> entry : fingerprint.txMix.entrySet()) {
+                writer.write("tx" + SEPARATOR + entry.getKey() + SEPARATOR + entry.getValue() + "\n");
+            }
+            for (Map.Entry<String, Double> entry : fingerprint.accesses.entrySet()) {
+                writer.write("access" + SEPARATOR + entry.getKey() + SEPARATOR + entry.getValue() + "\n");
+            }
+            mappings.write(writer);
+            writer.write("end\n");
+        }
+
+        private static Entry read(BufferedReader reader) throws IOException {
+            String line;
+            do {
+                line = reader.readLine();
+            } while (line != null && line.isEmpty());
+            if (line == null) {
+                return null;
+            }
+            String[] fields = line.split(SEPARATOR);
+            if (!"entry".equals(fields[0]) || fields.length != 2) {
+                throw new IOException("Expected an entry but found '" + line + "'");
+            }
+            double score = Double.parseDouble(fields[1]);
+            LinkedHashMap<String, Double> txMix = new LinkedHashMap<String, Double>();
+            LinkedHashMap<String, Double> accesses = new LinkedHashMap<String, Double>();
+            Map<String, Integer> txMap = new LinkedHashMap<String, Integer>();
+            Map<String, Integer> domainMap = new LinkedHashMap<String, Integer>();
+            Map<Integer, Float> weights = new LinkedHashMap<Integer, Float>();
+            while ((line = reader.readLine()) != null && !"end".equals(line)) {
+                fields = line.split(SEPARATOR);
+                if (fields.length != 3) {
+                    throw new IOException("Malformed line '" + line + "'");
+                } else if ("tx".equals(fields[0])) {
+                    txMix.put(fields[1], Double.valueOf(fields[2]));
+                } else if ("access".equals(fields[0])) {
+                    accesses.put(fields[1], Double.valueOf(fields[2]));
+                } else if ("txmap".equals(fields[0])) {
+                    txMap.put(fields[1], Integer.valueOf(fields[2]));
+                } else if ("domainmap".equals(fields[0])) {
+                    domainMap.put(fields[1], Integer.valueOf(fields[2]));
+                } else if ("weight".equals(fields[0])) {
+                    weights.put(Integer.valueOf(fields[1]), Float.valueOf(fields[2]));
+                } else {
+                    throw new IOException("Unknown line '" + line + "'");
+                }
+            }
+            if (line == null) {
+                throw new IOException("Unexpected end of file");
+            }
+            return new Entry(new Fingerprint(txMix, accesses), new LCRDMappings(txMap, domainMap, weights), score);
+        }
+    }
+}
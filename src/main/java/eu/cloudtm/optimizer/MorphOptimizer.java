@@ -1,14 +1,24 @@
 package eu.cloudtm.optimizer;
 
+import eu.cloudtm.Utils;
 import eu.cloudtm.jmx.FenixObjectNameFinder;
 import eu.cloudtm.jmx.InfinispanObjectNameFinder;
 import eu.cloudtm.jmx.JmxManager;
+import eu.cloudtm.metrics.ManagerMetrics;
 import org.apache.log4j.Logger;
 
 import javax.management.MBeanServerConnection;
 import javax.management.ObjectName;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
 import java.util.Properties;
-import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
@@ -20,51 +30,141 @@ public class MorphOptimizer implements JmxManager.MBeanConnectionAction {
 
     private static final Logger log = Logger.getLogger(MorphOptimizer.class);
     private static final String AVG_PUTS_PER_TX = "AvgPutsPerWrTransaction";
+    private static final String WRITE_RATIO = "PercentageWriteTransactions";
+    private static final String ABORT_RATE = "AbortRate";
+    private static final String ARRIVAL_RATE = "AvgTxArrivalRate";
+    private static final String RESPONSE_TIME = "AvgResponseTime";
     private static final String CURRENT_PROTOCOL = "CurrentProtocolId";
+    private static final String THRESHOLD_ORACLE = "threshold";
+    private static final String DECISION_TREE_ORACLE = "decision-tree";
+    private static final String COMMITS = "Commits";
     private final JmxManager jmxManager;
     private final InfinispanObjectNameFinder infinispanObjectNameFinder;
     private final FenixObjectNameFinder fenixObjectNameFinder;
+    private final ReconfigurationGuard reconfigurationGuard;
+    private final ShadowEvaluator shadowEvaluator;
     private int waitingTime;
     private int numberOfCollections;
     private long numberOfCommits;
-    private double avgPutsPerTx;
+    private final double[] featureSum = new double[WorkloadFeatures.NUMBER_OF_FEATURES];
+    private final int[] featureCount = new int[WorkloadFeatures.NUMBER_OF_FEATURES];
+    private int numberOfNodes;
+    private volatile HysteresisProtocolOracle oracle = new HysteresisProtocolOracle(new ThresholdProtocolOracle(), 0);
+    private volatile String recordFile;
+    private String roundProtocol;
+    private Map<String, Long> roundCommits;
+    private long roundTimestamp;
     private String currentProtocol;
+    private volatile String activeProtocol;
+    private String targetProtocol;
     private boolean optimizedIspn;
     private boolean optimizedLard;
-    private boolean collectStatsPhase;
+    private Phase phase;
+    //serializes the rounds without holding the monitor, which guards the JMX passes and the switches
+    private final Object roundLock = new Object();
+    private int switches;
+    private final Map<String, Long> nodeCommits = new HashMap<String, Long>();
+    private double responseTimeSum;
+    private int responseTimeCount;
+    private volatile boolean feedbackEnabled;
+    private volatile int settleTime;
+    private volatile double tolerance;
+    private volatile int cooldownTime;
+    private volatile long cooldownUntil;
 
     public MorphOptimizer(JmxManager jmxManager, InfinispanObjectNameFinder infinispanObjectNameFinder,
-                          FenixObjectNameFinder fenixObjectNameFinder) {
+                          FenixObjectNameFinder fenixObjectNameFinder, ReconfigurationGuard reconfigurationGuard,
+                          ShadowEvaluator shadowEvaluator) {
         this.jmxManager = jmxManager;
         this.infinispanObjectNameFinder = infinispanObjectNameFinder;
         this.fenixObjectNameFinder = fenixObjectNameFinder;
+        this.reconfigurationGuard = reconfigurationGuard;
+        this.shadowEvaluator = shadowEvaluator;
     }
 
     public final void update(Properties properties) {
         this.waitingTime = Integer.parseInt(properties.getProperty("collectionTime"));
-        this.numberOfCollections = Integer.parseInt(properties.getProperty("nrCollections"));
+        this.numberOfCollections = Integer.parseInt(properties.getProperty("nrCollections", "1"));
+        this.oracle = new HysteresisProtocolOracle(createOracle(properties),
+                Double.parseDouble(properties.getProperty("morph.oracle.hysteresis", "0.1")));
+        this.recordFile = properties.getProperty("morph.oracle.record");
+        this.feedbackEnabled = Boolean.parseBoolean(properties.getProperty("morph.feedback.enabled", "false"));
+        this.settleTime = Integer.parseInt(properties.getProperty("morph.feedback.settleTime", "30"));
+        this.tolerance = Double.parseDouble(properties.getProperty("morph.feedback.tolerance", "0.05"));
+        this.cooldownTime = Integer.parseInt(properties.getProperty("morph.cooldown", "600"));
+        log.info("Protocol oracle is " + oracle + ". Feedback enabled? " + feedbackEnabled);
     }
 
     @Override
     public void perform(MBeanServerConnection connection, String hostAddress, int port) {
-        if (collectStatsPhase) {
-            getAvgPutsPerTx(connection);
-            getCurrentProtocol(connection);
-            getNumberOfCommits(connection);
-        } else {
-            doOptimization(connection);
+        switch (phase) {
+            case COLLECT:
+                collectFeatures(connection);
+                getCurrentProtocol(connection);
+                getNumberOfCommits(connection, hostAddress + ":" + port);
+                break;
+            case MEASURE:
+                collectMeasurement(connection, hostAddress + ":" + port);
+                break;
+            case SWITCH:
+                doSwitch(connection);
+                break;
         }
     }
 
-    @SuppressWarnings("ConstantConditions")
-    public void optimize() {
-        optimizedIspn = false;
-        optimizedLard = false;
-        collectStatsPhase = true;
+    /**
+     * Collects the workload features and switches the protocol if the oracle decides so. In shadow mode, the decision
+     * is only handed to the {@link ShadowEvaluator}.
+     * <p/>
+     * The monitor of this optimizer is only held during each JMX pass, not while waiting for the collection or the
+     * feedback windows, so {@link #applyProtocol(String)} is not delayed by a round. If the protocol is switched during
+     * the round, the decision is discarded.
+     *
+     * @return {@code true} if the oracle asked for a different protocol, i.e., the workload has changed
+     */
+    public boolean optimize() {
+        synchronized (roundLock) {
+            return optimizeRound();
+        }
+    }
+
+    /**
+     * @return the protocol in use after the last collection or switch, or {@code null} if unknown
+     */
+    public final String getActiveProtocol() {
+        return activeProtocol;
+    }
 
+    /**
+     * Switches to the protocol without consulting the oracle, e.g., ahead of an expected workload change. The
+     * cooldown and the reconfiguration guard still apply. It only waits for the JMX pass of an ongoing
+     * {@link #optimize()}, which then discards its decision.
+     *
+     * @return {@code true} if the protocol was switched
+     */
+    public synchronized boolean applyProtocol(String protocol) {
+        if (protocol == null || protocol.equals(activeProtocol) || shadowEvaluator.isEnabled()) {
+            return false;
+        }
+        if (System.currentTimeMillis() < cooldownUntil) {
+            log.info("Not switching to " + protocol + ". Cooldown until " + new Date(cooldownUntil));
+            return false;
+        }
+        if (!reconfigurationGuard.canReconfigure(ReconfigurationGuard.PROTOCOL)) {
+            return false;
+        }
+        return switchTo(protocol);
+    }
+
+    @SuppressWarnings("ConstantConditions")
+    private boolean optimizeRound() {
         String finalCurrentProtocol = null;
-        double avgPutsSum = 0;
-        int avgPutCount = 0;
+        double[] collectionSum = new double[WorkloadFeatures.NUMBER_OF_FEATURES];
+        int[] collectionCount = new int[WorkloadFeatures.NUMBER_OF_FEATURES];
+        int maxNumberOfNodes = 0;
+        Map<String, Long> commits = null;
+        long totalCommits = 0;
+        final int roundSwitches = getSwitches();
 
         for (int i = 0; i < numberOfCollections; ++i) {
             try {
@@ -74,105 +174,344 @@ public class MorphOptimizer implements JmxManager.MBeanConnectionAction {
                 throw new RuntimeException(e);
             }
 
-            avgPutsPerTx = -1;
-            currentProtocol = null;
-            numberOfCommits = -1;
-            log.debug("Perform stats collection phase for " + i);
-            jmxManager.perform(this);
-            if (numberOfCommits <= 0) {
-                log.debug("Number of commits is zero!");
-                return;
-            }
-            if (avgPutsPerTx >= 0) {
-                avgPutsSum += avgPutsPerTx;
-                avgPutCount++;
-                log.debug("Current average: " + avgPutsSum / avgPutCount);
+            synchronized (this) {
+                Arrays.fill(featureSum, 0);
+                Arrays.fill(featureCount, 0);
+                numberOfNodes = 0;
+                currentProtocol = null;
+                nodeCommits.clear();
+                phase = Phase.COLLECT;
+                log.debug("Perform stats collection phase for " + i);
+                jmxManager.perform(this);
+                numberOfCommits = 0;
+                for (long nodeCommitCount : nodeCommits.values()) {
+                    numberOfCommits += nodeCommitCount;
+                }
+                if (numberOfCommits <= 0) {
+                    log.debug("Number of commits is zero!");
+                    return false;
+                }
+                for (int feature = 0; feature < WorkloadFeatures.NUMBER_OF_FEATURES; ++feature) {
+                    if (featureCount[feature] > 0) {
+                        collectionSum[feature] += featureSum[feature] / featureCount[feature];
+                        collectionCount[feature]++;
+                    }
+                }
+                maxNumberOfNodes = Math.max(maxNumberOfNodes, numberOfNodes);
+                if (finalCurrentProtocol == null && currentProtocol != null) {
+                    finalCurrentProtocol = currentProtocol;
+                }
+                commits = new HashMap<String, Long>(nodeCommits);
+                totalCommits = numberOfCommits;
             }
-            if (finalCurrentProtocol == null && currentProtocol != null) {
-                finalCurrentProtocol = currentProtocol;
+            if (collectionCount[WorkloadFeatures.AVG_PUTS_PER_TX] > 0) {
+                log.debug("Current average: " + collectionSum[WorkloadFeatures.AVG_PUTS_PER_TX] /
+                        collectionCount[WorkloadFeatures.AVG_PUTS_PER_TX]);
             }
         }
 
-        if (avgPutCount == 0) {
+        if (collectionCount[WorkloadFeatures.AVG_PUTS_PER_TX] == 0) {
             log.debug("Average Put Count is zero!");
-            return;
+            return false;
         }
 
-        avgPutsPerTx = avgPutsSum / avgPutCount;
-        currentProtocol = finalCurrentProtocol;
+        double[] values = new double[WorkloadFeatures.NUMBER_OF_FEATURES];
+        for (int feature = 0; feature < WorkloadFeatures.NUMBER_OF_FEATURES; ++feature) {
+            values[feature] = collectionCount[feature] == 0 ? 0 : collectionSum[feature] / collectionCount[feature];
+        }
+        values[WorkloadFeatures.NUMBER_OF_NODES] = maxNumberOfNodes;
+        final WorkloadFeatures features = new WorkloadFeatures(values);
+        final String current = finalCurrentProtocol;
+        synchronized (this) {
+            if (switches != roundSwitches) {
+                log.info("The protocol was switched during the collection. Discarding this round");
+                return false;
+            }
+            currentProtocol = current;
+            activeProtocol = current;
+        }
+        double throughput = roundThroughput(current, commits);
+        record(features, current, totalCommits, throughput);
 
-        collectStatsPhase = false;
-        log.debug("Perform optimization phase");
-        jmxManager.perform(this);
+        String newProtocol = oracle.predict(features, current);
+        log.debug("Features=" + features + ",current=" + current + ",new=" + newProtocol);
+        if (shadowEvaluator.isEnabled()) {
+            shadowEvaluator.protocolRound(features, current, newProtocol == null ? current : newProtocol, throughput);
+            return newProtocol != null && !newProtocol.equals(current);
+        }
+        if (newProtocol == null || newProtocol.equals(current)) {
+            return false;
+        }
+        if (System.currentTimeMillis() < cooldownUntil) {
+            log.info("Not switching to " + newProtocol + ". Cooldown until " + new Date(cooldownUntil));
+            return true;
+        }
+        if (!reconfigurationGuard.canReconfigure(ReconfigurationGuard.PROTOCOL)) {
+            return true;
+        }
+
+        if (!feedbackEnabled) {
+            switchTo(newProtocol, roundSwitches);
+            return true;
+        }
+
+        Measurement baseline = measure();
+        log.info("Baseline for " + current + " is " + baseline);
+        if (!switchTo(newProtocol, roundSwitches)) {
+            return true;
+        }
+        Measurement afterSwitch = measure();
+        log.info("After switch to " + newProtocol + " is " + afterSwitch);
+        //the nodes that joined, left or restarted in between would distort the comparison
+        Set<String> nodes = new HashSet<String>();
+        if (baseline != null && afterSwitch != null) {
+            nodes.addAll(baseline.getNodes());
+            nodes.retainAll(afterSwitch.getNodes());
+        }
+        if (nodes.isEmpty()) {
+            log.warn("Unable to verify the switch from " + current + " to " + newProtocol);
+            return true;
+        }
+        double before = baseline.throughput(nodes);
+        double after = afterSwitch.throughput(nodes);
+        log.info("Throughput over " + nodes + " was " + before + " with " + current + " and is " + after + " with " +
+                newProtocol);
+        if (after < before * (1 - tolerance)) {
+            log.warn("Throughput regressed from " + before + " to " + after + " after switching to " + newProtocol +
+                    ". Rolling back to " + current);
+            if (!switchTo(current, roundSwitches + 1)) {
+                //no cooldown, so the next round can still act on the regression
+                log.error("Unable to roll back to " + current + ". The regressed protocol " + newProtocol +
+                        " may still be in use");
+                ManagerMetrics.getInstance().increment(ManagerMetrics.PROTOCOL_ROLLBACK_FAILURES, 1);
+                return true;
+            }
+            cooldownUntil = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(cooldownTime);
+        }
+        return true;
     }
 
-    private void doOptimization(MBeanServerConnection connection) {
-        if (optimizedIspn && optimizedLard) {
-            return;
+    private synchronized int getSwitches() {
+        return switches;
+    }
+
+    /**
+     * Switches to the protocol unless it was switched by someone else since the round started.
+     *
+     * @param expectedSwitches the number of switches seen by the round
+     */
+    private synchronized boolean switchTo(String protocol, int expectedSwitches) {
+        if (switches != expectedSwitches) {
+            log.info("The protocol was switched during the round. Not switching to " + protocol);
+            return false;
         }
-        String newProtocol = oracle();
-        log.debug("AvgPuts=" + avgPutsPerTx + ",current=" + currentProtocol + ",new=" + newProtocol);
-        if (currentProtocol.equals(newProtocol)) {
-            optimizedIspn = true;
-            optimizedLard = true;
-            return;
+        return switchTo(protocol);
+    }
+
+    private synchronized boolean switchTo(String protocol) {
+        optimizedIspn = false;
+        optimizedLard = false;
+        targetProtocol = protocol;
+        phase = Phase.SWITCH;
+        log.debug("Perform optimization phase. Switching to " + protocol);
+        jmxManager.perform(this);
+        if (optimizedIspn || optimizedLard) {
+            switches++;
+            reconfigurationGuard.reconfigured(ReconfigurationGuard.PROTOCOL);
         }
-        Set<ObjectName> ispnObjectNameSet = infinispanObjectNameFinder.findCacheComponent(connection, "ReconfigurableReplicationManager");
-        log.debug("ISPN found: " + ispnObjectNameSet);
-        if (ispnObjectNameSet.isEmpty()) {
-            return;
+        if (optimizedIspn && optimizedLard) {
+            currentProtocol = protocol;
+            activeProtocol = protocol;
+            return true;
         }
-        final ObjectName objectName = ispnObjectNameSet.iterator().next();
-        final Object[] params = new Object[]{newProtocol, false, false};
-        final String[] signature = new String[]{String.class.getName(), boolean.class.getName(), boolean.class.getName()};
+        log.error("Unable to switch to " + protocol + ". ISPN switched? " + optimizedIspn + ", Fenix switched? " +
+                optimizedLard);
+        return false;
+    }
+
+    private Measurement measure() {
+        Snapshot first = measureSnapshot();
         try {
-            connection.invoke(objectName, "switchTo", params, signature);
-            optimizedIspn = true;
-        } catch (Exception e) {
-            //ignored
+            Thread.sleep(TimeUnit.SECONDS.toMillis(settleTime));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
         }
+        Snapshot last = measureSnapshot();
+        return last.timestamp > first.timestamp ? new Measurement(first, last) : null;
+    }
 
-        Set<ObjectName> fenixObjectNameSet = fenixObjectNameFinder.findFenixComponent(connection, "Worker");
-        log.debug("Fenix found: " + fenixObjectNameSet);
-        if (fenixObjectNameSet.isEmpty()) {
+    private synchronized Snapshot measureSnapshot() {
+        nodeCommits.clear();
+        responseTimeSum = 0;
+        responseTimeCount = 0;
+        phase = Phase.MEASURE;
+        jmxManager.perform(this);
+        return new Snapshot(new HashMap<String, Long>(nodeCommits),
+                responseTimeCount == 0 ? 0 : responseTimeSum / responseTimeCount);
+    }
+
+    private void collectMeasurement(MBeanServerConnection connection, String node) {
+        Set<ObjectName> txObjectNameSet = infinispanObjectNameFinder.findCacheComponent(connection, "Transactions");
+        if (!txObjectNameSet.isEmpty()) {
+            try {
+                long commits = ((Number) connection.getAttribute(txObjectNameSet.iterator().next(), COMMITS)).longValue();
+                nodeCommits.put(node, commits);
+            } catch (Exception e) {
+                log.error("Error collecting the number of commits", e);
+            }
+        }
+        Set<ObjectName> ispnObjectNameSet = infinispanObjectNameFinder.findCacheComponent(connection, "ExtendedStatistics");
+        if (!ispnObjectNameSet.isEmpty()) {
+            try {
+                responseTimeSum += ((Number) connection.getAttribute(ispnObjectNameSet.iterator().next(),
+                        RESPONSE_TIME)).doubleValue();
+                responseTimeCount++;
+            } catch (Exception e) {
+                log.error("Error collecting the response time", e);
+            }
+        }
+    }
+
+    private void doSwitch(MBeanServerConnection connection) {
+        if (optimizedIspn && optimizedLard) {
             return;
         }
-        final ObjectName workerObjectName = fenixObjectNameSet.iterator().next();
-        final Object[] params2 = new Object[]{newProtocol};
-        final String[] signature2 = new String[]{String.class.getName()};
-        try {
-            connection.invoke(workerObjectName, "setProtocol", params2, signature2);
-            optimizedLard = true;
-        } catch (Exception e) {
-            //ignored
+        if (!optimizedIspn) {
+            Set<ObjectName> ispnObjectNameSet = infinispanObjectNameFinder.findCacheComponent(connection, "ReconfigurableReplicationManager");
+            log.debug("ISPN found: " + ispnObjectNameSet);
+            if (ispnObjectNameSet.isEmpty()) {
+                return;
+            }
+            final ObjectName objectName = ispnObjectNameSet.iterator().next();
+            final Object[] params = new Object[]{targetProtocol, false, false};
+            final String[] signature = new String[]{String.class.getName(), boolean.class.getName(), boolean.class.getName()};
+            try {
+                connection.invoke(objectName, "switchTo", params, signature);
+                optimizedIspn = true;
+            } catch (Exception e) {
+                log.error("Error switching ISPN to " + targetProtocol, e);
+            }
         }
+
+        if (!optimizedLard) {
+            Set<ObjectName> fenixObjectNameSet = fenixObjectNameFinder.findFenixComponent(connection, "Worker");
+            log.debug("Fenix found: " + fenixObjectNameSet);
+            if (fenixObjectNameSet.isEmpty()) {
+                return;
+            }
+            final ObjectName workerObjectName = fenixObjectNameSet.iterator().next();
+            final Object[] params2 = new Object[]{targetProtocol};
+            final String[] signature2 = new String[]{String.class.getName()};
+            try {
+                connection.invoke(workerObjectName, "setProtocol", params2, signature2);
+                optimizedLard = true;
+            } catch (Exception e) {
+                log.error("Error setting Fenix protocol to " + targetProtocol, e);
+            }
+        }
+    }
+
+    private ProtocolOracle createOracle(Properties properties) {
+        String type = properties.getProperty("morph.oracle", THRESHOLD_ORACLE);
+        if (DECISION_TREE_ORACLE.equals(type)) {
+            String model = properties.getProperty("morph.oracle.model");
+            try {
+                return DecisionTreeProtocolOracle.load(model);
+            } catch (Exception e) {
+                log.error("Error loading decision tree model from " + model + ". Using the threshold oracle", e);
+            }
+        } else if (!THRESHOLD_ORACLE.equals(type)) {
+            log.warn("Unknown protocol oracle '" + type + "'. Using the threshold oracle");
+        }
+        return new ThresholdProtocolOracle();
     }
 
-    private String oracle() {
-        if (avgPutsPerTx < 5) {
-            return "2PC";
-        } else if (avgPutsPerTx >= 5 && avgPutsPerTx <= 20) {
-            return "TO";
-        } else {
-            return "PB";
+    /**
+     * The cluster throughput since the previous round: the sum of the commits of each node over the elapsed time. It is
+     * NaN if the protocol or the responding nodes changed in between, or if a node restarted, since the commit counters
+     * of different nodes cannot be compared.
+     *
+     * @param commits the commits of each node in this round
+     * @return the commits per second, or {@link Double#NaN} if unknown
+     */
+    private double roundThroughput(String protocol, Map<String, Long> commits) {
+        long now = System.currentTimeMillis();
+        double throughput = Double.NaN;
+        if (protocol != null && protocol.equals(roundProtocol) && commits.keySet().equals(roundCommits.keySet()) &&
+                now > roundTimestamp) {
+            long delta = 0;
+            for (Map.Entry<String, Long> entry : commits.entrySet()) {
+                long before = roundCommits.get(entry.getKey());
+                if (entry.getValue() < before) {
+                    delta = -1;
+                    break;
+                }
+                delta += entry.getValue() - before;
+            }
+            if (delta >= 0) {
+                throughput = delta * 1000.0 / (now - roundTimestamp);
+            }
         }
+        roundProtocol = protocol;
+        roundCommits = commits;
+        roundTimestamp = now;
+        return throughput;
     }
 
-    private void getAvgPutsPerTx(MBeanServerConnection connection) {
-        if (avgPutsPerTx >= 0) {
+    /**
+     * Appends the features, the protocol, the commits and the throughput since the previous round to the
+     * {@code morph.oracle.record} file. The records are the input of the {@link ThroughputModel}.
+     */
+    private void record(WorkloadFeatures features, String protocol, long commits, double throughput) {
+        String file = recordFile;
+        if (file == null || file.isEmpty()) {
             return;
         }
+        boolean writeHeader = !new File(file).exists();
+        Writer writer = null;
+        try {
+            writer = new FileWriter(file, true);
+            if (writeHeader) {
+                for (String name : WorkloadFeatures.FEATURE_NAMES) {
+                    writer.write(name + ",");
+                }
+                writer.write("currentProtocol,commits,throughput\n");
+            }
+            for (double value : features.toArray()) {
+                writer.write(value + ",");
+            }
+            writer.write(protocol + "," + commits + "," + throughput + "\n");
+        } catch (IOException e) {
+            log.error("Error recording workload features in " + file, e);
+        } finally {
+            Utils.safeClose(writer);
+        }
+    }
+
+    private void collectFeatures(MBeanServerConnection connection) {
         Set<ObjectName> ispnObjectNameSet = infinispanObjectNameFinder.findCacheComponent(connection, "ExtendedStatistics");
         log.debug("ISPN found: " + ispnObjectNameSet);
         if (ispnObjectNameSet.isEmpty()) {
             return;
         }
         final ObjectName objectName = ispnObjectNameSet.iterator().next();
+        numberOfNodes++;
+        collectFeature(connection, objectName, AVG_PUTS_PER_TX, WorkloadFeatures.AVG_PUTS_PER_TX);
+        collectFeature(connection, objectName, WRITE_RATIO, WorkloadFeatures.WRITE_RATIO);
+        collectFeature(connection, objectName, ABORT_RATE, WorkloadFeatures.ABORT_RATE);
+        collectFeature(connection, objectName, ARRIVAL_RATE, WorkloadFeatures.ARRIVAL_RATE);
+        collectFeature(connection, objectName, RESPONSE_TIME, WorkloadFeatures.RESPONSE_TIME);
+    }
+
+    private void collectFeature(MBeanServerConnection connection, ObjectName objectName, String attribute, int feature) {
         try {
-            avgPutsPerTx = (Double) connection.getAttribute(objectName, AVG_PUTS_PER_TX);
-            log.debug("Collected Average Put per Transaction: " + avgPutsPerTx);
+            double value = ((Number) connection.getAttribute(objectName, attribute)).doubleValue();
+            featureSum[feature] += value;
+            featureCount[feature]++;
+            log.debug("Collected " + attribute + ": " + value);
         } catch (Exception e) {
-            //ignored
+            log.debug("Unable to collect " + attribute + " from " + objectName, e);
         }
     }
 
@@ -194,10 +533,7 @@ public class MorphOptimizer implements JmxManager.MBeanConnectionAction {
         }
     }
 
-    private void getNumberOfCommits(MBeanServerConnection connection) {
-        if (numberOfCommits >= 0) {
-            return;
-        }
+    private void getNumberOfCommits(MBeanServerConnection connection, String node) {
         Set<ObjectName> ispnObjectNameSet = infinispanObjectNameFinder.findCacheComponent(connection, "Transactions");
         log.debug("ISPN found: " + ispnObjectNameSet);
         if (ispnObjectNameSet.isEmpty()) {
@@ -205,10 +541,78 @@ public class MorphOptimizer implements JmxManager.MBeanConnectionAction {
         }
         final ObjectName objectName = ispnObjectNameSet.iterator().next();
         try {
-            numberOfCommits = (Long) connection.getAttribute(objectName, "Commits");
-            log.debug("Collected number of commits: " + numberOfCommits);
+            long commits = ((Number) connection.getAttribute(objectName, COMMITS)).longValue();
+            nodeCommits.put(node, commits);
+            log.debug("Collected number of commits: " + commits);
         } catch (Exception e) {
             //ignored
         }
     }
+
+    private static enum Phase {
+        COLLECT,
+        MEASURE,
+        SWITCH
+    }
+
+    /**
+     * The commits of each node and the average response time at an instant.
+     */
+    private static class Snapshot {
+        private final Map<String, Long> commits;
+        private final double responseTime;
+        private final long timestamp;
+
+        private Snapshot(Map<String, Long> commits, double responseTime) {
+            this.commits = commits;
+            this.responseTime = responseTime;
+            this.timestamp = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * The commits of each node between two snapshots. The commit counters are cumulative, so only the nodes that
+     * answered both snapshots, without restarting in between, are measured.
+     */
+    private static class Measurement {
+        private final Map<String, Long> commits;
+        private final double responseTime;
+        private final long elapsed;
+
+        private Measurement(Snapshot first, Snapshot last) {
+            commits = new HashMap<String, Long>();
+            for (Map.Entry<String, Long> entry : last.commits.entrySet()) {
+                Long before = first.commits.get(entry.getKey());
+                if (before != null && entry.getValue() >= before) {
+                    commits.put(entry.getKey(), entry.getValue() - before);
+                }
+            }
+            responseTime = last.responseTime;
+            elapsed = last.timestamp - first.timestamp;
+        }
+
+        private Set<String> getNodes() {
+            return commits.keySet();
+        }
+
+        /**
+         * @return the commits per second of the nodes
+         */
+        private double throughput(Set<String> nodes) {
+            long sum = 0;
+            for (String node : nodes) {
+                sum += commits.get(node);
+            }
+            return sum * 1000.0 / elapsed;
+        }
+
+        @Override
+        public String toString() {
+            return "Measurement{" +
+                    "throughput=" + throughput(getNodes()) +
+                    ", nodes=" + getNodes().size() +
+                    ", responseTime=" + responseTime +
+                    '}';
+        }
+    }
 }
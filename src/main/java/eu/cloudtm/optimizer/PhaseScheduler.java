@@ -0,0 +1,500 @@
+package eu.cloudtm.optimizer;
+
+import eu.cloudtm.Utils;
+import eu.cloudtm.stats.Distributions;
+import eu.cloudtm.stats.ProcessedSample;
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Learns the recurring workload phases and when the workload moves between them, so the configuration of the next
+ * phase can be applied just before the expected transition instead of one collection window after it.
+ * <p/>
+ * Each sample is assigned to the phase with the closest transaction mix (Jensen-Shannon divergence below {@code
+ * phase.tolerance}) or starts a new phase. Each phase remembers the last mappings and protocol in effect while it was
+ * observed. When the phase changes, the time of the change within the period ({@code phase.period}, one day by default)
+ * is recorded for that transition. A transition is predicted once it was observed at least {@code phase.minOccurrences}
+ * times with a circular deviation below {@code phase.jitter}, and it is applied {@code phase.lead} seconds before its
+ * expected time. The lead should cover the collection window, since the change is only observed at the end of it.
+ * <p/>
+ * After a configuration is applied ahead of time, the reactive rounds (LCRD and Morph) are held until the new phase is
+ * observed or the expected time plus the lead has passed, so they do not revert it.
+ * <p/>
+ * If {@code phase.file} is set, the phases (except their mappings) and the transitions are saved to that file and
+ * loaded on startup.
+ *
+ * @author Pedro Ruivo
+ * @since 1.0
+ */
+public class PhaseScheduler {
+
+    private static final Logger log = Logger.getLogger(PhaseScheduler.class);
+    private static final String SEPARATOR = "\t";
+    private static final int MAX_OCCURRENCES = 16;
+    private static final int MAX_CENTROID_WEIGHT = 10;
+    private final List<Phase> phases;
+    private final Map<String, Transition> transitions;
+    private volatile boolean enabled;
+    private long period;
+    private double tolerance;
+    private int maxPhases;
+    private long lead;
+    private long jitter;
+    private int minOccurrences;
+    private String file;
+    private Phase current;
+    private int nextPhaseId;
+    private Plan hold;
+
+    public PhaseScheduler() {
+        phases = new ArrayList<Phase>();
+        transitions = new HashMap<String, Transition>();
+    }
+
+    public synchronized final void update(Properties properties) {
+        this.enabled = Boolean.parseBoolean(properties.getProperty("phase.enabled", "false"));
+        this.period = TimeUnit.SECONDS.toMillis(Long.parseLong(properties.getProperty("phase.period", "86400")));
+        this.tolerance = Double.parseDouble(properties.getProperty("phase.tolerance", "0.05"));
+        this.maxPhases = Integer.parseInt(properties.getProperty("phase.maxPhases", "8"));
+        this.lead = TimeUnit.SECONDS.toMillis(Long.parseLong(properties.getProperty("phase.lead", "300")));
+        this.jitter = TimeUnit.SECONDS.toMillis(Long.parseLong(properties.getProperty("phase.jitter", "900")));
+        this.minOccurrences = Integer.parseInt(properties.getProperty("phase.minOccurrences", "2"));
+        String newFile = properties.getProperty("phase.file");
+        if (enabled && newFile != null && !newFile.isEmpty() && !newFile.equals(file)) {
+            file = newFile;
+            load();
+        } else if (newFile == null || newFile.isEmpty()) {
+            file = null;
+        }
+        log.info("Phase scheduler is " + this);
+    }
+
+    public final boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Assigns the sample to a phase and records the transition if the phase has changed.
+     *
+     * @return the phase identifier, or -1 if disabled
+     */
+    public synchronized final int observe(ProcessedSample sample) {
+        if (!enabled) {
+            return -1;
+        }
+        long now = System.currentTimeMillis();
+        LinkedHashMap<String, Double> txMix = Distributions.normalize(sample.getTxInvokeFrequency());
+        Phase closest = null;
+        double closestDistance = Double.MAX_VALUE;
+        for (Phase phase : phases) {
+            double distance = Distributions.jensenShannon(phase.txMix, txMix);
+            if (distance < closestDistance) {
+                closest = phase;
+                closestDistance = distance;
+            }
+        }
+        if (closest == null || closestDistance > tolerance) {
+            closest = newPhase(txMix);
+            log.info("New workload phase " + closest.id + " (distance to the closest is " +
+                    (closestDistance == Double.MAX_VALUE ? "n/a" : String.valueOf(closestDistance)) + ")");
+        } else {
+            closest.merge(txMix);
+        }
+        closest.lastSeen = now;
+        if (current != null && current != closest) {
+            Transition transition = transitions.get(key(current.id, closest.id));
+            if (transition == null) {
+                transition = new Transition(current.id, closest.id);
+                transitions.put(key(current.id, closest.id), transition);
+            }
+            transition.add(now % period);
+            log.info("Workload moved from phase " + current.id + " to " + closest.id + ". " + transition);
+            save();
+        }
+        current = closest;
+        if (hold != null && hold.phase == closest.id) {
+            log.info("Phase " + hold.phase + " arrived as expected");
+            hold = null;
+        }
+        return closest.id;
+    }
+
+    /**
+     * @return {@code true} if a configuration was applied ahead of a transition that was not observed yet. The
+     *         reactive round should not change it.
+     */
+    public synchronized final boolean isHolding() {
+        expireHold(System.currentTimeMillis());
+        return hold != null;
+    }
+
+    /**
+     * Remembers the configuration in effect for the phase.
+     */
+    public synchronized final void remember(int phaseId, LCRDMappings mappings, String protocol) {
+        Phase phase = findPhase(phaseId);
+        if (phase == null) {
+            return;
+        }
+        if (mappings != null) {
+            phase.mappings = mappings;
+        }
+        if (protocol != null && !protocol.equals(phase.protocol)) {
+            phase.protocol = protocol;
+            save();
+        }
+    }
+
+    /**
+     * @return the configuration of the phase expected within the lead time, or {@code null} if none is expected or it
+     *         was already returned
+     */
+    public synchronized final Plan nextTransition() {
+        long now = System.currentTimeMillis();
+        expireHold(now);
+        if (!enabled || current == null || hold != null) {
+            return null;
+        }
+        long offset = now % period;
+        Plan best = null;
+        for (Transition transition : transitions.values()) {
+            if (transition.from != current.id || transition.offsets.size() < minOccurrences) {
+                continue;
+            }
+            long deviation = transition.deviation(period);
+            if (deviation > jitter) {
+                log.debug("Transition " + transition + " is not regular enough (deviation " + deviation + " ms)");
+                continue;
+            }
+            long delay = (transition.expectedOffset(period) - offset + period) % period;
+            long expectedTime = now + delay;
+            if (delay > lead || Math.abs(expectedTime - transition.lastApplied) <= lead) {
+                continue;
+            }
+            Phase target = findPhase(transition.to);
+            if (target == null || (target.mappings == null && target.protocol == null)) {
+                continue;
+            }
+            if (best == null || expectedTime < best.expectedTime) {
+                best = new Plan(target.id, target.mappings, target.protocol, expectedTime);
+            }
+        }
+        if (best != null) {
+            transitions.get(key(current.id, best.phase)).lastApplied = best.expectedTime;
+            hold = best;
+        }
+        return best;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "PhaseScheduler{" +
+                "enabled=" + enabled +
+                ", period=" + period +
+                ", tolerance=" + tolerance +
+                ", maxPhases=" + maxPhases +
+                ", lead=" + lead +
+                ", jitter=" + jitter +
+                ", minOccurrences=" + minOccurrences +
+                ", file='" + file + '\'' +
+                ", phases=" + phases.size() +
+                ", transitions=" + transitions.size() +
+                '}';
+    }
+
+    private Phase newPhase(LinkedHashMap<String, Double> txMix) {
+        if (phases.size() >= maxPhases) {
+            Phase eldest = null;
+            for (Phase phase : phases) {
+                if (phase != current && (eldest == null || phase.lastSeen < eldest.lastSeen)) {
+                    eldest = phase;
+                }
+            }
+            if (eldest != null) {
+                log.debug("Forgetting phase " + eldest.id);
+                phases.remove(eldest);
+                for (Iterator<Transition> iterator = transitions.values().iterator(); iterator.hasNext(); ) {
+                    Transition transition = iterator.next();
+                    if (transition.from == eldest.id || transition.to == eldest.id) {
+                        iterator.remove();
+                    }
+                }
+            }
+        }
+        Phase phase = new Phase(nextPhaseId++, txMix);
+        phases.add(phase);
+        save();
+        return phase;
+    }
+
+    private void expireHold(long now) {
+        if (hold != null && now > hold.expectedTime + lead) {
+            log.info("Phase " + hold.phase + " did not arrive as expected. Releasing the hold.");
+            hold = null;
+        }
+    }
+
+    private Phase findPhase(int id) {
+        for (Phase phase : phases) {
+            if (phase.id == id) {
+                return phase;
+            }
+        }
+        return null;
+    }
+
+    private static String key(int from, int to) {
+        return from + "->" + to;
+    }
+
+    /**
+     * Format: {@code phase <id> <protocol or -> <tx=frequency;...>} and {@code transition <from> <to>
+     * <offset,offset,...>} lines. The offsets are in milliseconds within the period.
+     */
+    private void save() {
+        if (file == null) {
+            return;
+        }
+        File target = new File(file).getAbsoluteFile();
+        File temporary = new File(target.getParentFile(), "." + target.getName() + ".tmp");
+        Writer writer = null;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temporary), "UTF-8"));
+            for (Phase phase : phases) {
+                writer.write("phase" + SEPARATOR + phase.id + SEPARATOR + (phase.protocol == null ? "-" :
+                        phase.protocol) + SEPARATOR);
+                boolean first = true;
+                for (Map.Entry<String, Double> entry : phase.txMix.entrySet()) {
+                    writer.write((first ? "" : ";") + entry.getKey() + "=" + entry.getValue());
+                    first = false;
+                }
+                writer.write("\n");
+            }
+            for (Transition transition : transitions.values()) {
+                writer.write("transition" + SEPARATOR + transition.from + SEPARATOR + transition.to + SEPARATOR);
+                boolean first = true;
+                for (Long offset : transition.offsets) {
+                    writer.write((first ? "" : ",") + offset);
+                    first = false;
+                }
+                writer.write("\n");
+            }
+            writer.close();
+            writer = null;
+            Files.move(temporary.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.error("Error saving workload phases to " + target, e);
+        } finally {
+            Utils.safeClose(writer);
+        }
+    }
+
+    private void load() {
+        phases.clear();
+        transitions.clear();
+        current = null;
+        hold = null;
+        nextPhaseId = 0;
+        InputStream inputStream = Utils.tryOpenFile(file);
+        if (inputStream == null) {
+            log.info("Workload phases file " + file + " not found. Starting empty.");
+            return;
+        }
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, "UTF-8"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                String[] fields = line.split(SEPARATOR, -1);
+                if ("phase".equals(fields[0]) && fields.length == 4) {
+                    LinkedHashMap<String, Double> txMix = new LinkedHashMap<String, Double>();
+                    if (!fields[3].isEmpty()) {
+                        for (String pair : fields[3].split(";")) {
+                            int index = pair.lastIndexOf('=');
+                            txMix.put(pair.substring(0, index), Double.valueOf(pair.substring(index + 1)));
+                        }
+                    }
+                    Phase phase = new Phase(Integer.parseInt(fields[1]), txMix);
+                    phase.protocol = "-".equals(fields[2]) ? null : fields[2];
+                    phases.add(phase);
+                    nextPhaseId = Math.max(nextPhaseId, phase.id + 1);
+                } else if ("transition".equals(fields[0]) && fields.length == 4) {
+                    Transition transition = new Transition(Integer.parseInt(fields[1]), Integer.parseInt(fields[2]));
+                    if (!fields[3].isEmpty()) {
+                        for (String offset : fields[3].split(",")) {
+                            transition.add(Long.parseLong(offset));
+                        }
+                    }
+                    transitions.put(key(transition.from, transition.to), transition);
+                } else {
+                    throw new IOException("Malformed line '" + line + "'");
+                }
+            }
+            log.info("Loaded " + phases.size() + " workload phases and " + transitions.size() + " transitions from " +
+                    file);
+        } catch (Exception e) {
+            log.error("Error loading workload phases from " + file + ". Starting empty.", e);
+            phases.clear();
+            transitions.clear();
+            nextPhaseId = 0;
+        } finally {
+            Utils.safeClose(inputStream);
+        }
+    }
+
+    /**
+     * The configuration to apply ahead of an expected phase transition.
+     */
+    public static class Plan {
+        private final int phase;
+        private final LCRDMappings mappings;
+        private final String protocol;
+        private final long expectedTime;
+
+        private Plan(int phase, LCRDMappings mappings, String protocol, long expectedTime) {
+            this.phase = phase;
+            this.mappings = mappings;
+            this.protocol = protocol;
+            this.expectedTime = expectedTime;
+        }
+
+        public int getPhase() {
+            return phase;
+        }
+
+        /**
+         * @return the mappings of the phase, or {@code null} if they are not known yet
+         */
+        public LCRDMappings getMappings() {
+            return mappings;
+        }
+
+        /**
+         * @return the protocol of the phase, or {@code null} if it is not known yet
+         */
+        public String getProtocol() {
+            return protocol;
+        }
+
+        public long getExpectedTime() {
+            return expectedTime;
+        }
+
+        @Override
+        public String toString() {
+            return "Plan{" +
+                    "phase=" + phase +
+                    ", protocol='" + protocol + '\'' +
+                    ", expectedTime=" + new Date(expectedTime) +
+                    '}';
+        }
+    }
+
+    private static class Phase {
+        private final int id;
+        private LinkedHashMap<String, Double> txMix;
+        private int weight;
+        private LCRDMappings mappings;
+        private String protocol;
+        private long lastSeen;
+
+        private Phase(int id, LinkedHashMap<String, Double> txMix) {
+            this.id = id;
+            this.txMix = txMix;
+            this.weight = 1;
+        }
+
+        /**
+         * Moves the centroid towards the sample. The weight is capped, so the phase follows slow changes.
+         */
+        private void merge(Map<String, Double> sample) {
+            LinkedHashMap<String, Double> merged = new LinkedHashMap<String, Double>();
+            Set<String> keys = new LinkedHashSet<String>(txMix.keySet());
+            keys.addAll(sample.keySet());
+            for (String key : keys) {
+                Double oldValue = txMix.get(key);
+                Double newValue = sample.get(key);
+                merged.put(key, ((oldValue == null ? 0 : oldValue) * weight + (newValue == null ? 0 : newValue)) /
+                        (weight + 1));
+            }
+            txMix = Distributions.normalize(merged);
+            weight = Math.min(weight + 1, MAX_CENTROID_WEIGHT);
+        }
+    }
+
+    private static class Transition {
+        private final int from;
+        private final int to;
+        private final LinkedList<Long> offsets;
+        private long lastApplied;
+
+        private Transition(int from, int to) {
+            this.from = from;
+            this.to = to;
+            this.offsets = new LinkedList<Long>();
+            this.lastApplied = Long.MIN_VALUE / 2;
+        }
+
+        private void add(long offset) {
+            offsets.addLast(offset);
+            if (offsets.size() > MAX_OCCURRENCES) {
+                offsets.removeFirst();
+            }
+        }
+
+        /**
+         * @return the circular mean of the offsets
+         */
+        private long expectedOffset(long period) {
+            double angle = Math.atan2(sumSin(period), sumCos(period));
+            long offset = Math.round(angle / (2 * Math.PI) * period);
+            return (offset % period + period) % period;
+        }
+
+        /**
+         * @return the circular standard deviation of the offsets
+         */
+        private long deviation(long period) {
+            double length = Math.hypot(sumSin(period), sumCos(period)) / offsets.size();
+            if (length >= 1) {
+                return 0;
+            } else if (length <= 0) {
+                return Long.MAX_VALUE;
+            }
+            return Math.round(Math.sqrt(-2 * Math.log(length)) / (2 * Math.PI) * period);
+        }
+
+        private double sumSin(long period) {
+            double sum = 0;
+            for (Long offset : offsets) {
+                sum += Math.sin(2 * Math.PI * offset / period);
+            }
+            return sum;
+        }
+
+        private double sumCos(long period) {
+            double sum = 0;
+            for (Long offset : offsets) {
+                sum += Math.cos(2 * Math.PI * offset / period);
+            }
+            return sum;
+        }
+
+        @Override
+        public String toString() {
+            return "Transition{" +
+                    "from=" + from +
+                    ", to=" + to +
+                    ", occurrences=" + offsets.size() +
+                    '}';
+        }
+    }
+}
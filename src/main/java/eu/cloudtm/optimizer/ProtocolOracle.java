@@ -0,0 +1,17 @@
+package eu.cloudtm.optimizer;
+
+/**
+ * Predicts the replication protocol (2PC, TO or PB) that maximizes the throughput for a given workload.
+ *
+ * @author Pedro Ruivo
+ * @since 1.0
+ */
+public interface ProtocolOracle {
+
+    /**
+     * @param features the workload characterization collected from the cluster
+     * @return the protocol name or {@code null} if the oracle is unable to decide
+     */
+    String predict(WorkloadFeatures features);
+
+}
@@ -0,0 +1,86 @@
+package eu.cloudtm.optimizer;
+
+import org.apache.log4j.Logger;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounds the reconfiguration overhead: each kind of reconfiguration (protocol, mapping) must stay in place for a
+ * minimum dwell time and the total number of reconfigurations in a sliding window is limited.
+ *
+ * @author Pedro Ruivo
+ * @since 1.0
+ */
+public class ReconfigurationGuard {
+
+    public static final String PROTOCOL = "protocol";
+    public static final String MAPPING = "mapping";
+    private static final Logger log = Logger.getLogger(ReconfigurationGuard.class);
+    private final Map<String, Long> lastReconfiguration;
+    private final Map<String, Long> minDwellTime;
+    private final LinkedList<Long> history;
+    private int maxReconfigurations;
+    private long window;
+
+    public ReconfigurationGuard() {
+        lastReconfiguration = new HashMap<String, Long>();
+        minDwellTime = new HashMap<String, Long>();
+        history = new LinkedList<Long>();
+        maxReconfigurations = Integer.MAX_VALUE;
+    }
+
+    public synchronized final void update(Properties properties) {
+        minDwellTime.put(PROTOCOL, TimeUnit.SECONDS.toMillis(
+                Long.parseLong(properties.getProperty("reconfiguration.minDwell.protocol", "0"))));
+        minDwellTime.put(MAPPING, TimeUnit.SECONDS.toMillis(
+                Long.parseLong(properties.getProperty("reconfiguration.minDwell.mapping", "0"))));
+        maxReconfigurations = Integer.parseInt(properties.getProperty("reconfiguration.maxPerWindow",
+                String.valueOf(Integer.MAX_VALUE)));
+        window = TimeUnit.SECONDS.toMillis(Long.parseLong(properties.getProperty("reconfiguration.window", "3600")));
+        log.info("Reconfiguration guard is " + this);
+    }
+
+    public synchronized final boolean canReconfigure(String kind) {
+        long now = System.currentTimeMillis();
+        Long last = lastReconfiguration.get(kind);
+        Long dwell = minDwellTime.get(kind);
+        if (last != null && dwell != null && now - last < dwell) {
+            log.info("Reconfiguration of " + kind + " denied. Minimum dwell time not reached (" + (now - last) +
+                    " < " + dwell + " ms)");
+            return false;
+        }
+        expire(now);
+        if (history.size() >= maxReconfigurations) {
+            log.info("Reconfiguration of " + kind + " denied. Already " + history.size() + " reconfigurations in the " +
+                    "last " + window + " ms");
+            return false;
+        }
+        return true;
+    }
+
+    public synchronized final void reconfigured(String kind) {
+        long now = System.currentTimeMillis();
+        lastReconfiguration.put(kind, now);
+        history.addLast(now);
+        expire(now);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ReconfigurationGuard{" +
+                "minDwellTime=" + minDwellTime +
+                ", maxReconfigurations=" + maxReconfigurations +
+                ", window=" + window +
+                '}';
+    }
+
+    private void expire(long now) {
+        while (!history.isEmpty() && now - history.getFirst() >= window) {
+            history.removeFirst();
+        }
+    }
+}
@@ -0,0 +1,276 @@
+package eu.cloudtm.optimizer;
+
+import eu.cloudtm.Utils;
+import eu.cloudtm.stats.ProcessedSample;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Properties;
+
+/**
+ * Scores the decisions taken in shadow mode, where the mappings and the protocol are computed every round but never
+ * applied, against the statistics that follow them.
+ * <p/>
+ * Mappings: the locality (see {@link MappingCache#score(LCRDMappings, ProcessedSample)}) predicted on the sample they
+ * were computed from is compared with their locality on the next sample and with the locality of the active mappings
+ * on that same sample. The active mappings are the last ones pushed by this manager or, since a shadow manager never
+ * pushes, the ones saved by the active manager in {@code mapping.activeFile}. If none are known, only the prediction
+ * is scored.
+ * <p/>
+ * Protocol: a shadow manager never switches, so the throughput of a proposed protocol cannot be observed. Both the
+ * proposed and the active protocols are scored with a {@link ThroughputModel} of the recorded runs
+ * ({@code shadow.protocolModel}, by default the {@code morph.oracle.record} file) on the workload the proposal was
+ * made for. The proposal wins if its predicted throughput is higher than the one of the active protocol. The
+ * throughput observed until the next Morph round is reported next to the prediction for the active protocol, which
+ * shows the accuracy of the model.
+ * <p/>
+ * Each evaluation is appended to the {@code shadow.report} CSV file, if set. For the protocol, the columns are the
+ * predicted throughput of the active protocol, the predicted throughput of the proposed protocol and the observed
+ * throughput.
+ *
+ * @author Pedro Ruivo
+ * @since 1.0
+ */
+public class ShadowEvaluator {
+
+    private static final Logger log = Logger.getLogger(ShadowEvaluator.class);
+    private final Mean predictedLocality;
+    private final Mean shadowLocality;
+    private final Mean activeLocality;
+    private final Mean predictedThroughput;
+    private final Mean shadowThroughput;
+    private final Mean observedThroughput;
+    private volatile boolean enabled;
+    private volatile String reportFile;
+    private volatile String activeMappingsFile;
+    private volatile String modelFile;
+    private volatile int neighbours;
+    private int mappingRounds;
+    private int mappingWins;
+    private int mappingLosses;
+    private int protocolRounds;
+    private int protocolAgreements;
+    private int protocolWins;
+    private int protocolLosses;
+    private String loadedMappingsFile;
+    private long loadedMappingsModified;
+    private LCRDMappings fileMappings;
+    private String loadedModelFile;
+    private long loadedModelModified;
+    private ThroughputModel model;
+    private ProcessedSample pendingSample;
+    private LCRDMappings pendingMappings;
+    private WorkloadFeatures pendingFeatures;
+    private String pendingActiveProtocol;
+    private String pendingProposedProtocol;
+
+    public ShadowEvaluator() {
+        predictedLocality = new Mean();
+        shadowLocality = new Mean();
+        activeLocality = new Mean();
+        predictedThroughput = new Mean();
+        shadowThroughput = new Mean();
+        observedThroughput = new Mean();
+    }
+
+    public final void update(Properties properties) {
+        this.enabled = Boolean.parseBoolean(properties.getProperty("shadow.enabled", "false"));
+        this.reportFile = properties.getProperty("shadow.report");
+        this.activeMappingsFile = properties.getProperty("mapping.activeFile");
+        this.modelFile = properties.getProperty("shadow.protocolModel", properties.getProperty("morph.oracle.record"));
+        this.neighbours = Integer.parseInt(properties.getProperty("shadow.protocolModel.neighbours", "5"));
+        log.info("Shadow evaluator is " + this);
+    }
+
+    public final boolean isEnabled() {
+        return enabled;
+    }
+
+    public final void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Scores the previous proposal, if any, against the sample and keeps the new proposal for the next round.
+     *
+     * @param sample   the sample the proposal was computed from
+     * @param proposed the mappings proposed by the optimizer, or {@code null} if it did not produce any
+     * @param active   the mappings in effect, or {@code null} to read them from {@code mapping.activeFile}
+     */
+    public synchronized final void mappingRound(ProcessedSample sample, LCRDMappings proposed, LCRDMappings active) {
+        if (pendingMappings != null) {
+            if (active == null) {
+                active = activeMappings();
+            }
+            double predicted = MappingCache.score(pendingMappings, pendingSample);
+            double shadow = MappingCache.score(pendingMappings, sample);
+            double current = active == null ? Double.NaN : MappingCache.score(active, sample);
+            mappingRounds++;
+            predictedLocality.add(predicted);
+            shadowLocality.add(shadow);
+            if (!Double.isNaN(current)) {
+                activeLocality.add(current);
+                if (shadow > current) {
+                    mappingWins++;
+                } else if (shadow < current) {
+                    mappingLosses++;
+                }
+            }
+            log.info("Shadow mappings locality: predicted=" + predicted + ", observed=" + shadow + ", active=" +
+                    current);
+            report("mapping", predicted, shadow, current);
+        }
+        pendingSample = proposed == null ? null : sample;
+        pendingMappings = proposed;
+        log.info("Shadow report: " + this);
+    }
+
+    /**
+     * Scores the previous proposal with the throughput model and the throughput observed since then, and keeps the new
+     * proposal.
+     *
+     * @param features the workload the oracle decided on
+     * @param active   the protocol in effect
+     * @param proposed the protocol chosen by the oracle
+     * @param throughput the cluster throughput since the previous round, or {@link Double#NaN} if unknown
+     */
+    public synchronized final void protocolRound(WorkloadFeatures features, String active, String proposed,
+                                                 double throughput) {
+        if (pendingActiveProtocol != null) {
+            ThroughputModel current = throughputModel();
+            double predicted = current == null ? Double.NaN : current.predict(pendingFeatures, pendingActiveProtocol);
+            double shadow = current == null ? Double.NaN : current.predict(pendingFeatures, pendingProposedProtocol);
+            protocolRounds++;
+            if (!Double.isNaN(throughput)) {
+                observedThroughput.add(throughput);
+            }
+            if (!Double.isNaN(predicted)) {
+                predictedThroughput.add(predicted);
+            }
+            if (!Double.isNaN(shadow)) {
+                shadowThroughput.add(shadow);
+            }
+            if (pendingActiveProtocol.equals(pendingProposedProtocol)) {
+                protocolAgreements++;
+            } else if (shadow > predicted) {
+                protocolWins++;
+            } else if (shadow < predicted) {
+                protocolLosses++;
+            }
+            log.info("Shadow protocol " + pendingProposedProtocol + ": predicted throughput=" + shadow +
+                    ", predicted with " + pendingActiveProtocol + "=" + predicted + ", observed=" + throughput);
+            report("protocol", predicted, shadow, throughput);
+        }
+        pendingFeatures = features;
+        pendingActiveProtocol = active;
+        pendingProposedProtocol = proposed;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ShadowEvaluator{" +
+                "enabled=" + enabled +
+                ", mappingRounds=" + mappingRounds +
+                ", predictedLocality=" + predictedLocality +
+                ", shadowLocality=" + shadowLocality +
+                ", activeLocality=" + activeLocality +
+                ", mappingWins=" + mappingWins +
+                ", mappingLosses=" + mappingLosses +
+                ", protocolRounds=" + protocolRounds +
+                ", protocolAgreements=" + protocolAgreements +
+                ", protocolWins=" + protocolWins +
+                ", protocolLosses=" + protocolLosses +
+                ", predictedThroughput=" + predictedThroughput +
+                ", shadowThroughput=" + shadowThroughput +
+                ", observedThroughput=" + observedThroughput +
+                ", model=" + model +
+                '}';
+    }
+
+    /**
+     * @return the mappings saved by the active manager, reloaded if the file changed, or {@code null} if unknown
+     */
+    private LCRDMappings activeMappings() {
+        String file = activeMappingsFile;
+        if (file == null || file.isEmpty()) {
+            return null;
+        }
+        long modified = new File(file).lastModified();
+        if (!file.equals(loadedMappingsFile) || modified != loadedMappingsModified) {
+            loadedMappingsFile = file;
+            loadedMappingsModified = modified;
+            try {
+                fileMappings = LCRDMappings.load(file);
+            } catch (Exception e) {
+                log.error("Error loading the active mappings from " + file, e);
+                fileMappings = null;
+            }
+        }
+        return fileMappings;
+    }
+
+    /**
+     * @return the throughput model, reloaded if the records changed, or {@code null} if unavailable
+     */
+    private ThroughputModel throughputModel() {
+        String file = modelFile;
+        if (file == null || file.isEmpty()) {
+            return null;
+        }
+        long modified = new File(file).lastModified();
+        if (!file.equals(loadedModelFile) || modified != loadedModelModified) {
+            loadedModelFile = file;
+            loadedModelModified = modified;
+            try {
+                model = ThroughputModel.load(file, neighbours);
+            } catch (Exception e) {
+                log.error("Error loading the throughput model from " + file, e);
+                model = null;
+            }
+        }
+        return model;
+    }
+
+    private void report(String kind, double predicted, double shadow, double active) {
+        String file = reportFile;
+        if (file == null || file.isEmpty()) {
+            return;
+        }
+        boolean writeHeader = !new File(file).exists();
+        Writer writer = null;
+        try {
+            writer = new FileWriter(file, true);
+            if (writeHeader) {
+                writer.write("timestamp,kind,predicted,shadow,active\n");
+            }
+            writer.write(System.currentTimeMillis() + "," + kind + "," + predicted + "," + shadow + "," + active +
+                    "\n");
+        } catch (IOException e) {
+            log.error("Error writing shadow report to " + file, e);
+        } finally {
+            Utils.safeClose(writer);
+        }
+    }
+
+    private static class Mean {
+        private double sum;
+        private int count;
+
+        private void add(double value) {
+            sum += value;
+            count++;
+        }
+
+        private double value() {
+            return count == 0 ? Double.NaN : sum / count;
+        }
+
+        @Override
+        public String toString() {
+            return String.valueOf(value());
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package eu.cloudtm.optimizer;
+
+/**
+ * The original oracle: it only looks to the average number of puts per write transaction.
+ *
+ * @author Pedro Ruivo
+ * @since 1.0
+ */
+public class ThresholdProtocolOracle implements ProtocolOracle {
+
+    public static final double TO_THRESHOLD = 5;
+    public static final double PB_THRESHOLD = 20;
+
+    @Override
+    public String predict(WorkloadFeatures features) {
+        double avgPutsPerTx = features.getAvgPutsPerTx();
+        if (avgPutsPerTx < TO_THRESHOLD) {
+            return "2PC";
+        } else if (avgPutsPerTx <= PB_THRESHOLD) {
+            return "TO";
+        } else {
+            return "PB";
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ThresholdProtocolOracle{" +
+                "toThreshold=" + TO_THRESHOLD +
+                ", pbThreshold=" + PB_THRESHOLD +
+                '}';
+    }
+}
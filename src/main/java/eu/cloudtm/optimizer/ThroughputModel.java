@@ -0,0 +1,170 @@
+package eu.cloudtm.optimizer;
+
+import eu.cloudtm.Utils;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Predicts the throughput of a replication protocol for a workload from recorded runs: the mean throughput of the
+ * {@code neighbours} recorded workloads closest to it that ran with that protocol. The features are scaled by their
+ * range in the records, so no feature dominates the distance.
+ * <p/>
+ * The records are the CSV file written with {@code morph.oracle.record}: one column for each of the
+ * {@link WorkloadFeatures#FEATURE_NAMES}, a {@code currentProtocol} column and a {@code throughput} column (commits per
+ * second of the cluster). Rows without throughput are ignored.
+ *
+ * @author Pedro Ruivo
+ * @since 1.0
+ */
+public class ThroughputModel {
+
+    private static final String PROTOCOL_COLUMN = "currentProtocol";
+    private static final String THROUGHPUT_COLUMN = "throughput";
+    private final List<Run> runs;
+    private final double[] range;
+    private final int neighbours;
+
+    private ThroughputModel(List<Run> runs, int neighbours) {
+        this.runs = runs;
+        this.neighbours = neighbours;
+        double[] min = new double[WorkloadFeatures.NUMBER_OF_FEATURES];
+        double[] max = new double[WorkloadFeatures.NUMBER_OF_FEATURES];
+        Arrays.fill(min, Double.POSITIVE_INFINITY);
+        Arrays.fill(max, Double.NEGATIVE_INFINITY);
+        for (Run run : runs) {
+            for (int feature = 0; feature < WorkloadFeatures.NUMBER_OF_FEATURES; ++feature) {
+                min[feature] = Math.min(min[feature], run.features[feature]);
+                max[feature] = Math.max(max[feature], run.features[feature]);
+            }
+        }
+        range = new double[WorkloadFeatures.NUMBER_OF_FEATURES];
+        for (int feature = 0; feature < WorkloadFeatures.NUMBER_OF_FEATURES; ++feature) {
+            range[feature] = max[feature] > min[feature] ? max[feature] - min[feature] : 1;
+        }
+    }
+
+    public static ThroughputModel load(String csvFilePath, int neighbours) throws IOException {
+        InputStream inputStream = Utils.tryOpenFile(csvFilePath);
+        if (inputStream == null) {
+            throw new FileNotFoundException(csvFilePath);
+        }
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, "UTF-8"));
+            String header = reader.readLine();
+            if (header == null) {
+                throw new IOException("Empty records " + csvFilePath);
+            }
+            String[] columns = header.split(",");
+            int[] featureColumn = new int[WorkloadFeatures.NUMBER_OF_FEATURES];
+            Arrays.fill(featureColumn, -1);
+            int protocolColumn = -1;
+            int throughputColumn = -1;
+            for (int i = 0; i < columns.length; ++i) {
+                String column = columns[i].trim();
+                if (PROTOCOL_COLUMN.equals(column)) {
+                    protocolColumn = i;
+                } else if (THROUGHPUT_COLUMN.equals(column)) {
+                    throughputColumn = i;
+                } else if (WorkloadFeatures.indexOf(column) >= 0) {
+                    featureColumn[WorkloadFeatures.indexOf(column)] = i;
+                }
+            }
+            if (protocolColumn < 0 || throughputColumn < 0) {
+                throw new IOException("Columns '" + PROTOCOL_COLUMN + "' and '" + THROUGHPUT_COLUMN +
+                        "' are required in " + csvFilePath);
+            }
+            for (int i = 0; i < WorkloadFeatures.NUMBER_OF_FEATURES; ++i) {
+                if (featureColumn[i] < 0) {
+                    throw new IOException("Column '" + WorkloadFeatures.FEATURE_NAMES[i] + "' not found in " +
+                            csvFilePath);
+                }
+            }
+            List<Run> runs = new ArrayList<Run>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                String[] fields = line.split(",");
+                double throughput = Double.parseDouble(fields[throughputColumn].trim());
+                if (Double.isNaN(throughput)) {
+                    continue;
+                }
+                double[] features = new double[WorkloadFeatures.NUMBER_OF_FEATURES];
+                for (int i = 0; i < WorkloadFeatures.NUMBER_OF_FEATURES; ++i) {
+                    features[i] = Double.parseDouble(fields[featureColumn[i]].trim());
+                }
+                runs.add(new Run(features, fields[protocolColumn].trim(), throughput));
+            }
+            return new ThroughputModel(runs, neighbours);
+        } finally {
+            Utils.safeClose(inputStream);
+        }
+    }
+
+    /**
+     * @return the predicted throughput, or {@link Double#NaN} if the protocol was never recorded
+     */
+    public final double predict(WorkloadFeatures features, String protocol) {
+        final double[] values = features.toArray();
+        List<Run> candidates = new ArrayList<Run>();
+        for (Run run : runs) {
+            if (run.protocol.equals(protocol)) {
+                candidates.add(run);
+            }
+        }
+        if (candidates.isEmpty()) {
+            return Double.NaN;
+        }
+        Collections.sort(candidates, new Comparator<Run>() {
+            @Override
+            public int compare(Run o1, Run o2) {
+                return Double.compare(distance(o1.features, values), distance(o2.features, values));
+            }
+        });
+        int size = Math.min(neighbours, candidates.size());
+        double sum = 0;
+        for (int i = 0; i < size; ++i) {
+            sum += candidates.get(i).throughput;
+        }
+        return sum / size;
+    }
+
+    @Override
+    public String toString() {
+        return "ThroughputModel{" +
+                "runs=" + runs.size() +
+                ", neighbours=" + neighbours +
+                '}';
+    }
+
+    private double distance(double[] features, double[] other) {
+        double distance = 0;
+        for (int feature = 0; feature < WorkloadFeatures.NUMBER_OF_FEATURES; ++feature) {
+            double delta = (features[feature] - other[feature]) / range[feature];
+            distance += delta * delta;
+        }
+        return distance;
+    }
+
+    private static class Run {
+        private final double[] features;
+        private final String protocol;
+        private final double throughput;
+
+        private Run(double[] features, String protocol, double throughput) {
+            this.features = features;
+            this.protocol = protocol;
+            this.throughput = throughput;
+        }
+    }
+}
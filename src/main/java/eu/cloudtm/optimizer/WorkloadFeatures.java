@@ -0,0 +1,88 @@
+package eu.cloudtm.optimizer;
+
+import java.util.Arrays;
+
+/**
+ * The workload characterization used by the {@link ProtocolOracle} to pick the replication protocol.
+ *
+ * @author Pedro Ruivo
+ * @since 1.0
+ */
+public class WorkloadFeatures {
+
+    public static final String[] FEATURE_NAMES = new String[]{
+            "writeRatio",
+            "avgPutsPerTx",
+            "abortRate",
+            "arrivalRate",
+            "numberOfNodes",
+            "responseTime"};
+    public static final int NUMBER_OF_FEATURES = FEATURE_NAMES.length;
+    public static final int WRITE_RATIO = 0;
+    public static final int AVG_PUTS_PER_TX = 1;
+    public static final int ABORT_RATE = 2;
+    public static final int ARRIVAL_RATE = 3;
+    public static final int NUMBER_OF_NODES = 4;
+    public static final int RESPONSE_TIME = 5;
+    private final double[] values;
+
+    public WorkloadFeatures(double[] values) {
+        if (values.length != NUMBER_OF_FEATURES) {
+            throw new IllegalArgumentException("Expected " + NUMBER_OF_FEATURES + " features but got " + values.length);
+        }
+        this.values = Arrays.copyOf(values, NUMBER_OF_FEATURES);
+    }
+
+    public static int indexOf(String featureName) {
+        for (int i = 0; i < NUMBER_OF_FEATURES; ++i) {
+            if (FEATURE_NAMES[i].equals(featureName)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public final double get(int feature) {
+        return values[feature];
+    }
+
+    public final double getWriteRatio() {
+        return values[WRITE_RATIO];
+    }
+
+    public final double getAvgPutsPerTx() {
+        return values[AVG_PUTS_PER_TX];
+    }
+
+    public final double getAbortRate() {
+        return values[ABORT_RATE];
+    }
+
+    public final double getArrivalRate() {
+        return values[ARRIVAL_RATE];
+    }
+
+    public final double getNumberOfNodes() {
+        return values[NUMBER_OF_NODES];
+    }
+
+    public final double getResponseTime() {
+        return values[RESPONSE_TIME];
+    }
+
+    public final double[] toArray() {
+        return Arrays.copyOf(values, NUMBER_OF_FEATURES);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("WorkloadFeatures{");
+        for (int i = 0; i < NUMBER_OF_FEATURES; ++i) {
+            if (i != 0) {
+                builder.append(", ");
+            }
+            builder.append(FEATURE_NAMES[i]).append('=').append(values[i]);
+        }
+        return builder.append('}').toString();
+    }
+}
@@ -0,0 +1,67 @@
+package eu.cloudtm.sim;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Measures how well a clustering recovers the planted one. The cluster ids do not need to match.
+ *
+ * @author Pedro Ruivo
+ * @since 1.0
+ */
+public class ClusterRecovery {
+
+    private ClusterRecovery() {
+    }
+
+    /**
+     * Adjusted Rand index of two assignments, computed over the keys present in both. It is 1 for identical
+     * clusterings (modulo the cluster ids) and around 0 for random ones.
+     */
+    public static double adjustedRandIndex(Map<String, Integer> expected, Map<String, Integer> actual) {
+        Map<Long, Integer> contingency = new HashMap<Long, Integer>();
+        Map<Integer, Integer> expectedSizes = new HashMap<Integer, Integer>();
+        Map<Integer, Integer> actualSizes = new HashMap<Integer, Integer>();
+        int n = 0;
+        for (Map.Entry<String, Integer> entry : expected.entrySet()) {
+            Integer actualCluster = actual.get(entry.getKey());
+            if (actualCluster == null || entry.getValue() == null) {
+                continue;
+            }
+            n++;
+            increment(contingency, ((long) entry.getValue() << 32) | (actualCluster & 0xffffffffL));
+            increment(expectedSizes, entry.getValue());
+            increment(actualSizes, actualCluster);
+        }
+        if (n < 2) {
+            return n == 0 ? 0 : 1;
+        }
+        double index = sumOfPairs(contingency);
+        double expectedPairs = sumOfPairs(expectedSizes);
+        double actualPairs = sumOfPairs(actualSizes);
+        double expectedIndex = expectedPairs * actualPairs / pairs(n);
+        double maxIndex = (expectedPairs + actualPairs) / 2;
+        if (maxIndex == expectedIndex) {
+            //both are a single cluster or both are all singletons
+            return 1;
+        }
+        return (index - expectedIndex) / (maxIndex - expectedIndex);
+    }
+
+    private static <K> void increment(Map<K, Integer> counts, K key) {
+        Integer count = counts.get(key);
+        counts.put(key, count == null ? 1 : count + 1);
+    }
+
+    private static double sumOfPairs(Map<?, Integer> counts) {
+        double sum = 0;
+        for (Integer count : counts.values()) {
+            sum += pairs(count);
+        }
+        return sum;
+    }
+
+    private static double pairs(int n) {
+        return n * (n - 1) / 2.0;
+    }
+}
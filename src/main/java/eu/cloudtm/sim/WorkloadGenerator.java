@@ -0,0 +1,348 @@
+package eu.cloudtm.sim;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * Generates realistic DAP access data and transaction statistics with a known (planted) cluster structure.
+ * <p/>
+ * The transaction classes and the domain classes are split in {@code workload.clusters} clusters. A transaction
+ * accesses a domain class of its own cluster with probability {@code workload.locality}, otherwise any domain class.
+ * In both cases the domain class is picked from a Zipf distribution with exponent {@code workload.skew} (0 is
+ * uniform). The transaction classes popularity follows the same Zipf distribution.
+ * <p/>
+ * The workload changes in phases: in every new phase, the transaction classes are re-assigned to clusters and the
+ * popularity rankings are shuffled. The domain classes never change of cluster, like the data in a real system.
+ *
+ * @author Pedro Ruivo
+ * @since 1.0
+ */
+public class WorkloadGenerator {
+
+    private static final String TX_CLASS_FORMAT = "tx-class-%d";
+    private static final String DOMAIN_CLASS_FORMAT = "pt.ist.fenixframework.example.domain.Class%d";
+    private final String[] transactionClasses;
+    private final String[] domainClasses;
+    private final int attributesPerClass;
+    private final int clusters;
+    private final double locality;
+    private final int accessesPerTx;
+    private final double writeRatio;
+    private final double arrivalRate;
+    private final int phaseLength;
+    private final long seed;
+    private final Zipf txPopularity;
+    private final Zipf domainPopularity;
+    private final Zipf[] clusterPopularity;
+    private final Random random;
+    private int phase;
+    //per phase state
+    private int[] txCluster;
+    private int[] txRank;
+    private int[] domainRank;
+    private int[] domainByRank;
+    private int[][] clusterMembers;
+    private int[] contextId;
+
+    public WorkloadGenerator(Properties properties) {
+        int numberOfTxClasses = Integer.parseInt(properties.getProperty("workload.txClasses", "20"));
+        int numberOfDomainClasses = Integer.parseInt(properties.getProperty("workload.domainClasses", "50"));
+        this.attributesPerClass = Integer.parseInt(properties.getProperty("workload.attributesPerClass", "5"));
+        this.clusters = Math.max(1, Integer.parseInt(properties.getProperty("workload.clusters", "3")));
+        double skew = Double.parseDouble(properties.getProperty("workload.skew", "1.0"));
+        this.locality = Double.parseDouble(properties.getProperty("workload.locality", "0.9"));
+        this.accessesPerTx = Integer.parseInt(properties.getProperty("workload.accessesPerTx", "1000"));
+        this.writeRatio = Double.parseDouble(properties.getProperty("workload.writeRatio", "0.2"));
+        this.arrivalRate = Double.parseDouble(properties.getProperty("workload.arrivalRate", "100"));
+        this.phaseLength = Integer.parseInt(properties.getProperty("workload.phaseLength", "0"));
+        this.seed = Long.parseLong(properties.getProperty("workload.seed", "0"));
+
+        transactionClasses = new String[numberOfTxClasses];
+        for (int i = 0; i < numberOfTxClasses; ++i) {
+            transactionClasses[i] = String.format(TX_CLASS_FORMAT, i);
+        }
+        domainClasses = new String[numberOfDomainClasses];
+        for (int i = 0; i < numberOfDomainClasses; ++i) {
+            domainClasses[i] = String.format(DOMAIN_CLASS_FORMAT, i);
+        }
+        txPopularity = new Zipf(numberOfTxClasses, skew);
+        domainPopularity = new Zipf(numberOfDomainClasses, skew);
+        clusterPopularity = new Zipf[clusters];
+        for (int cluster = 0; cluster < clusters; ++cluster) {
+            clusterPopularity[cluster] = new Zipf(clusterSize(cluster), skew);
+        }
+        random = new Random(seed);
+        setPhase(0);
+    }
+
+    public final String[] getTransactionClasses() {
+        return transactionClasses.clone();
+    }
+
+    public final String[] getDomainClasses() {
+        return domainClasses.clone();
+    }
+
+    /**
+     * @return the phase of the {@code sample}-th sample, based on {@code workload.phaseLength}
+     */
+    public final int phaseOf(int sample) {
+        return phaseLength <= 0 ? 0 : sample / phaseLength;
+    }
+
+    public synchronized final int getPhase() {
+        return phase;
+    }
+
+    /**
+     * Changes the workload. The phase 0 assigns the transaction class {@code i} to the cluster {@code i % clusters}
+     * and the other phases are random permutations derived from {@code workload.seed}.
+     */
+    public synchronized final void setPhase(int phase) {
+        this.phase = phase;
+        Random phaseRandom = new Random(seed * 31 + phase);
+        txCluster = new int[transactionClasses.length];
+        txRank = identity(transactionClasses.length);
+        domainRank = identity(domainClasses.length);
+        List<Integer> assignment = new ArrayList<Integer>(transactionClasses.length);
+        for (int i = 0; i < transactionClasses.length; ++i) {
+            assignment.add(i % clusters);
+        }
+        if (phase != 0) {
+            Collections.shuffle(assignment, phaseRandom);
+            shuffle(txRank, phaseRandom);
+            shuffle(domainRank, phaseRandom);
+        }
+        for (int i = 0; i < transactionClasses.length; ++i) {
+            txCluster[i] = assignment.get(i);
+        }
+        domainByRank = new int[domainClasses.length];
+        for (int i = 0; i < domainClasses.length; ++i) {
+            domainByRank[domainRank[i]] = i;
+        }
+        clusterMembers = new int[clusters][];
+        for (int cluster = 0; cluster < clusters; ++cluster) {
+            //members sorted by popularity: the member at index 0 is the most accessed
+            Integer[] members = new Integer[clusterSize(cluster)];
+            for (int i = 0; i < members.length; ++i) {
+                members[i] = cluster + i * clusters;
+            }
+            Arrays.sort(members, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer o1, Integer o2) {
+                    return domainRank[o1] - domainRank[o2];
+                }
+            });
+            clusterMembers[cluster] = new int[members.length];
+            for (int i = 0; i < members.length; ++i) {
+                clusterMembers[cluster][i] = members[i];
+            }
+        }
+        contextId = new int[transactionClasses.length];
+        for (int i = 0; i < contextId.length; ++i) {
+            contextId[i] = phaseRandom.nextInt(1000);
+        }
+    }
+
+    /**
+     * @return the planted transaction class to cluster assignment of the current phase
+     */
+    public synchronized final LinkedHashMap<String, Integer> getPlantedTransactionClusters() {
+        LinkedHashMap<String, Integer> result = new LinkedHashMap<String, Integer>();
+        for (int i = 0; i < transactionClasses.length; ++i) {
+            result.put(transactionClasses[i], txCluster[i]);
+        }
+        return result;
+    }
+
+    /**
+     * @return the planted domain class to cluster assignment (it does not depend on the phase)
+     */
+    public final LinkedHashMap<String, Integer> getPlantedDomainClusters() {
+        LinkedHashMap<String, Integer> result = new LinkedHashMap<String, Integer>();
+        for (int i = 0; i < domainClasses.length; ++i) {
+            result.put(domainClasses[i], i % clusters);
+        }
+        return result;
+    }
+
+    /**
+     * @return the {@code DapReadAccessData} of the node
+     */
+    public String readAccessData(int node) {
+        return payload(Math.round(accessesPerTx * (1 - writeRatio)));
+    }
+
+    /**
+     * @return the {@code DapWriteAccessData} of the node
+     */
+    public String writeAccessData(int node) {
+        return payload(Math.round(accessesPerTx * writeRatio));
+    }
+
+    public synchronized double arrivalRate(int node, String txClass) {
+        int index = indexOf(txClass);
+        if (index < 0) {
+            return 0;
+        }
+        //+-10% of noise between nodes
+        return arrivalRate * transactionClasses.length * txPopularity.probability(txRank[index]) *
+                (0.9 + random.nextDouble() * 0.2);
+    }
+
+    public synchronized long responseTime(int node, String txClass) {
+        int index = indexOf(txClass);
+        if (index < 0) {
+            return 0;
+        }
+        return 1000L * (1 + txCluster[index]) + random.nextInt(500);
+    }
+
+    /**
+     * @return the aggregated access frequencies (transaction class to domain class) of {@code nodes} nodes, as
+     *         returned by the {@link eu.cloudtm.stats.StatsCollector}
+     */
+    public synchronized final LinkedHashMap<String, LinkedHashMap<String, Integer>> accessMatrix(int nodes) {
+        LinkedHashMap<String, LinkedHashMap<String, Integer>> result =
+                new LinkedHashMap<String, LinkedHashMap<String, Integer>>();
+        for (int tx = 0; tx < transactionClasses.length; ++tx) {
+            int[] counts = new int[domainClasses.length];
+            for (int i = 0; i < accessesPerTx * nodes; ++i) {
+                counts[nextDomainClass(tx)]++;
+            }
+            LinkedHashMap<String, Integer> accesses = new LinkedHashMap<String, Integer>();
+            for (int domain = 0; domain < counts.length; ++domain) {
+                if (counts[domain] != 0) {
+                    accesses.put(domainClasses[domain], counts[domain]);
+                }
+            }
+            if (!accesses.isEmpty()) {
+                result.put(transactionClasses[tx], accesses);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "WorkloadGenerator{" +
+                "txClasses=" + transactionClasses.length +
+                ", domainClasses=" + domainClasses.length +
+                ", attributesPerClass=" + attributesPerClass +
+                ", clusters=" + clusters +
+                ", locality=" + locality +
+                ", accessesPerTx=" + accessesPerTx +
+                ", writeRatio=" + writeRatio +
+                ", arrivalRate=" + arrivalRate +
+                ", phaseLength=" + phaseLength +
+                ", seed=" + seed +
+                ", phase=" + phase +
+                '}';
+    }
+
+    /**
+     * @return a payload in the {@code DapReadAccessData}/{@code DapWriteAccessData} format:
+     *         {@code context_id:domainClass.attribute=frequency;...#context_id:...}
+     */
+    private synchronized String payload(long accesses) {
+        StringBuilder builder = new StringBuilder(transactionClasses.length * domainClasses.length * 16);
+        int[] counts = new int[domainClasses.length * attributesPerClass];
+        for (int tx = 0; tx < transactionClasses.length; ++tx) {
+            Arrays.fill(counts, 0);
+            for (long i = 0; i < accesses; ++i) {
+                counts[nextDomainClass(tx) * attributesPerClass + random.nextInt(attributesPerClass)]++;
+            }
+            if (tx != 0) {
+                builder.append('#');
+            }
+            builder.append(transactionClasses[tx]).append('_').append(contextId[tx]).append(':');
+            boolean first = true;
+            for (int i = 0; i < counts.length; ++i) {
+                if (counts[i] == 0) {
+                    continue;
+                }
+                if (!first) {
+                    builder.append(';');
+                }
+                first = false;
+                builder.append(domainClasses[i / attributesPerClass]).append(".attribute")
+                        .append(i % attributesPerClass).append('=').append(counts[i]);
+            }
+        }
+        return builder.toString();
+    }
+
+    private int nextDomainClass(int tx) {
+        if (random.nextDouble() < locality) {
+            int[] members = clusterMembers[txCluster[tx]];
+            if (members.length != 0) {
+                return members[clusterPopularity[txCluster[tx]].next(random)];
+            }
+        }
+        return domainByRank[domainPopularity.next(random)];
+    }
+
+    private int clusterSize(int cluster) {
+        return cluster >= domainClasses.length ? 0 : (domainClasses.length - cluster - 1) / clusters + 1;
+    }
+
+    private int indexOf(String txClass) {
+        for (int i = 0; i < transactionClasses.length; ++i) {
+            if (transactionClasses[i].equals(txClass)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int[] identity(int size) {
+        int[] array = new int[size];
+        for (int i = 0; i < size; ++i) {
+            array[i] = i;
+        }
+        return array;
+    }
+
+    private static void shuffle(int[] array, Random random) {
+        for (int i = array.length - 1; i > 0; --i) {
+            int j = random.nextInt(i + 1);
+            int tmp = array[i];
+            array[i] = array[j];
+            array[j] = tmp;
+        }
+    }
+
+    /**
+     * Zipf distribution over the ranks {@code [0, size)}, sampled by binary search on the cumulative distribution.
+     */
+    private static class Zipf {
+        private final double[] cumulative;
+
+        private Zipf(int size, double exponent) {
+            cumulative = new double[size];
+            double sum = 0;
+            for (int rank = 0; rank < size; ++rank) {
+                sum += 1 / Math.pow(rank + 1, exponent);
+                cumulative[rank] = sum;
+            }
+            for (int rank = 0; rank < size; ++rank) {
+                cumulative[rank] /= sum;
+            }
+        }
+
+        private int next(Random random) {
+            int index = Arrays.binarySearch(cumulative, random.nextDouble());
+            return Math.min(index < 0 ? -index - 1 : index, cumulative.length - 1);
+        }
+
+        private double probability(int rank) {
+            return rank == 0 ? cumulative[0] : cumulative[rank] - cumulative[rank - 1];
+        }
+    }
+}
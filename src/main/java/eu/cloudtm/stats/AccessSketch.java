@@ -0,0 +1,148 @@
+package eu.cloudtm.stats;
+
+import java.util.*;
+
+/**
+ * Bounded memory aggregation of the DAP access frequencies: one {@link CountMinSketch} of the domain class accesses per
+ * transaction class, plus the list of its {@code heavyHitters} most accessed domain classes. The memory used per
+ * transaction class does not depend on the number of domain classes.
+ * <p/>
+ * The heavy hitters are tracked with the sketch estimates. A domain class enters the list when its estimate exceeds the
+ * smallest one in the list, so a class may be missed if its accesses arrive before the list is full of bigger ones.
+ *
+ * @author Pedro Ruivo
+ * @since 1.0
+ */
+public class AccessSketch {
+
+    private final double epsilon;
+    private final double delta;
+    private final int heavyHitters;
+    private final LinkedHashMap<String, TxSketch> transactions;
+
+    public AccessSketch(double epsilon, double delta, int heavyHitters) {
+        this.epsilon = epsilon;
+        this.delta = delta;
+        this.heavyHitters = heavyHitters;
+        this.transactions = new LinkedHashMap<String, TxSketch>();
+    }
+
+    public final void add(String txClass, String domainClass, int frequency) {
+        TxSketch sketch = transactions.get(txClass);
+        if (sketch == null) {
+            sketch = new TxSketch(new CountMinSketch(epsilon, delta));
+            transactions.put(txClass, sketch);
+        }
+        sketch.add(domainClass, frequency);
+    }
+
+    /**
+     * Adds the accesses of the other sketch. Both must have been created with the same parameters.
+     */
+    public final void merge(AccessSketch other) {
+        for (Map.Entry<String, TxSketch> entry : other.transactions.entrySet()) {
+            TxSketch sketch = transactions.get(entry.getKey());
+            if (sketch == null) {
+                sketch = new TxSketch(new CountMinSketch(epsilon, delta));
+                transactions.put(entry.getKey(), sketch);
+            }
+            sketch.merge(entry.getValue());
+        }
+    }
+
+    /**
+     * @return the estimated frequencies of the heavy hitters of each transaction class, most accessed first
+     */
+    public final LinkedHashMap<String, LinkedHashMap<String, Integer>> toDataAccessFrequencies() {
+        LinkedHashMap<String, LinkedHashMap<String, Integer>> result =
+                new LinkedHashMap<String, LinkedHashMap<String, Integer>>();
+        for (Map.Entry<String, TxSketch> entry : transactions.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().heavyHitters());
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "AccessSketch{" +
+                "epsilon=" + epsilon +
+                ", delta=" + delta +
+                ", heavyHitters=" + heavyHitters +
+                ", transactions=" + transactions.size() +
+                '}';
+    }
+
+    private class TxSketch {
+        private final CountMinSketch sketch;
+        private final HashMap<String, Long> top;
+        private String minKey;
+        private long minValue;
+
+        private TxSketch(CountMinSketch sketch) {
+            this.sketch = sketch;
+            this.top = new HashMap<String, Long>();
+        }
+
+        private void add(String domainClass, long frequency) {
+            sketch.add(domainClass, frequency);
+            offer(domainClass, sketch.estimate(domainClass));
+        }
+
+        private void merge(TxSketch other) {
+            sketch.merge(other.sketch);
+            //the estimates of both lists changed with the merge
+            Set<String> candidates = new HashSet<String>(top.keySet());
+            candidates.addAll(other.top.keySet());
+            top.clear();
+            minKey = null;
+            for (String candidate : candidates) {
+                offer(candidate, sketch.estimate(candidate));
+            }
+        }
+
+        private void offer(String domainClass, long estimate) {
+            if (top.containsKey(domainClass)) {
+                top.put(domainClass, estimate);
+                if (domainClass.equals(minKey)) {
+                    findMin();
+                }
+            } else if (top.size() < heavyHitters) {
+                top.put(domainClass, estimate);
+                if (minKey == null || estimate < minValue) {
+                    minKey = domainClass;
+                    minValue = estimate;
+                }
+            } else if (estimate > minValue) {
+                top.remove(minKey);
+                top.put(domainClass, estimate);
+                findMin();
+            }
+        }
+
+        private void findMin() {
+            minKey = null;
+            for (Map.Entry<String, Long> entry : top.entrySet()) {
+                if (minKey == null || entry.getValue() < minValue) {
+                    minKey = entry.getKey();
+                    minValue = entry.getValue();
+                }
+            }
+        }
+
+        private LinkedHashMap<String, Integer> heavyHitters() {
+            List<Map.Entry<String, Long>> entries = new ArrayList<Map.Entry<String, Long>>(top.entrySet());
+            Collections.sort(entries, new Comparator<Map.Entry<String, Long>>() {
+                @Override
+                public int compare(Map.Entry<String, Long> o1, Map.Entry<String, Long> o2) {
+                    int result = o2.getValue().compareTo(o1.getValue());
+                    return result != 0 ? result : o1.getKey().compareTo(o2.getKey());
+                }
+            });
+            LinkedHashMap<String, Integer> result = new LinkedHashMap<String, Integer>();
+            for (Map.Entry<String, Long> entry : entries) {
+                result.put(entry.getKey(), (int) Math.min(Integer.MAX_VALUE, entry.getValue()));
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package eu.cloudtm.stats;
+
+import org.apache.log4j.Logger;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ends the DAP collection window as soon as the access distribution has converged.
+ * <p/>
+ * While DAP is enabled, partial snapshots are harvested every {@code collection.convergence.checkInterval} seconds.
+ * The collection stops when the Jensen-Shannon divergence between consecutive snapshots stays below
+ * {@code collection.convergence.epsilon} for {@code collection.convergence.stableChecks} checks and enough accesses
+ * were sampled to estimate every access frequency within {@code collection.convergence.precision} with 95%
+ * confidence. The collection never stops before {@code collection.convergence.minTime} seconds. It stops at
+ * {@code collectionTime} if enough accesses were sampled, otherwise it goes on up to
+ * {@code collection.convergence.maxTime} seconds.
+ *
+ * @author Pedro Ruivo
+ * @since 1.0
+ */
+public class ConvergenceMonitor {
+
+    private static final Logger log = Logger.getLogger(ConvergenceMonitor.class);
+    private static final double Z_95 = 1.96;
+    private volatile boolean enabled;
+    private volatile long checkInterval;
+    private volatile long minTime;
+    private volatile long collectionTime;
+    private volatile long maxTime;
+    private volatile double epsilon;
+    private volatile int stableChecks;
+    private volatile long minAccesses;
+
+    public final void update(Properties properties) {
+        this.enabled = Boolean.parseBoolean(properties.getProperty("collection.convergence.enabled", "false"));
+        this.collectionTime = TimeUnit.SECONDS.toMillis(Long.parseLong(properties.getProperty("collectionTime")));
+        this.checkInterval = TimeUnit.SECONDS.toMillis(
+                Long.parseLong(properties.getProperty("collection.convergence.checkInterval", "5")));
+        this.minTime = TimeUnit.SECONDS.toMillis(
+                Long.parseLong(properties.getProperty("collection.convergence.minTime", "10")));
+        this.maxTime = Math.max(collectionTime, TimeUnit.SECONDS.toMillis(
+                Long.parseLong(properties.getProperty("collection.convergence.maxTime", "0"))));
+        this.epsilon = Double.parseDouble(properties.getProperty("collection.convergence.epsilon", "0.01"));
+        this.stableChecks = Integer.parseInt(properties.getProperty("collection.convergence.stableChecks", "2"));
+        double precision = Double.parseDouble(properties.getProperty("collection.convergence.precision", "0.01"));
+        //worst case standard error of a frequency estimated with N samples is 0.5/sqrt(N)
+        this.minAccesses = (long) Math.ceil(Math.pow(Z_95 * 0.5 / precision, 2));
+        log.info("Convergence monitor is " + this);
+    }
+
+    public final boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Waits until the DAP collection can be stopped. If disabled, it waits the full {@code collectionTime}.
+     *
+     * @return the collection time in milliseconds
+     */
+    public final long awaitCollection(StatsCollector statsCollector) throws InterruptedException {
+        if (!enabled) {
+            Thread.sleep(collectionTime);
+            return collectionTime;
+        }
+        final long start = System.currentTimeMillis();
+        LinkedHashMap<String, Double> previous = null;
+        int stable = 0;
+        while (true) {
+            Thread.sleep(checkInterval);
+            long elapsed = System.currentTimeMillis() - start;
+            LinkedHashMap<String, LinkedHashMap<String, Integer>> snapshot = statsCollector.collectDataAccesses();
+            LinkedHashMap<String, Double> current = Distributions.accessDistribution(snapshot);
+            long accesses = countAccesses(snapshot);
+            double distance = previous == null ? 1 : Distributions.jensenShannon(previous, current);
+            stable = distance < epsilon ? stable + 1 : 0;
+            previous = current;
+            boolean enoughAccesses = accesses >= minAccesses;
+            log.debug("Collection after " + elapsed + " ms: accesses=" + accesses + ", distance=" + distance +
+                    ", stable checks=" + stable);
+            if (elapsed >= minTime && enoughAccesses && stable >= stableChecks) {
+                log.info("Access distribution converged after " + elapsed + " ms with " + accesses + " accesses");
+                return elapsed;
+            } else if (elapsed >= maxTime || (elapsed >= collectionTime && enoughAccesses)) {
+                log.info("Access distribution did not converge after " + elapsed + " ms with " + accesses +
+                        " accesses");
+                return elapsed;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ConvergenceMonitor{" +
+                "enabled=" + enabled +
+                ", checkInterval=" + checkInterval +
+                ", minTime=" + minTime +
+                ", collectionTime=" + collectionTime +
+                ", maxTime=" + maxTime +
+                ", epsilon=" + epsilon +
+                ", stableChecks=" + stableChecks +
+                ", minAccesses=" + minAccesses +
+                '}';
+    }
+
+    private static long countAccesses(Map<String, ? extends Map<String, Integer>> dataAccesses) {
+        long total = 0;
+        for (Map<String, Integer> domainAccesses : dataAccesses.values()) {
+            for (Integer frequency : domainAccesses.values()) {
+                total += frequency;
+            }
+        }
+        return total;
+    }
+}
@@ -0,0 +1,103 @@
+package eu.cloudtm.stats;
+
+/**
+ * Count-Min sketch of string frequencies. With {@code width = ceil(e / epsilon)} and {@code depth = ceil(ln(1 /
+ * delta))}, an estimate never underestimates and exceeds the real frequency by more than {@code epsilon * total} with
+ * probability at most {@code delta}.
+ * <p/>
+ * Sketches with the same dimensions are mergeable: the merged sketch is the sketch of both streams.
+ *
+ * @author Pedro Ruivo
+ * @since 1.0
+ */
+public class CountMinSketch {
+
+    private final int width;
+    private final int depth;
+    private final long[][] counts;
+    private long total;
+
+    public CountMinSketch(double epsilon, double delta) {
+        this((int) Math.ceil(Math.E / epsilon), (int) Math.ceil(Math.log(1 / delta)));
+    }
+
+    public CountMinSketch(int width, int depth) {
+        if (width <= 0 || depth <= 0) {
+            throw new IllegalArgumentException("Invalid sketch dimensions " + width + "x" + depth);
+        }
+        this.width = width;
+        this.depth = depth;
+        this.counts = new long[depth][width];
+    }
+
+    public final void add(String key, long count) {
+        int hash1 = key.hashCode();
+        int hash2 = mix(hash1);
+        for (int row = 0; row < depth; ++row) {
+            counts[row][index(hash1, hash2, row)] += count;
+        }
+        total += count;
+    }
+
+    /**
+     * @return the estimated frequency of the key. It is never lower than the real one.
+     */
+    public final long estimate(String key) {
+        int hash1 = key.hashCode();
+        int hash2 = mix(hash1);
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < depth; ++row) {
+            estimate = Math.min(estimate, counts[row][index(hash1, hash2, row)]);
+        }
+        return estimate;
+    }
+
+    public final void merge(CountMinSketch other) {
+        if (other.width != width || other.depth != depth) {
+            throw new IllegalArgumentException("Unable to merge a " + other.width + "x" + other.depth + " sketch into a " +
+                    width + "x" + depth + " sketch");
+        }
+        for (int row = 0; row < depth; ++row) {
+            for (int column = 0; column < width; ++column) {
+                counts[row][column] += other.counts[row][column];
+            }
+        }
+        total += other.total;
+    }
+
+    public final long getTotal() {
+        return total;
+    }
+
+    public final int getWidth() {
+        return width;
+    }
+
+    public final int getDepth() {
+        return depth;
+    }
+
+    @Override
+    public String toString() {
+        return "CountMinSketch{" +
+                "width=" + width +
+                ", depth=" + depth +
+                ", total=" + total +
+                '}';
+    }
+
+    private int index(int hash1, int hash2, int row) {
+        //Kirsch-Mitzenmacher: the rows use hash1 + row * hash2
+        return ((hash1 + row * hash2) & Integer.MAX_VALUE) % width;
+    }
+
+    private static int mix(int hash) {
+        //murmur3 finalizer
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return hash | 1;
+    }
+}
@@ -0,0 +1,86 @@
+package eu.cloudtm.stats;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Helpers to compare the distributions extracted from {@link ProcessedSample}s.
+ *
+ * @author Pedro Ruivo
+ * @since 1.0
+ */
+public class Distributions {
+
+    private static final double LOG_2 = Math.log(2);
+
+    /**
+     * @return the distribution proportional to the values, or an empty map if they sum zero
+     */
+    public static <K> LinkedHashMap<K, Double> normalize(Map<K, ? extends Number> values) {
+        LinkedHashMap<K, Double> distribution = new LinkedHashMap<K, Double>();
+        double total = 0;
+        for (Number value : values.values()) {
+            if (value != null && value.doubleValue() > 0) {
+                total += value.doubleValue();
+            }
+        }
+        if (total <= 0) {
+            return distribution;
+        }
+        for (Map.Entry<K, ? extends Number> entry : values.entrySet()) {
+            Number value = entry.getValue();
+            if (value != null && value.doubleValue() > 0) {
+                distribution.put(entry.getKey(), value.doubleValue() / total);
+            }
+        }
+        return distribution;
+    }
+
+    /**
+     * @return the (tx class, domain class) access distribution of the data access frequencies
+     */
+    public static LinkedHashMap<String, Double> accessDistribution(
+            Map<String, ? extends Map<String, Integer>> dataAccessFrequencies) {
+        LinkedHashMap<String, Integer> flat = new LinkedHashMap<String, Integer>();
+        for (Map.Entry<String, ? extends Map<String, Integer>> txEntry : dataAccessFrequencies.entrySet()) {
+            for (Map.Entry<String, Integer> domainEntry : txEntry.getValue().entrySet()) {
+                flat.put(txEntry.getKey() + "|" + domainEntry.getKey(), domainEntry.getValue());
+            }
+        }
+        return normalize(flat);
+    }
+
+    /**
+     * The Jensen-Shannon divergence (base 2) between two distributions. It is symmetric and bounded by [0, 1]. If one
+     * of the distributions is empty and the other is not, it returns 1.
+     */
+    public static <K> double jensenShannon(Map<K, Double> p, Map<K, Double> q) {
+        if (p.isEmpty() && q.isEmpty()) {
+            return 0;
+        } else if (p.isEmpty() || q.isEmpty()) {
+            return 1;
+        }
+        Set<K> keys = new HashSet<K>(p.keySet());
+        keys.addAll(q.keySet());
+        double divergence = 0;
+        for (K key : keys) {
+            double pValue = value(p, key);
+            double qValue = value(q, key);
+            double mValue = (pValue + qValue) / 2;
+            if (pValue > 0) {
+                divergence += pValue * Math.log(pValue / mValue);
+            }
+            if (qValue > 0) {
+                divergence += qValue * Math.log(qValue / mValue);
+            }
+        }
+        return Math.max(0, Math.min(1, divergence / (2 * LOG_2)));
+    }
+
+    private static <K> double value(Map<K, Double> map, K key) {
+        Double value = map.get(key);
+        return value == null ? 0 : value;
+    }
+}
@@ -0,0 +1,100 @@
+package eu.cloudtm.stats;
+
+import org.apache.log4j.Logger;
+
+import java.util.LinkedHashMap;
+import java.util.Properties;
+
+/**
+ * Decides if the workload has changed enough since the last optimization to be worth a new one.
+ * <p/>
+ * It compares the transaction class mix (cheap, it only needs the arrival rates) and, when available, the access
+ * distribution with the reference sample using the Jensen-Shannon divergence. The reference is the sample of the last
+ * applied optimization.
+ * <p/>
+ * The probes only see the transaction mix, so a full round is due every {@code drift.fullRoundEvery} probes (0 never)
+ * to check the access distribution.
+ *
+ * @author Pedro Ruivo
+ * @since 1.0
+ */
+public class DriftDetector {
+
+    private static final Logger log = Logger.getLogger(DriftDetector.class);
+    private volatile boolean enabled;
+    private volatile double txMixThreshold;
+    private volatile double accessThreshold;
+    private volatile int fullRoundEvery;
+    private int probes;
+    private LinkedHashMap<String, Double> referenceTxMix;
+    private LinkedHashMap<String, Double> referenceAccesses;
+
+    public final void update(Properties properties) {
+        this.enabled = Boolean.parseBoolean(properties.getProperty("drift.enabled", "false"));
+        this.txMixThreshold = Double.parseDouble(properties.getProperty("drift.txMixThreshold", "0.05"));
+        this.accessThreshold = Double.parseDouble(properties.getProperty("drift.accessThreshold", "0.1"));
+        this.fullRoundEvery = Integer.parseInt(properties.getProperty("drift.fullRoundEvery", "10"));
+        log.info("Drift detector is " + this);
+    }
+
+    public final boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return {@code true} if the transaction mix has drifted from the reference or there is no reference
+     */
+    public synchronized final boolean hasTxMixDrifted(ProcessedSample sample) {
+        if (referenceTxMix == null) {
+            return true;
+        }
+        double distance = Distributions.jensenShannon(referenceTxMix, Distributions.normalize(sample.getTxInvokeFrequency()));
+        log.debug("Transaction mix distance is " + distance + " (threshold " + txMixThreshold + ")");
+        return distance > txMixThreshold;
+    }
+
+    /**
+     * @return {@code true} if the transaction mix or the access distribution have drifted from the reference or there
+     *         is no reference
+     */
+    public synchronized final boolean hasDrifted(ProcessedSample sample) {
+        if (referenceTxMix == null || hasTxMixDrifted(sample)) {
+            return true;
+        }
+        LinkedHashMap<String, Double> accesses = Distributions.accessDistribution(sample.getDataAccessFrequencies());
+        if (referenceAccesses.isEmpty() || accesses.isEmpty()) {
+            return !(referenceAccesses.isEmpty() && accesses.isEmpty());
+        }
+        double distance = Distributions.jensenShannon(referenceAccesses, accesses);
+        log.debug("Access distribution distance is " + distance + " (threshold " + accessThreshold + ")");
+        return distance > accessThreshold;
+    }
+
+    /**
+     * Counts a probe that did not trigger a round.
+     *
+     * @return {@code true} if a full round is due to check the access distribution
+     */
+    public synchronized final boolean isFullRoundDue() {
+        return fullRoundEvery > 0 && ++probes >= fullRoundEvery;
+    }
+
+    public synchronized final void fullRound() {
+        probes = 0;
+    }
+
+    public synchronized final void setReference(ProcessedSample sample) {
+        referenceTxMix = Distributions.normalize(sample.getTxInvokeFrequency());
+        referenceAccesses = Distributions.accessDistribution(sample.getDataAccessFrequencies());
+    }
+
+    @Override
+    public String toString() {
+        return "DriftDetector{" +
+                "enabled=" + enabled +
+                ", txMixThreshold=" + txMixThreshold +
+                ", accessThreshold=" + accessThreshold +
+                ", fullRoundEvery=" + fullRoundEvery +
+                '}';
+    }
+}
@@ -0,0 +1,180 @@
+package eu.cloudtm.stats;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The statistics of a group of nodes, pre-aggregated by a {@link SubCollector}: the sum and count of the non-zero
+ * arrival rates and response times of each transaction class, and the access matrix. Partial samples are merged by the
+ * root manager, whose cost depends on the number of groups and not on the number of nodes.
+ * <p/>
+ * The number of nodes counts the nodes that responded. The number of members counts all the nodes of the groups, so the
+ * root can check the quorum over the nodes.
+ * <p/>
+ * The serialized form is a tab separated text: a {@code nodes <n>} line, a {@code members <n>} line, one
+ * {@code tx <class> <arrival sum> <arrival
+ * count> <response sum> <response count>} line per transaction class and one {@code access <tx> <domain> <count>} line
+ * per access matrix entry.
+ *
+ * @author Pedro Ruivo
+ * @since 1.0
+ */
+public class PartialSample {
+
+    private static final String SEPARATOR = "\t";
+    private final LinkedHashMap<String, double[]> txStats;
+    private final LinkedHashMap<String, LinkedHashMap<String, Integer>> dataAccesses;
+    private int nodes;
+    private int members;
+
+    public PartialSample() {
+        this.txStats = new LinkedHashMap<String, double[]>();
+        this.dataAccesses = new LinkedHashMap<String, LinkedHashMap<String, Integer>>();
+    }
+
+    public final int getNumberOfNodes() {
+        return nodes;
+    }
+
+    public final int getNumberOfMembers() {
+        return members;
+    }
+
+    final void setNumberOfMembers(int members) {
+        this.members = members;
+    }
+
+    final void addNode(String[] transactionClasses, double[] arrivalRate, long[] responseTime) {
+        nodes++;
+        for (int i = 0; arrivalRate != null && i < transactionClasses.length; ++i) {
+            double[] stats = stats(transactionClasses[i]);
+            if (arrivalRate[i] != 0) {
+                stats[0] += arrivalRate[i];
+                stats[1]++;
+            }
+            if (responseTime[i] != 0) {
+                stats[2] += responseTime[i];
+                stats[3]++;
+            }
+        }
+    }
+
+    final void addDataAccesses(Map<String, LinkedHashMap<String, Integer>> accesses) {
+        for (Map.Entry<String, LinkedHashMap<String, Integer>> txEntry : accesses.entrySet()) {
+            for (Map.Entry<String, Integer> domainEntry : txEntry.getValue().entrySet()) {
+                addAccess(txEntry.getKey(), domainEntry.getKey(), domainEntry.getValue());
+            }
+        }
+    }
+
+    public final void merge(PartialSample other) {
+        nodes += other.nodes;
+        members += other.members;
+        for (Map.Entry<String, double[]> entry : other.txStats.entrySet()) {
+            double[] stats = stats(entry.getKey());
+            for (int i = 0; i < stats.length; ++i) {
+                stats[i] += entry.getValue()[i];
+            }
+        }
+        addDataAccesses(other.dataAccesses);
+    }
+
+    /**
+     * @return the sample with the mean of the non-zero arrival rates and response times of the nodes, as in
+     *         {@link StatsCollector#collectStats()}
+     */
+    public final ProcessedSample toProcessedSample(String[] transactionClasses) {
+        LinkedHashMap<String, Double> txInvokeFrequency = new LinkedHashMap<String, Double>();
+        LinkedHashMap<String, Double> txResponseTime = new LinkedHashMap<String, Double>();
+        for (String txClass : transactionClasses) {
+            double[] stats = txStats.get(txClass);
+            txInvokeFrequency.put(txClass, stats == null || stats[1] == 0 ? 0 : stats[0] / stats[1]);
+            txResponseTime.put(txClass, stats == null || stats[3] == 0 ? 0 : stats[2] / stats[3]);
+        }
+        return new ProcessedSample(txInvokeFrequency, txResponseTime, dataAccesses);
+    }
+
+    public final LinkedHashMap<String, LinkedHashMap<String, Integer>> getDataAccessFrequencies() {
+        return dataAccesses;
+    }
+
+    public final String serialize() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("nodes").append(SEPARATOR).append(nodes).append('\n');
+        builder.append("members").append(SEPARATOR).append(members).append('\n');
+        for (Map.Entry<String, double[]> entry : txStats.entrySet()) {
+            double[] stats = entry.getValue();
+            builder.append("tx").append(SEPARATOR).append(entry.getKey());
+            for (double value : stats) {
+                builder.append(SEPARATOR).append(value);
+            }
+            builder.append('\n');
+        }
+        for (Map.Entry<String, LinkedHashMap<String, Integer>> txEntry : dataAccesses.entrySet()) {
+            for (Map.Entry<String, Integer> domainEntry : txEntry.getValue().entrySet()) {
+                builder.append("access").append(SEPARATOR).append(txEntry.getKey()).append(SEPARATOR)
+                        .append(domainEntry.getKey()).append(SEPARATOR).append(domainEntry.getValue()).append('\n');
+            }
+        }
+        return builder.toString();
+    }
+
+    public static PartialSample parse(String data) throws IOException {
+        PartialSample sample = new PartialSample();
+        BufferedReader reader = new BufferedReader(new StringReader(data));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            String[] fields = line.split(SEPARATOR);
+            if ("nodes".equals(fields[0]) && fields.length == 2) {
+                sample.nodes += Integer.parseInt(fields[1]);
+            } else if ("members".equals(fields[0]) && fields.length == 2) {
+                sample.members += Integer.parseInt(fields[1]);
+            } else if ("tx".equals(fields[0]) && fields.length == 6) {
+                double[] stats = sample.stats(fields[1]);
+                for (int i = 0; i < stats.length; ++i) {
+                    stats[i] += Double.parseDouble(fields[i + 2]);
+                }
+            } else if ("access".equals(fields[0]) && fields.length == 4) {
+                sample.addAccess(fields[1], fields[2], Integer.parseInt(fields[3]));
+            } else {
+                throw new IOException("Malformed partial sample line '" + line + "'");
+            }
+        }
+        return sample;
+    }
+
+    @Override
+    public String toString() {
+        return "PartialSample{" +
+                "nodes=" + nodes +
+                ", members=" + members +
+                ", txClasses=" + txStats.size() +
+                ", dataAccesses=" + dataAccesses.size() +
+                '}';
+    }
+
+    private double[] stats(String txClass) {
+        double[] stats = txStats.get(txClass);
+        if (stats == null) {
+            stats = new double[4];
+            txStats.put(txClass, stats);
+        }
+        return stats;
+    }
+
+    private void addAccess(String txClass, String domainClass, int frequency) {
+        LinkedHashMap<String, Integer> contextStats = dataAccesses.get(txClass);
+        if (contextStats == null) {
+            contextStats = new LinkedHashMap<String, Integer>();
+            dataAccesses.put(txClass, contextStats);
+        }
+        Integer current = contextStats.get(domainClass);
+        contextStats.put(domainClass, current == null ? frequency : current + frequency);
+    }
+}
@@ -11,12 +11,21 @@ public class ProcessedSample {
     private final LinkedHashMap<String, Double> txInvokeFrequency;
     private final LinkedHashMap<String, Double> txResponseTime;
     private final LinkedHashMap<String, LinkedHashMap<String, Integer>> dataAccesses;
+    private final LinkedHashMap<String, LinkedHashMap<String, LinkedHashMap<String, Integer>>> nodeDataAccesses;
 
     public ProcessedSample(LinkedHashMap<String, Double> txInvokeFrequency, LinkedHashMap<String, Double> txResponseTime,
                            LinkedHashMap<String, LinkedHashMap<String, Integer>> dataAccesses) {
+        this(txInvokeFrequency, txResponseTime, dataAccesses,
+                new LinkedHashMap<String, LinkedHashMap<String, LinkedHashMap<String, Integer>>>());
+    }
+
+    public ProcessedSample(LinkedHashMap<String, Double> txInvokeFrequency, LinkedHashMap<String, Double> txResponseTime,
+                           LinkedHashMap<String, LinkedHashMap<String, Integer>> dataAccesses,
+                           LinkedHashMap<String, LinkedHashMap<String, LinkedHashMap<String, Integer>>> nodeDataAccesses) {
         this.txInvokeFrequency = txInvokeFrequency;
         this.txResponseTime = txResponseTime;
         this.dataAccesses = dataAccesses;
+        this.nodeDataAccesses = nodeDataAccesses;
     }
 
     public LinkedHashMap<String, Double> getTxInvokeFrequency() {
@@ -31,6 +40,13 @@ public class ProcessedSample {
         return dataAccesses;
     }
 
+    /**
+     * @return the data access frequencies of each node ({@code host:port}), or an empty map if they were not kept
+     */
+    public LinkedHashMap<String, LinkedHashMap<String, LinkedHashMap<String, Integer>>> getNodeDataAccessFrequencies() {
+        return nodeDataAccesses;
+    }
+
     @Override
     public String toString() {
         return "ProcessedSample{" +
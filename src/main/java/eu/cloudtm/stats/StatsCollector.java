@@ -3,13 +3,34 @@ package eu.cloudtm.stats;
 import eu.cloudtm.jmx.FenixObjectNameFinder;
 import eu.cloudtm.jmx.InfinispanObjectNameFinder;
 import eu.cloudtm.jmx.JmxManager;
+import eu.cloudtm.metrics.ManagerMetrics;
 import org.apache.log4j.Logger;
 
 import javax.management.MBeanServerConnection;
 import javax.management.ObjectName;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
 
 /**
+ * Collects the statistics of the nodes. In the hierarchical mode ({@code stats.subCollectors}), the nodes are split in
+ * groups, each one collected by a {@link SubCollector}, and only their partial samples are merged here.
+ * <p/>
+ * With {@code stats.parse.parallelism} above 1, the DAP payload of each node is parsed in a fork-join pool as soon as
+ * it is fetched, and the per node matrices are merged in a tree. The result is the same as the serial parsing.
+ * <p/>
+ * With {@code stats.attributes.enabled}, the accesses to the classes in {@code stats.attributes.classes} (all classes if
+ * empty) are counted per attribute: the key is {@code fullyQualifiedDomainClassName.attributeName}, as in the DAP data,
+ * instead of the class name.
+ * <p/>
+ * With {@code stats.snapshot.enabled}, the arrival rates and response times of all the nodes are read at the same
+ * instant (see {@link JmxManager#performAligned(JmxManager.AlignedAction)}) instead of one node after another. The DAP
+ * counters, frozen at the same instant by the {@link eu.cloudtm.jmx.DapController}, are then read one node after another.
+ *
  * @author Pedro Ruivo
  * @since 1.0
  */
@@ -22,21 +43,88 @@ public class StatsCollector implements JmxManager.MBeanConnectionAction {
     private static final String DAP_READ_ACCESS_DATA = "DapReadAccessData";
     private static final String DAP_WRITE_ACCESS_DATA = "DapWriteAccessData";
     private static final String[] SIGNATURE = new String[]{String.class.getName()};
+    private static final String SUB_COLLECTORS_PREFIX = "stats.subCollectors.";
     private final JmxManager jmxManager;
+    private final JmxManager subCollectors;
     private final FenixObjectNameFinder fenixObjectNameFinder;
     private final InfinispanObjectNameFinder infinispanObjectNameFinder;
     private final List<Stats> statsList;
     private String[] transactionClasses;
+    private volatile boolean collectDap = true;
+    private volatile boolean collectTx = true;
+    private volatile boolean keepNodeAccesses;
+    private volatile boolean sketch;
+    private volatile double sketchEpsilon;
+    private volatile double sketchDelta;
+    private volatile int heavyHitters;
+    private volatile boolean hierarchical;
+    private volatile boolean quorum = true;
+    private volatile double nodeQuorum = 0.5;
+    private final ConcurrentMap<String, Integer> subCollectorMembers;
+    private String subCollectorList;
+    private volatile ForkJoinPool parsePool;
+    private volatile Set<String> attributeClasses;
+    private volatile boolean snapshot;
+    private volatile Map<String, Stats> txSnapshot;
 
     public StatsCollector(JmxManager jmxManager, FenixObjectNameFinder fenixObjectNameFinder,
                           InfinispanObjectNameFinder infinispanObjectNameFinder) {
+        this(jmxManager, null, fenixObjectNameFinder, infinispanObjectNameFinder);
+    }
+
+    /**
+     * @param subCollectors the connections to the sub-collectors. It is updated by the owner with
+     *                      {@link #subCollectorProperties(Properties)}
+     */
+    public StatsCollector(JmxManager jmxManager, JmxManager subCollectors, FenixObjectNameFinder fenixObjectNameFinder,
+                          InfinispanObjectNameFinder infinispanObjectNameFinder) {
         this.jmxManager = jmxManager;
+        this.subCollectors = subCollectors;
         this.fenixObjectNameFinder = fenixObjectNameFinder;
         this.infinispanObjectNameFinder = infinispanObjectNameFinder;
         statsList = new ArrayList<Stats>(16);
+        subCollectorMembers = new ConcurrentHashMap<String, Integer>();
     }
 
     public synchronized final void update(Properties properties) {
+        keepNodeAccesses = Boolean.parseBoolean(properties.getProperty("locality.enabled", "false"));
+        sketch = Boolean.parseBoolean(properties.getProperty("stats.sketch.enabled", "false"));
+        sketchEpsilon = Double.parseDouble(properties.getProperty("stats.sketch.epsilon", "0.001"));
+        sketchDelta = Double.parseDouble(properties.getProperty("stats.sketch.delta", "0.01"));
+        heavyHitters = Integer.parseInt(properties.getProperty("stats.sketch.heavyHitters", "50"));
+        int parallelism = Integer.parseInt(properties.getProperty("stats.parse.parallelism",
+                String.valueOf(Runtime.getRuntime().availableProcessors())));
+        setParseParallelism(parallelism);
+        if (Boolean.parseBoolean(properties.getProperty("stats.attributes.enabled", "false"))) {
+            Set<String> classes = new HashSet<String>();
+            for (String domainClass : properties.getProperty("stats.attributes.classes", "").split(",")) {
+                if (!domainClass.trim().isEmpty()) {
+                    classes.add(domainClass.trim());
+                }
+            }
+            attributeClasses = Collections.unmodifiableSet(classes);
+            log.info("Accesses counted per attribute for " + (classes.isEmpty() ? "all classes" : classes));
+        } else {
+            attributeClasses = null;
+        }
+        snapshot = Boolean.parseBoolean(properties.getProperty("stats.snapshot.enabled", "false"));
+        if (snapshot) {
+            log.info("Transaction stats are collected in time aligned snapshots");
+        }
+        nodeQuorum = Double.parseDouble(properties.getProperty("jmx.quorum", "0.5"));
+        String subCollectorList = properties.getProperty("stats.subCollectors");
+        if (subCollectorList == null ? this.subCollectorList != null : !subCollectorList.equals(this.subCollectorList)) {
+            //the members are known again after the next collection
+            subCollectorMembers.clear();
+        }
+        this.subCollectorList = subCollectorList;
+        hierarchical = subCollectors != null && subCollectorList != null && !subCollectorList.isEmpty();
+        if (hierarchical) {
+            log.info("Stats are collected by the sub-collectors " + subCollectorList);
+        }
+        if (sketch) {
+            log.info("Access frequencies are sketched: " + new AccessSketch(sketchEpsilon, sketchDelta, heavyHitters));
+        }
         String txClassList = properties.getProperty("infinispan.transactionClasses");
         if (txClassList == null || txClassList.isEmpty()) {
             transactionClasses = EMPTY_TX_CLASSES;
@@ -66,16 +154,32 @@ public class StatsCollector implements JmxManager.MBeanConnectionAction {
         log.debug("DAP=" + DAPRemoteManager + ", ISPN=" + extendedStatistics);
 
         Stats stats = new Stats();
+        stats.node = hostAddress + ":" + port;
+        ManagerMetrics metrics = ManagerMetrics.getInstance();
         try {
-            stats.readData = (String) connection.getAttribute(DAPRemoteManager, DAP_READ_ACCESS_DATA);
-            stats.writeData = (String) connection.getAttribute(DAPRemoteManager, DAP_WRITE_ACCESS_DATA);
-            stats.responseTime = new long[transactionClasses.length];
-            stats.arrivalRate = new double[transactionClasses.length];
-            for (int i = 0; i < transactionClasses.length; ++i) {
-                stats.arrivalRate[i] = (Double) connection.invoke(extendedStatistics, ARRIVAL_RATE,
-                        new Object[]{transactionClasses[i]}, SIGNATURE);
-                stats.responseTime[i] = (Long) connection.invoke(extendedStatistics, RESPONSE_TIME,
-                        new Object[]{transactionClasses[i]}, SIGNATURE);
+            if (collectDap) {
+                long start = metrics.start();
+                stats.readData = (String) connection.getAttribute(DAPRemoteManager, DAP_READ_ACCESS_DATA);
+                stats.writeData = (String) connection.getAttribute(DAPRemoteManager, DAP_WRITE_ACCESS_DATA);
+                metrics.record(ManagerMetrics.DAP_FETCH, start);
+                metrics.increment(ManagerMetrics.PAYLOAD_BYTES, length(stats.readData) + length(stats.writeData));
+                ForkJoinPool pool = parsePool;
+                if (pool != null && !sketch) {
+                    //parsed while the next nodes are collected
+                    stats.parseTask = pool.submit(new ParseTask(stats, attributeClasses));
+                }
+            }
+            Map<String, Stats> currentSnapshot = txSnapshot;
+            Stats snapshotStats = currentSnapshot == null ? null : currentSnapshot.get(stats.node);
+            if (snapshotStats != null) {
+                stats.arrivalRate = snapshotStats.arrivalRate;
+                stats.responseTime = snapshotStats.responseTime;
+            } else {
+                stats.responseTime = new long[transactionClasses.length];
+                stats.arrivalRate = new double[transactionClasses.length];
+                if (collectTx) {
+                    readTxStats(connection, extendedStatistics, stats);
+                }
             }
             statsList.add(stats);
             log.debug("Added " + stats);
@@ -84,18 +188,563 @@ public class StatsCollector implements JmxManager.MBeanConnectionAction {
         }
     }
 
-    public final ProcessedSample collectStats() {
+    /**
+     * @return the {@link JmxManager} properties of the sub-collectors: {@code stats.subCollectors} as the
+     *         {@code jmx.ips}, {@code stats.subCollectors.urlFormat} (RMI by default) as the {@code jmx.urlFormat} and
+     *         the deadlines, breaker and quorum of the nodes ({@code jmx.callTimeout*}, {@code jmx.connectTimeout},
+     *         {@code jmx.breaker.*}, {@code jmx.quorum}), each one overridden by {@code stats.subCollectors.<key>}
+     */
+    public static Properties subCollectorProperties(Properties properties) {
+        Properties result = new Properties();
+        for (String key : properties.stringPropertyNames()) {
+            if (key.startsWith("jmx.callTimeout") || key.equals("jmx.connectTimeout") ||
+                    key.startsWith("jmx.breaker.") || key.equals("jmx.quorum")) {
+                result.setProperty(key, properties.getProperty(key));
+            }
+        }
+        for (String key : properties.stringPropertyNames()) {
+            if (key.startsWith(SUB_COLLECTORS_PREFIX + "jmx.")) {
+                result.setProperty(key.substring(SUB_COLLECTORS_PREFIX.length()), properties.getProperty(key));
+            }
+        }
+        result.setProperty("jmx.ips", properties.getProperty("stats.subCollectors", ""));
+        result.setProperty("jmx.urlFormat", properties.getProperty(SUB_COLLECTORS_PREFIX + "urlFormat",
+                JmxManager.RMI_JMX_URL_FORMAT));
+        return result;
+    }
+
+    public synchronized final ProcessedSample collectStats() {
         log.debug("Collecting stats...");
+        if (hierarchical) {
+            //the per node accesses stay in the sub-collectors
+            return collectPartials(PartialAction.COLLECT).toProcessedSample(transactionClasses);
+        }
+        collectDap = true;
+        clear();
+        quorum = performSnapshot();
+        return toProcessedSample();
+    }
+
+    /**
+     * Collects the stats of several targets (see {@code targets}) in a single pass over the nodes, as
+     * {@link #collectStats()} does for each one. The collectors cannot be hierarchical and must not be collecting
+     * concurrently.
+     *
+     * @return the sample of each collector, in the same order
+     */
+    public static List<ProcessedSample> collectStats(JmxManager jmxManager, final List<StatsCollector> collectors) {
+        log.debug("Collecting stats of " + collectors.size() + " targets...");
+        final List<TxSnapshot> snapshots = new ArrayList<TxSnapshot>(collectors.size());
+        for (StatsCollector collector : collectors) {
+            collector.collectDap = true;
+            collector.clear();
+            if (collector.snapshot) {
+                snapshots.add(collector.new TxSnapshot());
+            }
+        }
+        boolean quorum = true;
+        if (!snapshots.isEmpty()) {
+            //a single epoch for all the targets
+            quorum = jmxManager.performAligned(new JmxManager.AlignedAction() {
+                @Override
+                public void prepare(MBeanServerConnection connection, String hostAddress, int port) {
+                    for (TxSnapshot snapshot : snapshots) {
+                        snapshot.prepare(connection, hostAddress, port);
+                    }
+                }
+
+                @Override
+                public void perform(MBeanServerConnection connection, String hostAddress, int port) {
+                    for (TxSnapshot snapshot : snapshots) {
+                        snapshot.perform(connection, hostAddress, port);
+                    }
+                }
+
+                @Override
+                public String toString() {
+                    return "TxSnapshot" + collectors;
+                }
+            });
+            for (TxSnapshot snapshot : snapshots) {
+                snapshot.apply();
+            }
+        }
+        try {
+            quorum &= jmxManager.perform(new JmxManager.MBeanConnectionAction() {
+                @Override
+                public void perform(MBeanServerConnection connection, String hostAddress, int port) {
+                    for (StatsCollector collector : collectors) {
+                        collector.perform(connection, hostAddress, port);
+                    }
+                }
+
+                @Override
+                public String toString() {
+                    return "StatsCollector" + collectors;
+                }
+            });
+        } finally {
+            for (StatsCollector collector : collectors) {
+                collector.txSnapshot = null;
+            }
+        }
+        List<ProcessedSample> samples = new ArrayList<ProcessedSample>(collectors.size());
+        for (StatsCollector collector : collectors) {
+            collector.quorum = quorum;
+            samples.add(collector.toProcessedSample());
+        }
+        return samples;
+    }
+
+    private ProcessedSample toProcessedSample() {
+        if (!keepNodeAccesses) {
+            return new ProcessedSample(getTxInvokeFrequency(), getTxResponseTime(), getDataAccessFrequencies());
+        }
+        if (sketch) {
+            AccessSketch total = new AccessSketch(sketchEpsilon, sketchDelta, heavyHitters);
+            LinkedHashMap<String, LinkedHashMap<String, LinkedHashMap<String, Integer>>> nodeAccesses =
+                    sketchNodeDataAccessFrequencies(total);
+            return new ProcessedSample(getTxInvokeFrequency(), getTxResponseTime(), total.toDataAccessFrequencies(),
+                    nodeAccesses);
+        }
+        LinkedHashMap<String, LinkedHashMap<String, LinkedHashMap<String, Integer>>> nodeAccesses =
+                getNodeDataAccessFrequencies();
+        return new ProcessedSample(getTxInvokeFrequency(), getTxResponseTime(),
+                parsePool == null ? merge(nodeAccesses.values()) : getDataAccessFrequencies(), nodeAccesses);
+    }
+
+    /**
+     * Only the DAP data is collected. Used to harvest partial snapshots while DAP is enabled.
+     */
+    public synchronized final LinkedHashMap<String, LinkedHashMap<String, Integer>> collectDataAccesses() {
+        log.debug("Collecting data accesses...");
+        if (hierarchical) {
+            return collectPartials(PartialAction.COLLECT_ACCESSES).getDataAccessFrequencies();
+        }
+        collectTx = false;
+        clear();
+        try {
+            jmxManager.perform(this);
+        } finally {
+            collectTx = true;
+        }
+        return getDataAccessFrequencies();
+    }
+
+    /**
+     * Cheap collection: only the arrival rates and response times are collected. The DAP data is not fetched.
+     */
+    public synchronized final ProcessedSample collectTxStats() {
+        log.debug("Collecting transaction stats...");
+        if (hierarchical) {
+            return collectPartials(PartialAction.COLLECT_TX).toProcessedSample(transactionClasses);
+        }
+        collectDap = false;
+        clear();
+        try {
+            quorum = performTx();
+        } finally {
+            collectDap = true;
+        }
+        return new ProcessedSample(getTxInvokeFrequency(), getTxResponseTime(),
+                new LinkedHashMap<String, LinkedHashMap<String, Integer>>());
+    }
+
+    /**
+     * Sub-collector side of {@link #collectStats()}: the stats of the nodes are aggregated without keeping the nodes
+     * apart. If this collector is itself hierarchical, the partial samples of its sub-collectors are merged.
+     */
+    public synchronized final PartialSample collectPartial() {
+        if (hierarchical) {
+            return collectPartials(PartialAction.COLLECT);
+        }
+        collectDap = true;
         clear();
-        jmxManager.perform(this);
-        return new ProcessedSample(getTxInvokeFrequency(), getTxResponseTime(), getDataAccessFrequencies());
+        quorum = performSnapshot();
+        return toPartialSample(true);
     }
 
-    private void clear() {
+    /**
+     * Sub-collector side of {@link #collectTxStats()}.
+     */
+    public synchronized final PartialSample collectTxPartial() {
+        if (hierarchical) {
+            return collectPartials(PartialAction.COLLECT_TX);
+        }
+        collectDap = false;
+        clear();
+        try {
+            quorum = performTx();
+        } finally {
+            collectDap = true;
+        }
+        return toPartialSample(false);
+    }
+
+    /**
+     * Sub-collector side of {@link #collectDataAccesses()}.
+     */
+    public synchronized final PartialSample collectAccessPartial() {
+        if (hierarchical) {
+            return collectPartials(PartialAction.COLLECT_ACCESSES);
+        }
+        collectTx = false;
+        clear();
+        try {
+            jmxManager.perform(this);
+        } finally {
+            collectTx = true;
+        }
+        PartialSample sample = new PartialSample();
+        sample.setNumberOfMembers(jmxManager.getNumberOfMachines());
+        for (Stats ignored : statsList) {
+            sample.addNode(transactionClasses, null, null);
+        }
+        sample.addDataAccesses(getDataAccessFrequencies());
+        return sample;
+    }
+
+    private PartialSample toPartialSample(boolean withDataAccesses) {
+        PartialSample sample = new PartialSample();
+        sample.setNumberOfMembers(jmxManager.getNumberOfMachines());
+        for (Stats stats : statsList) {
+            sample.addNode(transactionClasses, stats.arrivalRate, stats.responseTime);
+        }
+        if (withDataAccesses) {
+            sample.addDataAccesses(getDataAccessFrequencies());
+        }
+        return sample;
+    }
+
+    /**
+     * The quorum ({@code jmx.quorum}) is checked over the nodes of the groups and not over the sub-collectors. The
+     * nodes of an unreachable sub-collector are the ones it reported last.
+     */
+    private PartialSample collectPartials(String operation) {
+        PartialAction action = new PartialAction(operation, subCollectorMembers);
+        subCollectors.perform(action);
+        int members = 0;
+        for (int groupMembers : subCollectorMembers.values()) {
+            members += groupMembers;
+        }
+        PartialSample result = action.result;
+        result.setNumberOfMembers(members);
+        quorum = members > 0 && result.getNumberOfNodes() >= Math.ceil(nodeQuorum * members);
+        if (!quorum) {
+            log.warn("Only " + result.getNumberOfNodes() + " of " + members + " nodes responded through the " +
+                    "sub-collectors");
+        }
+        log.debug("Merged partial samples: " + result);
+        return result;
+    }
+
+    /**
+     * @return {@code true} if enough nodes (see {@code jmx.quorum}) responded in the last collection of the
+     *         transaction statistics
+     */
+    public final boolean hasQuorum() {
+        return quorum;
+    }
+
+    /**
+     * @param parallelism the number of threads parsing the DAP payloads. Up to 1, they are parsed serially
+     */
+    synchronized final void setParseParallelism(int parallelism) {
+        ForkJoinPool current = parsePool;
+        if (current != null && current.getParallelism() == parallelism) {
+            return;
+        }
+        parsePool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+        if (current != null) {
+            current.shutdown();
+        }
+        log.info("DAP payloads parsed by " + (parallelism > 1 ? parallelism + " threads" : "a single thread"));
+    }
+
+    synchronized final void setTransactionClasses(String[] transactionClasses) {
+        this.transactionClasses = transactionClasses.clone();
+    }
+
+    final void clear() {
         statsList.clear();
     }
 
-    private LinkedHashMap<String, LinkedHashMap<String, Integer>> getDataAccessFrequencies() {
+    /**
+     * Collects the nodes. In snapshot mode, the transaction stats are first read in a time aligned pass.
+     */
+    private boolean performSnapshot() {
+        if (!snapshot) {
+            return jmxManager.perform(this);
+        }
+        TxSnapshot action = new TxSnapshot();
+        boolean reached = jmxManager.performAligned(action);
+        action.apply();
+        try {
+            return jmxManager.perform(this) && reached;
+        } finally {
+            txSnapshot = null;
+        }
+    }
+
+    /**
+     * Collects the transaction stats of the nodes. In snapshot mode, they are read in a time aligned pass only.
+     */
+    private boolean performTx() {
+        if (!snapshot) {
+            return jmxManager.perform(this);
+        }
+        TxSnapshot action = new TxSnapshot();
+        boolean reached = jmxManager.performAligned(action);
+        statsList.addAll(action.stats.values());
+        return reached;
+    }
+
+    private void readTxStats(MBeanServerConnection connection, ObjectName extendedStatistics, Stats stats)
+            throws Exception {
+        ManagerMetrics metrics = ManagerMetrics.getInstance();
+        long start = metrics.start();
+        for (int i = 0; i < transactionClasses.length; ++i) {
+            stats.arrivalRate[i] = (Double) connection.invoke(extendedStatistics, ARRIVAL_RATE,
+                    new Object[]{transactionClasses[i]}, SIGNATURE);
+            stats.responseTime[i] = (Long) connection.invoke(extendedStatistics, RESPONSE_TIME,
+                    new Object[]{transactionClasses[i]}, SIGNATURE);
+        }
+        metrics.record(ManagerMetrics.INVOKE, start);
+    }
+
+    /**
+     * Adds the stats of a node without JMX. Used by the benchmarks and the replay of recorded stats.
+     */
+    final void addStats(String readData, String writeData, double[] arrivalRate, long[] responseTime) {
+        Stats stats = new Stats();
+        stats.node = "node" + statsList.size();
+        stats.readData = readData;
+        stats.writeData = writeData;
+        stats.arrivalRate = arrivalRate;
+        stats.responseTime = responseTime;
+        statsList.add(stats);
+    }
+
+    private static long length(String data) {
+        //approximation: the DAP payload is ASCII
+        return data == null ? 0 : data.length();
+    }
+
+    final LinkedHashMap<String, LinkedHashMap<String, Integer>> getDataAccessFrequencies() {
+        if (sketch) {
+            return sketchDataAccessFrequencies();
+        }
+        ForkJoinPool pool = parsePool;
+        if (pool != null) {
+            return parallelDataAccessFrequencies(pool);
+        }
+        List<String> dataList = new ArrayList<String>(statsList.size() * 2);
+        for (Stats stats : statsList) {
+            if (stats.readData != null) {
+                dataList.add(stats.readData);
+            }
+            if (stats.writeData != null) {
+                dataList.add(stats.writeData);
+            }
+        }
+        ManagerMetrics metrics = ManagerMetrics.getInstance();
+        long start = metrics.start();
+        try {
+            return parseDataAccessFrequencies(dataList, attributeClasses);
+        } finally {
+            metrics.record(ManagerMetrics.PARSE, start);
+        }
+    }
+
+    /**
+     * Joins the parsing of each node, submitting it if it was not started during the collection, and merges them in a
+     * tree, keeping the node order.
+     */
+    private LinkedHashMap<String, LinkedHashMap<String, Integer>> parallelDataAccessFrequencies(ForkJoinPool pool) {
+        ManagerMetrics metrics = ManagerMetrics.getInstance();
+        long start = metrics.start();
+        try {
+            return pool.invoke(new MergeTask(parseTasks(pool), 0, statsList.size()));
+        } finally {
+            metrics.record(ManagerMetrics.PARSE, start);
+        }
+    }
+
+    private List<ForkJoinTask<LinkedHashMap<String, LinkedHashMap<String, Integer>>>> parseTasks(ForkJoinPool pool) {
+        List<ForkJoinTask<LinkedHashMap<String, LinkedHashMap<String, Integer>>>> tasks =
+                new ArrayList<ForkJoinTask<LinkedHashMap<String, LinkedHashMap<String, Integer>>>>(statsList.size());
+        for (Stats stats : statsList) {
+            if (stats.parseTask == null) {
+                stats.parseTask = pool.submit(new ParseTask(stats, attributeClasses));
+            }
+            tasks.add(stats.parseTask);
+        }
+        return tasks;
+    }
+
+    /**
+     * Parses the DAP data of each node separately. The nodes are keyed by {@code host:port}.
+     */
+    final LinkedHashMap<String, LinkedHashMap<String, LinkedHashMap<String, Integer>>> getNodeDataAccessFrequencies() {
+        LinkedHashMap<String, LinkedHashMap<String, LinkedHashMap<String, Integer>>> result =
+                new LinkedHashMap<String, LinkedHashMap<String, LinkedHashMap<String, Integer>>>();
+        ManagerMetrics metrics = ManagerMetrics.getInstance();
+        long start = metrics.start();
+        ForkJoinPool pool = parsePool;
+        if (pool != null) {
+            try {
+                List<ForkJoinTask<LinkedHashMap<String, LinkedHashMap<String, Integer>>>> tasks = parseTasks(pool);
+                for (int i = 0; i < tasks.size(); ++i) {
+                    result.put(statsList.get(i).node, tasks.get(i).join());
+                }
+                return result;
+            } finally {
+                metrics.record(ManagerMetrics.PARSE, start);
+            }
+        }
+        try {
+            for (Stats stats : statsList) {
+                List<String> dataList = new ArrayList<String>(2);
+                if (stats.readData != null) {
+                    dataList.add(stats.readData);
+                }
+                if (stats.writeData != null) {
+                    dataList.add(stats.writeData);
+                }
+                result.put(stats.node, parseDataAccessFrequencies(dataList, attributeClasses));
+            }
+            return result;
+        } finally {
+            metrics.record(ManagerMetrics.PARSE, start);
+        }
+    }
+
+    /**
+     * Sketch mode: the accesses of all nodes are aggregated in one {@link AccessSketch} and only the heavy hitters of
+     * each transaction class are returned.
+     */
+    private LinkedHashMap<String, LinkedHashMap<String, Integer>> sketchDataAccessFrequencies() {
+        ManagerMetrics metrics = ManagerMetrics.getInstance();
+        long start = metrics.start();
+        try {
+            AccessSketch accessSketch = new AccessSketch(sketchEpsilon, sketchDelta, heavyHitters);
+            for (Stats stats : statsList) {
+                parseDataAccessFrequencies(stats.readData, accessSketch, attributeClasses);
+                parseDataAccessFrequencies(stats.writeData, accessSketch, attributeClasses);
+            }
+            return accessSketch.toDataAccessFrequencies();
+        } finally {
+            metrics.record(ManagerMetrics.PARSE, start);
+        }
+    }
+
+    /**
+     * Sketch mode: each node is sketched separately, returning its heavy hitters, and merged into the total.
+     */
+    private LinkedHashMap<String, LinkedHashMap<String, LinkedHashMap<String, Integer>>> sketchNodeDataAccessFrequencies(
+            AccessSketch total) {
+        LinkedHashMap<String, LinkedHashMap<String, LinkedHashMap<String, Integer>>> result =
+                new LinkedHashMap<String, LinkedHashMap<String, LinkedHashMap<String, Integer>>>();
+        ManagerMetrics metrics = ManagerMetrics.getInstance();
+        long start = metrics.start();
+        try {
+            for (Stats stats : statsList) {
+                AccessSketch accessSketch = new AccessSketch(sketchEpsilon, sketchDelta, heavyHitters);
+                parseDataAccessFrequencies(stats.readData, accessSketch, attributeClasses);
+                parseDataAccessFrequencies(stats.writeData, accessSketch, attributeClasses);
+                result.put(stats.node, accessSketch.toDataAccessFrequencies());
+                total.merge(accessSketch);
+            }
+            return result;
+        } finally {
+            metrics.record(ManagerMetrics.PARSE, start);
+        }
+    }
+
+    /**
+     * @return the classes counted per attribute, all if empty, or {@code null} if the accesses are counted per class
+     */
+    public final Set<String> getAttributeClasses() {
+        return attributeClasses;
+    }
+
+    static void parseDataAccessFrequencies(String data, AccessSketch accessSketch) {
+        parseDataAccessFrequencies(data, accessSketch, null);
+    }
+
+    /**
+     * Adds the accesses in the DAP data to the sketch. Same format as
+     * {@link #parseDataAccessFrequencies(List, Set)}.
+     */
+    static void parseDataAccessFrequencies(String data, AccessSketch accessSketch, Set<String> attributeClasses) {
+        if (data == null) {
+            return;
+        }
+        for (String context : data.split("#")) {
+            String[] splitContext = context.split(":");
+            if (splitContext.length == 1) {
+                continue;
+            }
+            String contextName = splitContext[0].split("_")[0];
+            for (String token : splitContext[1].split(";")) {
+                //fullyQualifiedDomainClassName.attributeName=accessFrequency
+                int separator = token.indexOf('=');
+                String domainAttribute = token.substring(0, separator);
+                accessSketch.add(contextName, accessKey(domainAttribute, attributeClasses),
+                        Integer.parseInt(token.substring(separator + 1)));
+            }
+        }
+    }
+
+    /**
+     * Sums the data access frequencies of the nodes, keeping the order in which the classes are found.
+     */
+    static LinkedHashMap<String, LinkedHashMap<String, Integer>> merge(
+            Collection<LinkedHashMap<String, LinkedHashMap<String, Integer>>> nodeAccesses) {
+        LinkedHashMap<String, LinkedHashMap<String, Integer>> result =
+                new LinkedHashMap<String, LinkedHashMap<String, Integer>>();
+        for (LinkedHashMap<String, LinkedHashMap<String, Integer>> accesses : nodeAccesses) {
+            mergeInto(result, accesses);
+        }
+        return result;
+    }
+
+    private static void mergeInto(LinkedHashMap<String, LinkedHashMap<String, Integer>> result,
+                                  LinkedHashMap<String, LinkedHashMap<String, Integer>> accesses) {
+        for (Map.Entry<String, LinkedHashMap<String, Integer>> txEntry : accesses.entrySet()) {
+            LinkedHashMap<String, Integer> contextStats = result.get(txEntry.getKey());
+            if (contextStats == null) {
+                contextStats = new LinkedHashMap<String, Integer>();
+                result.put(txEntry.getKey(), contextStats);
+            }
+            for (Map.Entry<String, Integer> domainEntry : txEntry.getValue().entrySet()) {
+                Integer frequency = contextStats.get(domainEntry.getKey());
+                contextStats.put(domainEntry.getKey(), frequency == null ? domainEntry.getValue() :
+                        frequency + domainEntry.getValue());
+            }
+        }
+    }
+
+    /**
+     * @return the domain class of the DAP key, or the key itself if the class is counted per attribute
+     */
+    private static String accessKey(String domainAttribute, Set<String> attributeClasses) {
+        String domainClass = domainAttribute.substring(0, domainAttribute.lastIndexOf('.'));
+        if (attributeClasses != null && (attributeClasses.isEmpty() || attributeClasses.contains(domainClass))) {
+            return domainAttribute;
+        }
+        return domainClass;
+    }
+
+    static LinkedHashMap<String, LinkedHashMap<String, Integer>> parseDataAccessFrequencies(List<String> dataList) {
+        return parseDataAccessFrequencies(dataList, null);
+    }
+
+    /**
+     * @param attributeClasses the classes counted per attribute (all if empty), or {@code null} to count per class
+     */
+    static LinkedHashMap<String, LinkedHashMap<String, Integer>> parseDataAccessFrequencies(List<String> dataList,
+                                                                                          Set<String> attributeClasses) {
         LinkedHashMap<String, LinkedHashMap<String, Integer>> result =
                 new LinkedHashMap<String, LinkedHashMap<String, Integer>>();
         LinkedHashMap<String, Integer> contextStats;
@@ -106,19 +755,18 @@ public class StatsCollector implements JmxManager.MBeanConnectionAction {
         String domainAttribute;
         String domainClass;
         String frequency;
-        List<String> dataList = new ArrayList<String>(statsList.size() * 2);
-        for (Stats stats : statsList) {
-            dataList.add(stats.readData);
-            dataList.add(stats.writeData);
-        }
 
-        log.debug("Parsing " + dataList);
+        if (log.isDebugEnabled()) {
+            log.debug("Parsing " + dataList);
+        }
 
         for (String toParse : dataList) {
             //toParse = readData;
             contexts = toParse.split("#");
 
-            log.debug("Contexts: " + Arrays.toString(contexts));
+            if (log.isDebugEnabled()) {
+                log.debug("Contexts: " + Arrays.toString(contexts));
+            }
 
             for (String context : contexts) {
                 splitContext = context.split(":");
@@ -140,7 +788,7 @@ public class StatsCollector implements JmxManager.MBeanConnectionAction {
                     //fullyQualifiedDomainClassName.attributeName=accessFrequency
                     domainAttribute = token.split("=")[0];
                     frequency = token.split("=")[1];
-                    domainClass = domainAttribute.substring(0, domainAttribute.lastIndexOf("."));
+                    domainClass = accessKey(domainAttribute, attributeClasses);
 
                     if (contextStats.containsKey(domainClass))
                         contextStats.put(domainClass, contextStats.get(domainClass) + (new Integer(frequency)));
@@ -152,7 +800,7 @@ public class StatsCollector implements JmxManager.MBeanConnectionAction {
         return result;
     }
 
-    private LinkedHashMap<String, Double> getTxInvokeFrequency() {
+    final LinkedHashMap<String, Double> getTxInvokeFrequency() {
         LinkedHashMap<String, Double> result = new LinkedHashMap<String, Double>();
 
         for (int i = 0; i < transactionClasses.length; ++i) {
@@ -170,7 +818,7 @@ public class StatsCollector implements JmxManager.MBeanConnectionAction {
         return result;
     }
 
-    private LinkedHashMap<String, Double> getTxResponseTime() {
+    final LinkedHashMap<String, Double> getTxResponseTime() {
         LinkedHashMap<String, Double> result = new LinkedHashMap<String, Double>();
 
         for (int i = 0; i < transactionClasses.length; ++i) {
@@ -188,16 +836,183 @@ public class StatsCollector implements JmxManager.MBeanConnectionAction {
         return result;
     }
 
-    private class Stats {
+    /**
+     * Parses the read and write DAP data of a node.
+     */
+    private static class ParseTask extends RecursiveTask<LinkedHashMap<String, LinkedHashMap<String, Integer>>> {
+        private static final long serialVersionUID = 1L;
+        private final String readData;
+        private final String writeData;
+        private final Set<String> attributeClasses;
+
+        private ParseTask(Stats stats, Set<String> attributeClasses) {
+            this.readData = stats.readData;
+            this.writeData = stats.writeData;
+            this.attributeClasses = attributeClasses;
+        }
+
+        @Override
+        protected LinkedHashMap<String, LinkedHashMap<String, Integer>> compute() {
+            List<String> dataList = new ArrayList<String>(2);
+            if (readData != null) {
+                dataList.add(readData);
+            }
+            if (writeData != null) {
+                dataList.add(writeData);
+            }
+            return parseDataAccessFrequencies(dataList, attributeClasses);
+        }
+    }
+
+    /**
+     * Merges the parsed matrices in {@code [from, to)}: both halves are merged concurrently and then merged together.
+     */
+    private static class MergeTask extends RecursiveTask<LinkedHashMap<String, LinkedHashMap<String, Integer>>> {
+        private static final long serialVersionUID = 1L;
+        private final List<ForkJoinTask<LinkedHashMap<String, LinkedHashMap<String, Integer>>>> parsed;
+        private final int from;
+        private final int to;
+
+        private MergeTask(List<ForkJoinTask<LinkedHashMap<String, LinkedHashMap<String, Integer>>>> parsed, int from,
+                          int to) {
+            this.parsed = parsed;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected LinkedHashMap<String, LinkedHashMap<String, Integer>> compute() {
+            if (to - from == 0) {
+                return new LinkedHashMap<String, LinkedHashMap<String, Integer>>();
+            } else if (to - from == 1) {
+                //a copy: the parsed matrix may also be returned as the node matrix
+                return merge(Collections.singletonList(parsed.get(from).join()));
+            }
+            int middle = (from + to) >>> 1;
+            MergeTask left = new MergeTask(parsed, from, middle);
+            left.fork();
+            LinkedHashMap<String, LinkedHashMap<String, Integer>> right = new MergeTask(parsed, middle, to).compute();
+            LinkedHashMap<String, LinkedHashMap<String, Integer>> result = left.join();
+            mergeInto(result, right);
+            return result;
+        }
+    }
+
+    /**
+     * Reads the arrival rates and response times of the nodes at the snapshot epoch. The lookups are done before it.
+     */
+    private class TxSnapshot implements JmxManager.AlignedAction {
+        private final ConcurrentMap<String, ObjectName> extendedStatistics;
+        //sorted by node, so the collection order does not depend on the threads
+        private final ConcurrentMap<String, Stats> stats;
+
+        private TxSnapshot() {
+            extendedStatistics = new ConcurrentHashMap<String, ObjectName>();
+            stats = new ConcurrentSkipListMap<String, Stats>();
+        }
+
+        @Override
+        public void prepare(MBeanServerConnection connection, String hostAddress, int port) {
+            Set<ObjectName> objectNameSet = infinispanObjectNameFinder.findCacheComponent(connection,
+                    "ExtendedStatistics");
+            if (!objectNameSet.isEmpty()) {
+                extendedStatistics.put(hostAddress + ":" + port, objectNameSet.iterator().next());
+            }
+        }
+
+        @Override
+        public void perform(MBeanServerConnection connection, String hostAddress, int port) {
+            String node = hostAddress + ":" + port;
+            ObjectName objectName = extendedStatistics.get(node);
+            if (objectName == null) {
+                return;
+            }
+            Stats nodeStats = new Stats();
+            nodeStats.node = node;
+            nodeStats.responseTime = new long[transactionClasses.length];
+            nodeStats.arrivalRate = new double[transactionClasses.length];
+            try {
+                readTxStats(connection, objectName, nodeStats);
+                stats.put(node, nodeStats);
+            } catch (Exception e) {
+                log.error("Exception while collection the snapshot stats from " + hostAddress + "(" + port + ")", e);
+            }
+        }
+
+        private void apply() {
+            txSnapshot = stats;
+        }
+
+        @Override
+        public String toString() {
+            return "TxSnapshot{" +
+                    "nodes=" + extendedStatistics.size() +
+                    '}';
+        }
+    }
+
+    /**
+     * Invokes one of the {@link SubCollectorMBean} operations and merges the returned partial samples.
+     */
+    private static class PartialAction implements JmxManager.MBeanConnectionAction {
+        private static final String COLLECT = "collectPartial";
+        private static final String COLLECT_TX = "collectTxPartial";
+        private static final String COLLECT_ACCESSES = "collectAccessPartial";
+        private final String operation;
+        private final PartialSample result;
+        private final Map<String, Integer> members;
+
+        private PartialAction(String operation, Map<String, Integer> members) {
+            this.operation = operation;
+            this.result = new PartialSample();
+            this.members = members;
+        }
+
+        @Override
+        public void perform(MBeanServerConnection connection, String hostAddress, int port) {
+            ManagerMetrics metrics = ManagerMetrics.getInstance();
+            try {
+                ObjectName subCollector = new ObjectName(SubCollector.OBJECT_NAME);
+                if (!connection.isRegistered(subCollector)) {
+                    log.warn("No sub-collector found in " + hostAddress + "(" + port + ")");
+                    return;
+                }
+                long start = metrics.start();
+                String data = (String) connection.invoke(subCollector, operation, JmxManager.EMPTY_PARAMS,
+                        JmxManager.EMPTY_SIGNATURE);
+                metrics.record(ManagerMetrics.INVOKE, start);
+                metrics.increment(ManagerMetrics.PAYLOAD_BYTES, length(data));
+                start = metrics.start();
+                PartialSample partial = PartialSample.parse(data);
+                result.merge(partial);
+                members.put(hostAddress + ":" + port, partial.getNumberOfMembers());
+                metrics.record(ManagerMetrics.PARSE, start);
+            } catch (Exception e) {
+                log.error("Error collecting the partial sample of " + hostAddress + "(" + port + ")", e);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "PartialAction{" +
+                    "operation='" + operation + '\'' +
+                    '}';
+        }
+    }
+
+    private static class Stats {
+        private String node;
         private String writeData;
         private String readData;
         private double[] arrivalRate;
         private long[] responseTime;
+        private ForkJoinTask<LinkedHashMap<String, LinkedHashMap<String, Integer>>> parseTask;
 
         @Override
         public String toString() {
             return "Stats{" +
-                    "writeData='" + writeData + '\'' +
+                    "node='" + node + '\'' +
+                    ", writeData='" + writeData + '\'' +
                     ", readData='" + readData + '\'' +
                     ", arrivalRate=" + Arrays.toString(arrivalRate) +
                     ", responseTime=" + Arrays.toString(responseTime) +
@@ -209,6 +1024,7 @@ public class StatsCollector implements JmxManager.MBeanConnectionAction {
     public String toString() {
         return "StatsCollector{" +
                 "transactionClasses=" + Arrays.toString(transactionClasses) +
+                ", hierarchical=" + hierarchical +
                 '}';
     }
 }
@@ -0,0 +1,248 @@
+package eu.cloudtm.stats;
+
+import eu.cloudtm.Utils;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A recording of the raw stats collected from the nodes, that can be replayed offline through the same aggregation as
+ * the {@link StatsCollector}.
+ * <p/>
+ * The file is a tab separated text file. The first line is {@code txClasses <class,class,...>}. Each sample starts
+ * with {@code sample <id> [tx=cluster;tx=cluster;...]}, where the optional assignment is the expected clustering,
+ * followed by one {@code node <read data> <write data> <arrival rates> <response times>} line per node. The arrival
+ * rates and the response times are comma separated, in the order of the transaction classes.
+ *
+ * @author Pedro Ruivo
+ * @since 1.0
+ */
+public class StatsTrace {
+
+    private static final String TX_CLASSES = "txClasses";
+    private static final String SAMPLE = "sample";
+    private static final String NODE = "node";
+    private static final String SEPARATOR = "\t";
+    private final String[] transactionClasses;
+    private final List<Sample> samples;
+
+    public StatsTrace(String[] transactionClasses) {
+        this.transactionClasses = transactionClasses.clone();
+        this.samples = new ArrayList<Sample>();
+    }
+
+    public final String[] getTransactionClasses() {
+        return transactionClasses.clone();
+    }
+
+    public final List<Sample> getSamples() {
+        return Collections.unmodifiableList(samples);
+    }
+
+    /**
+     * @param expectedTransactionClusters the expected clustering of the transaction classes, or {@code null}
+     * @return the new sample, to which the node stats are added
+     */
+    public final Sample addSample(String id, Map<String, Integer> expectedTransactionClusters) {
+        Sample sample = new Sample(id, expectedTransactionClusters);
+        samples.add(sample);
+        return sample;
+    }
+
+    public final void write(String filePath) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(filePath), "UTF-8"));
+        try {
+            writer.write(TX_CLASSES + SEPARATOR + join(transactionClasses) + "\n");
+            for (Sample sample : samples) {
+                writer.write(SAMPLE + SEPARATOR + sample.id);
+                if (sample.expectedTransactionClusters != null) {
+                    writer.write(SEPARATOR);
+                    boolean first = true;
+                    for (Map.Entry<String, Integer> entry : sample.expectedTransactionClusters.entrySet()) {
+                        writer.write((first ? "" : ";") + entry.getKey() + "=" + entry.getValue());
+                        first = false;
+                    }
+                }
+                writer.write("\n");
+                for (NodeStats node : sample.nodes) {
+                    writer.write(NODE + SEPARATOR + nullToEmpty(node.readData) + SEPARATOR +
+                            nullToEmpty(node.writeData) + SEPARATOR + join(node.arrivalRate) + SEPARATOR +
+                            join(node.responseTime) + "\n");
+                }
+            }
+        } finally {
+            Utils.safeClose(writer);
+        }
+    }
+
+    public static StatsTrace read(String filePath) throws IOException {
+        InputStream inputStream = Utils.tryOpenFile(filePath);
+        if (inputStream == null) {
+            throw new FileNotFoundException(filePath);
+        }
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, "UTF-8"));
+            String line = reader.readLine();
+            if (line == null || !line.startsWith(TX_CLASSES + SEPARATOR)) {
+                throw new IOException("Expected '" + TX_CLASSES + "' header in " + filePath);
+            }
+            String txClassList = line.substring(TX_CLASSES.length() + 1);
+            StatsTrace trace = new StatsTrace(txClassList.isEmpty() ? new String[0] : txClassList.split(","));
+            int numberOfTxClasses = trace.transactionClasses.length;
+            Sample sample = null;
+            int lineNumber = 1;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.isEmpty()) {
+                    continue;
+                }
+                String[] fields = line.split(SEPARATOR, -1);
+                if (SAMPLE.equals(fields[0]) && fields.length >= 2) {
+                    sample = trace.addSample(fields[1], fields.length > 2 ? parseClusters(fields[2]) : null);
+                } else if (NODE.equals(fields[0]) && fields.length == 5 && sample != null) {
+                    double[] arrivalRate = new double[numberOfTxClasses];
+                    long[] responseTime = new long[numberOfTxClasses];
+                    String[] arrivalRates = split(fields[3], numberOfTxClasses, filePath, lineNumber);
+                    String[] responseTimes = split(fields[4], numberOfTxClasses, filePath, lineNumber);
+                    for (int i = 0; i < numberOfTxClasses; ++i) {
+                        arrivalRate[i] = Double.parseDouble(arrivalRates[i]);
+                        responseTime[i] = Long.parseLong(responseTimes[i]);
+                    }
+                    sample.addNode(fields[1], fields[2], arrivalRate, responseTime);
+                } else {
+                    throw new IOException("Malformed line " + lineNumber + " in " + filePath);
+                }
+            }
+            return trace;
+        } finally {
+            Utils.safeClose(inputStream);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "StatsTrace{" +
+                "transactionClasses=" + Arrays.toString(transactionClasses) +
+                ", samples=" + samples.size() +
+                '}';
+    }
+
+    private static LinkedHashMap<String, Integer> parseClusters(String assignment) {
+        LinkedHashMap<String, Integer> result = new LinkedHashMap<String, Integer>();
+        if (assignment.isEmpty()) {
+            return result;
+        }
+        for (String pair : assignment.split(";")) {
+            int index = pair.lastIndexOf('=');
+            result.put(pair.substring(0, index), Integer.valueOf(pair.substring(index + 1)));
+        }
+        return result;
+    }
+
+    private static String[] split(String values, int expected, String filePath, int lineNumber) throws IOException {
+        String[] result = values.isEmpty() ? new String[0] : values.split(",");
+        if (result.length != expected) {
+            throw new IOException("Expected " + expected + " values in line " + lineNumber + " of " + filePath);
+        }
+        return result;
+    }
+
+    private static String nullToEmpty(String data) {
+        return data == null ? "" : data;
+    }
+
+    private static String join(String[] values) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < values.length; ++i) {
+            builder.append(i == 0 ? "" : ",").append(values[i]);
+        }
+        return builder.toString();
+    }
+
+    private static String join(double[] values) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < values.length; ++i) {
+            builder.append(i == 0 ? "" : ",").append(values[i]);
+        }
+        return builder.toString();
+    }
+
+    private static String join(long[] values) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < values.length; ++i) {
+            builder.append(i == 0 ? "" : ",").append(values[i]);
+        }
+        return builder.toString();
+    }
+
+    public class Sample {
+        private final String id;
+        private final Map<String, Integer> expectedTransactionClusters;
+        private final List<NodeStats> nodes;
+
+        private Sample(String id, Map<String, Integer> expectedTransactionClusters) {
+            this.id = id;
+            this.expectedTransactionClusters = expectedTransactionClusters == null ? null :
+                    new LinkedHashMap<String, Integer>(expectedTransactionClusters);
+            this.nodes = new ArrayList<NodeStats>();
+        }
+
+        public final String getId() {
+            return id;
+        }
+
+        /**
+         * @return the expected clustering of the transaction classes, or {@code null} if unknown
+         */
+        public final Map<String, Integer> getExpectedTransactionClusters() {
+            return expectedTransactionClusters;
+        }
+
+        public final int getNumberOfNodes() {
+            return nodes.size();
+        }
+
+        public final void addNode(String readData, String writeData, double[] arrivalRate, long[] responseTime) {
+            if (arrivalRate.length != transactionClasses.length || responseTime.length != transactionClasses.length) {
+                throw new IllegalArgumentException("Expected stats for " + transactionClasses.length +
+                        " transaction classes");
+            }
+            nodes.add(new NodeStats(readData, writeData, arrivalRate.clone(), responseTime.clone()));
+        }
+
+        /**
+         * @return the sample aggregated as {@link StatsCollector#collectStats()} does
+         */
+        public final ProcessedSample process() {
+            StatsCollector statsCollector = new StatsCollector(null, null, null);
+            statsCollector.setTransactionClasses(transactionClasses);
+            for (NodeStats node : nodes) {
+                statsCollector.addStats(node.readData, node.writeData, node.arrivalRate, node.responseTime);
+            }
+            return new ProcessedSample(statsCollector.getTxInvokeFrequency(), statsCollector.getTxResponseTime(),
+                    statsCollector.getDataAccessFrequencies());
+        }
+
+        @Override
+        public String toString() {
+            return "Sample{" +
+                    "id='" + id + '\'' +
+                    ", nodes=" + nodes.size() +
+                    '}';
+        }
+    }
+
+    private static class NodeStats {
+        private final String readData;
+        private final String writeData;
+        private final double[] arrivalRate;
+        private final long[] responseTime;
+
+        private NodeStats(String readData, String writeData, double[] arrivalRate, long[] responseTime) {
+            this.readData = readData;
+            this.writeData = writeData;
+            this.arrivalRate = arrivalRate;
+            this.responseTime = responseTime;
+        }
+    }
+}
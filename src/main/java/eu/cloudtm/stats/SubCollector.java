@@ -0,0 +1,87 @@
+package eu.cloudtm.stats;
+
+import eu.cloudtm.jmx.DapController;
+import org.apache.log4j.Logger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Collects and pre-aggregates the statistics of a subset of the nodes (its {@code jmx.ips}) on behalf of a root manager
+ * (see {@code stats.subCollectors}). The DAP payloads are parsed here, so the root only receives one compact
+ * {@link PartialSample} per group.
+ * <p/>
+ * It is exposed as a platform MBean, so the process must enable the JMX remote agent.
+ *
+ * @author Pedro Ruivo
+ * @since 1.0
+ */
+public class SubCollector implements SubCollectorMBean {
+
+    public static final String OBJECT_NAME = "eu.cloudtm:type=SubCollector";
+    private static final Logger log = Logger.getLogger(SubCollector.class);
+    private final StatsCollector statsCollector;
+    private final DapController dapController;
+    private volatile int nodes;
+
+    public SubCollector(StatsCollector statsCollector, DapController dapController) {
+        this.statsCollector = statsCollector;
+        this.dapController = dapController;
+    }
+
+    public final void register() {
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName objectName = new ObjectName(OBJECT_NAME);
+            if (!mBeanServer.isRegistered(objectName)) {
+                mBeanServer.registerMBean(this, objectName);
+            }
+        } catch (Exception e) {
+            log.error("Error registering " + OBJECT_NAME, e);
+        }
+    }
+
+    @Override
+    public final String collectPartial() {
+        return serialize(statsCollector.collectPartial());
+    }
+
+    @Override
+    public final String collectTxPartial() {
+        return serialize(statsCollector.collectTxPartial());
+    }
+
+    @Override
+    public final String collectAccessPartial() {
+        return serialize(statsCollector.collectAccessPartial());
+    }
+
+    @Override
+    public final void enableDap() {
+        dapController.setDapEnabled(true);
+    }
+
+    @Override
+    public final void disableDap() {
+        dapController.setDapEnabled(false);
+    }
+
+    @Override
+    public final int getNumberOfNodes() {
+        return nodes;
+    }
+
+    @Override
+    public String toString() {
+        return "SubCollector{" +
+                "nodes=" + nodes +
+                '}';
+    }
+
+    private String serialize(PartialSample sample) {
+        nodes = sample.getNumberOfNodes();
+        log.debug("Partial sample collected: " + sample);
+        return sample.serialize();
+    }
+}
@@ -0,0 +1,36 @@
+package eu.cloudtm.stats;
+
+/**
+ * JMX view of the {@link SubCollector}. The partial samples are returned in the {@link PartialSample#serialize()}
+ * format.
+ *
+ * @author Pedro Ruivo
+ * @since 1.0
+ */
+public interface SubCollectorMBean {
+
+    /**
+     * @return the transaction statistics and the access matrix of the group
+     */
+    String collectPartial();
+
+    /**
+     * @return the transaction statistics of the group, without the DAP data
+     */
+    String collectTxPartial();
+
+    /**
+     * @return the access matrix of the group, without the transaction statistics
+     */
+    String collectAccessPartial();
+
+    void enableDap();
+
+    void disableDap();
+
+    /**
+     * @return the number of nodes in the last partial sample
+     */
+    int getNumberOfNodes();
+
+}